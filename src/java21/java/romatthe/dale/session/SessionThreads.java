@@ -0,0 +1,22 @@
+package romatthe.dale.session;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Where sessions get their threads from.
+ *
+ * This is the Java 21 version, loaded from META-INF/versions/21 of the jar: every
+ * session gets its own virtual thread.
+ */
+final class SessionThreads {
+
+    private SessionThreads() {
+    }
+
+    /**
+     * Returns a factory for virtual threads, or null when the JVM has none
+     */
+    static ThreadFactory virtualThreadFactory() {
+        return Thread.ofVirtual().name("dale-session-", 0).factory();
+    }
+}
@@ -0,0 +1,32 @@
+package romatthe.dale.benchmark;
+
+import org.apache.commons.io.IOUtils;
+import romatthe.dale.cpu.Cpu;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Loads the Roms bundled as resources into fresh machines for the benchmarks
+ */
+final class BenchmarkRoms {
+
+    private BenchmarkRoms() {
+    }
+
+    static byte[] read(String name) {
+        try (InputStream in = BenchmarkRoms.class.getClassLoader().getResourceAsStream(name)) {
+            return IOUtils.toByteArray(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static Cpu load(String name) {
+        Cpu cpu = new Cpu();
+        cpu.load(read(name));
+
+        return cpu;
+    }
+}
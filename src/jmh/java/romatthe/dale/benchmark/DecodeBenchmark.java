@@ -0,0 +1,80 @@
+package romatthe.dale.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import romatthe.dale.cpu.Cpu;
+import romatthe.dale.cpu.DecodeCache;
+import romatthe.dale.cpu.Instruction;
+import romatthe.dale.cpu.instructions.InstructionTable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning an opcode into a handler and operands: the flat InstructionTable, the
+ * per-address DecodeCache, and operand extraction through Instruction
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+    private static final int OPCODES = 1024;
+
+    private int[] opcodes;
+    private int[] addresses;
+    private DecodeCache decodeCache;
+
+    @Setup
+    public void setUp() {
+        Cpu cpu = BenchmarkRoms.load("PONG");
+        this.decodeCache = cpu.getDecodeCache();
+
+        // Decode every instruction of PONG, the order follows the program
+        this.opcodes = new int[OPCODES];
+        this.addresses = new int[OPCODES];
+        for (int i = 0; i < OPCODES; i++) {
+            int address = Cpu.PROGRAM_START + (i * 2) % 0x100;
+            this.addresses[i] = address;
+            this.decodeCache.handlerAt(address);
+            this.opcodes[i] = this.decodeCache.opcodeAt(address);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPCODES)
+    public void tableLookup(Blackhole blackhole) {
+        for (int opcode : this.opcodes) {
+            blackhole.consume(InstructionTable.lookup(opcode));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPCODES)
+    public void decodeCacheHit(Blackhole blackhole) {
+        for (int address : this.addresses) {
+            blackhole.consume(this.decodeCache.handlerAt(address));
+            blackhole.consume(this.decodeCache.opcodeAt(address));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPCODES)
+    public void operands(Blackhole blackhole) {
+        for (int opcode : this.opcodes) {
+            blackhole.consume(Instruction.x(opcode) + Instruction.y(opcode) + Instruction.nnn(opcode));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package romatthe.dale.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import romatthe.dale.cpu.Cpu;
+import romatthe.dale.cpu.instructions.InstructionHandler;
+import romatthe.dale.cpu.instructions.InstructionTable;
+import romatthe.dale.cpu.instructions.SideEffect;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of executing single instructions through their handlers, one family at a time
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstructionBenchmark {
+
+    /**
+     * 8XY0-8XYE (ALU), DXYN (DRAW), FX33 (BCD), FX55 (STOR) and FX65 (READ)
+     */
+    @Param({ "8120", "8121", "8122", "8123", "8124", "8125", "8126", "8127", "812E",
+             "D125", "D12F", "F133", "FF55", "FF65" })
+    public String opcode;
+
+    private Cpu cpu;
+    private InstructionHandler handler;
+    private int op;
+
+    @Setup
+    public void setUp() {
+        this.cpu = BenchmarkRoms.load("PONG");
+        this.op = Integer.parseInt(this.opcode, 16);
+        this.handler = InstructionTable.lookup(this.op);
+
+        for (int i = 0; i < 16; i++) {
+            this.cpu.setRegisterAt(i, (short) (i * 17));
+        }
+        this.cpu.setIndexRegisterI((short) 0x300);
+    }
+
+    @Benchmark
+    public SideEffect execute() {
+        return this.handler.execute(this.cpu, this.op);
+    }
+}
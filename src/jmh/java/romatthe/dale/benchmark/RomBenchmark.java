@@ -0,0 +1,60 @@
+package romatthe.dale.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import romatthe.dale.cpu.Cpu;
+import romatthe.dale.cpu.ExecutionEngine;
+import romatthe.dale.cpu.Scheduler;
+import romatthe.dale.cpu.jit.Recompiler;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full-Rom execution: a bundled Rom runs unthrottled for a fixed number of instructions,
+ * through either the interpreter or the Recompiler. Scores are per instruction, and with
+ * the GC profiler the allocation rate per instruction is reported as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RomBenchmark {
+
+    private static final int INSTRUCTIONS = 100_000;
+
+    @Param({ "PONG" })
+    public String rom;
+
+    @Param({ "interpreter", "recompiler" })
+    public String engine;
+
+    private Scheduler scheduler;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Cpu cpu = BenchmarkRoms.load(this.rom);
+        ExecutionEngine executionEngine = this.engine.equals("recompiler") ? new Recompiler(cpu) : cpu;
+        this.scheduler = new Scheduler(cpu, executionEngine, Scheduler.DEFAULT_INSTRUCTIONS_PER_FRAME, false);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INSTRUCTIONS)
+    public long run() {
+        this.scheduler.run(INSTRUCTIONS / Scheduler.DEFAULT_INSTRUCTIONS_PER_FRAME);
+
+        return this.scheduler.getInstructions();
+    }
+}
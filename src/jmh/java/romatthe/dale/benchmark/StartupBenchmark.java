@@ -0,0 +1,58 @@
+package romatthe.dale.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import romatthe.dale.cpu.Cpu;
+import romatthe.dale.cpu.instructions.SideEffect;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a short-lived JVM pays before it gets any work done.
+ *
+ * firstInstruction runs exactly once in every fresh fork, so it includes loading and
+ * initialising the Cpu, the decode cache and the instruction table. Run it with the
+ * archive of the cdsArchive task, -jvmArgsAppend -XX:SharedArchiveFile=..., to see what
+ * class-data sharing saves. construct is the steady-state cost of one more machine.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StartupBenchmark {
+
+    private byte[] program;
+
+    @Setup
+    public void setUp() {
+        // Reading the Rom does not touch any emulator class
+        this.program = BenchmarkRoms.read("PONG");
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    @Fork(20)
+    public SideEffect firstInstruction() {
+        Cpu cpu = new Cpu();
+        cpu.load(this.program);
+
+        return cpu.step();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(1)
+    public Cpu construct() {
+        return new Cpu();
+    }
+}
@@ -1,13 +1,191 @@
 package romatthe.dale;
 
+import org.apache.commons.io.IOUtils;
+import romatthe.dale.analysis.BasicBlock;
+import romatthe.dale.analysis.RomAnalysis;
+import romatthe.dale.batch.BatchResult;
+import romatthe.dale.batch.BatchRunner;
 import romatthe.dale.cpu.Cpu;
+import romatthe.dale.cpu.Profiler;
+import romatthe.dale.cpu.Scheduler;
+import romatthe.dale.input.InputLog;
+import romatthe.dale.input.InputReplayer;
+import romatthe.dale.rom.RomLibrary;
+import romatthe.dale.session.Session;
+import romatthe.dale.session.SessionHost;
+import romatthe.dale.stream.FrameServer;
+import romatthe.dale.trace.TraceReader;
+import romatthe.dale.trace.TraceWriter;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
 
 public class Dale {
     public static void main(String[] args) throws IOException {
-        Path path = java.nio.file.FileSystems.getDefault().getPath("C:/temp");
+        if (args.length >= 3 && args[0].equals("--batch")) {
+            batch(args);
+            return;
+        }
+
+        if (args.length >= 3 && args[0].equals("--replay")) {
+            replay(Paths.get(args[1]), Paths.get(args[2]));
+            return;
+        }
+
+        if (args.length >= 2 && args[0].equals("--analyze")) {
+            analyze(Paths.get(args[1]));
+            return;
+        }
+
+        if (args.length >= 4 && args[0].equals("--trace")) {
+            trace(args);
+            return;
+        }
+
+        if (args.length >= 3 && args[0].equals("--dump")) {
+            dump(args);
+            return;
+        }
+
+        if (args.length >= 3 && args[0].equals("--serve")) {
+            serve(args);
+            return;
+        }
+
+        if (args.length >= 3 && args[0].equals("--pack")) {
+            RomLibrary.pack(Paths.get(args[1]), Paths.get(args[2]));
+            return;
+        }
+
+        Cpu cpu = new Cpu();
+        try (InputStream in = Dale.class.getClassLoader().getResourceAsStream("PONG")) {
+            cpu.load(IOUtils.toByteArray(in));
+        }
+        if (Profiler.ENABLED) {
+            cpu.getProfiler().registerMBean("PONG");
+            cpu.getProfiler().writeCsvOnExit(Paths.get(System.getProperty("dale.profile.dir", "profile")));
+        }
+        new Scheduler(cpu, Scheduler.DEFAULT_INSTRUCTIONS_PER_FRAME, true).run();
+    }
+
+    /**
+     * Usage: --replay <rom> <input log>
+     */
+    private static void replay(Path rom, Path log) throws IOException {
+        Cpu cpu = new Cpu();
+        cpu.load(Files.readAllBytes(rom));
+
+        long cycles = new InputReplayer(cpu, InputLog.read(log)).run();
+        System.out.println(BatchResult.of(rom.getFileName().toString(), cpu, cycles, null));
+    }
+
+    /**
+     * Usage: --analyze <rom>
+     */
+    private static void analyze(Path rom) throws IOException {
+        Cpu cpu = new Cpu();
+        cpu.load(Files.readAllBytes(rom));
+
+        RomAnalysis analysis = cpu.predecode();
+        System.out.println(rom.getFileName() + ": " + analysis);
+        for (BasicBlock block : analysis.getBlocks()) {
+            System.out.println("  " + block);
+        }
+        for (int write : analysis.getSelfModifyingWrites()) {
+            System.out.println(String.format("  self-modifying write at 0x%03X", write));
+        }
+    }
+
+    /**
+     * Usage: --trace <rom> <trace file> <frames> [--deflate]
+     */
+    private static void trace(String[] args) throws IOException {
         Cpu cpu = new Cpu();
+        cpu.load(Files.readAllBytes(Paths.get(args[1])));
+
+        boolean compress = args.length > 4 && args[4].equals("--deflate");
+        try (TraceWriter writer = new TraceWriter(cpu, Paths.get(args[2]), compress)) {
+            new Scheduler(cpu, writer, Scheduler.DEFAULT_INSTRUCTIONS_PER_FRAME, false).run(Long.parseLong(args[3]));
+            System.out.println("Traced " + writer.getCycles() + " instructions to " + args[2]);
+        }
+    }
+
+    /**
+     * Usage: --dump <trace file> <cycle> [count]
+     */
+    private static void dump(String[] args) throws IOException {
+        long count = args.length > 3 ? Long.parseLong(args[3]) : 1;
+
+        try (TraceReader reader = TraceReader.open(Paths.get(args[1]))) {
+            if (!reader.seek(Long.parseLong(args[2]))) {
+                System.out.println("The trace holds " + reader.getCycles() + " instructions");
+                return;
+            }
+            for (long i = 0; i < count; i++) {
+                StringBuilder line = new StringBuilder(String.format("%10d  %03X  %04X",
+                        reader.getCycle(), reader.getProgramCounter(), reader.getOpcode()));
+                for (int r = 0; r < 16; r++) {
+                    if ((reader.getChangedRegisters() & (1 << r)) != 0) {
+                        line.append(String.format("  V%X=%02X", r, reader.getRegisterAt(r)));
+                    }
+                }
+                if ((reader.getChangedRegisters() & (1 << 16)) != 0) {
+                    line.append(String.format("  I=%03X", reader.getIndexRegisterI()));
+                }
+                for (int w = 0; w < reader.getWriteCount(); w++) {
+                    line.append(String.format("  [%03X]=%02X", reader.getWriteAddress(w), reader.getWriteValue(w)));
+                }
+                System.out.println(line);
+
+                if (!reader.next()) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Usage: --serve <port> <rom>...
+     *
+     * Runs every Rom in a session of its own and streams their screens on localhost
+     */
+    private static void serve(String[] args) throws IOException {
+        SessionHost host = new SessionHost();
+        FrameServer server = new FrameServer(Integer.parseInt(args[1]));
+
+        for (int i = 2; i < args.length; i++) {
+            Path rom = Paths.get(args[i]);
+            Session session = host.create(Files.readAllBytes(rom));
+            server.publish(session);
+            System.out.println("Streaming " + rom.getFileName() + " as " + session.getId() + " on port " + server.getPort());
+        }
+
+        try {
+            Thread.currentThread().join();
+        } catch (InterruptedException e) {
+            host.shutdown();
+            server.close();
+        }
+    }
+
+    /**
+     * Usage: --batch <rom directory or archive> <cycles> [--jit]
+     */
+    private static void batch(String[] args) throws IOException {
+        boolean recompile = args.length > 3 && args[3].equals("--jit");
+        BatchRunner runner = new BatchRunner(Long.parseLong(args[2]), recompile);
+
+        try {
+            List<BatchResult> results = runner.run(Paths.get(args[1]));
+            for (BatchResult result : results) {
+                System.out.println(result);
+            }
+        } finally {
+            runner.shutdown();
+        }
     }
 }
@@ -0,0 +1,69 @@
+package romatthe.dale.analysis;
+
+import java.util.Arrays;
+
+/**
+ * A straight run of instructions which is only entered at its first instruction and only
+ * left after its last one.
+ */
+public final class BasicBlock {
+
+    private final int start;
+    private final int end;
+    private final int instructionCount;
+    private final int[] successors;
+
+    BasicBlock(int start, int end, int instructionCount, int[] successors) {
+        this.start = start;
+        this.end = end;
+        this.instructionCount = instructionCount;
+        this.successors = successors;
+    }
+
+    /**
+     * Returns the address of the first instruction
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * Returns the address just past the last instruction
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    public int getInstructionCount() {
+        return instructionCount;
+    }
+
+    /**
+     * Returns the start addresses of the blocks control can flow to from this one. Returns
+     * from subroutines and BNNN jumps have no static successors.
+     */
+    public int[] getSuccessors() {
+        return successors.clone();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(String.format("0x%03X-0x%03X ->", this.start, this.end - 2));
+        for (int successor : this.successors) {
+            builder.append(String.format(" 0x%03X", successor));
+        }
+
+        return builder.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof BasicBlock && ((BasicBlock) o).start == this.start && ((BasicBlock) o).end == this.end
+            && Arrays.equals(((BasicBlock) o).successors, this.successors);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * this.start + this.end;
+    }
+}
@@ -0,0 +1,128 @@
+package romatthe.dale.analysis;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What RomAnalyzer found out about a program: which bytes are reachable code, which are
+ * read as data, the control-flow graph and the writes which may modify code.
+ *
+ * The analysis is conservative where it can not be exact. Code only reached through BNNN
+ * is missing from it, and writes through an index register it could not follow make
+ * hasUnknownWrites() true.
+ */
+public final class RomAnalysis {
+
+    private final int memorySize;
+    private final boolean[] instructions;
+    private final boolean[] code;
+    private final boolean[] data;
+    private final boolean[] written;
+    private final List<BasicBlock> blocks;
+    private final int[] selfModifyingWrites;
+    private final boolean indirectJumps;
+    private final boolean unknownWrites;
+
+    RomAnalysis(int memorySize, boolean[] instructions, boolean[] code, boolean[] data, boolean[] written,
+                List<BasicBlock> blocks, int[] selfModifyingWrites, boolean indirectJumps, boolean unknownWrites) {
+        this.memorySize = memorySize;
+        this.instructions = instructions;
+        this.code = code;
+        this.data = data;
+        this.written = written;
+        this.blocks = Collections.unmodifiableList(blocks);
+        this.selfModifyingWrites = selfModifyingWrites;
+        this.indirectJumps = indirectJumps;
+        this.unknownWrites = unknownWrites;
+    }
+
+    public int getMemorySize() {
+        return memorySize;
+    }
+
+    /**
+     * Returns whether a reachable instruction starts at the given address
+     */
+    public boolean isInstruction(int address) {
+        return this.instructions[address];
+    }
+
+    /**
+     * Returns whether the given byte belongs to a reachable instruction
+     */
+    public boolean isCode(int address) {
+        return this.code[address];
+    }
+
+    /**
+     * Returns whether the given byte is read as data: sprites drawn with DXYN, or values
+     * loaded with FX65
+     */
+    public boolean isData(int address) {
+        return this.data[address];
+    }
+
+    /**
+     * Returns whether the program may write to the given byte. Always true when some
+     * writes could not be followed.
+     */
+    public boolean mayBeWritten(int address) {
+        return this.unknownWrites || this.written[address];
+    }
+
+    /**
+     * Returns the basic blocks of the reachable code, in address order
+     */
+    public List<BasicBlock> getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Returns the addresses of the FX33 and FX55 instructions which write over reachable code
+     */
+    public int[] getSelfModifyingWrites() {
+        return selfModifyingWrites.clone();
+    }
+
+    public boolean isSelfModifying() {
+        return this.selfModifyingWrites.length > 0;
+    }
+
+    /**
+     * Returns whether the analysis saw everything the program can do: no BNNN jumps, so
+     * all reachable code was found, and no writes it could not follow, so only bytes for
+     * which mayBeWritten() is true can ever change
+     */
+    public boolean isComplete() {
+        return !this.indirectJumps && !this.unknownWrites;
+    }
+
+    /**
+     * Returns whether the program jumps with BNNN, whose targets are not followed
+     */
+    public boolean hasIndirectJumps() {
+        return indirectJumps;
+    }
+
+    /**
+     * Returns whether the program writes through an index register whose value could not
+     * be determined
+     */
+    public boolean hasUnknownWrites() {
+        return unknownWrites;
+    }
+
+    @Override
+    public String toString() {
+        int codeBytes = 0;
+        int dataBytes = 0;
+        for (int i = 0; i < this.memorySize; i++) {
+            codeBytes += this.code[i] ? 1 : 0;
+            dataBytes += this.data[i] ? 1 : 0;
+        }
+
+        return String.format("%d blocks, %d code bytes, %d data bytes, %d self-modifying writes%s%s",
+            this.blocks.size(), codeBytes, dataBytes, this.selfModifyingWrites.length,
+            this.indirectJumps ? ", indirect jumps" : "", this.unknownWrites ? ", unknown writes" : "");
+    }
+}
@@ -0,0 +1,281 @@
+package romatthe.dale.analysis;
+
+import romatthe.dale.cpu.Cpu;
+import romatthe.dale.cpu.Instruction;
+import romatthe.dale.cpu.Memory;
+import romatthe.dale.cpu.Variant;
+import romatthe.dale.cpu.instructions.InstructionTable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Disassembles a program without running it.
+ *
+ * Starting at the entry point, every path the program can take is followed: jumps, calls
+ * and the instruction after them, and both outcomes of every skip, just like Cpu.step()
+ * would take them. The reachable instructions are split into basic blocks.
+ *
+ * Within each block the index register is followed from ANNN on, which finds the sprites
+ * drawn with DXYN, the bytes read with FX65 and the bytes written by FX33 and FX55. Writes
+ * landing on reachable code are reported as self-modifying.
+ *
+ * Programs are analyzed for the variant they run on: the instructions it does not have
+ * end a path, 00FD exits SUPER-CHIP and XO-CHIP programs, and XO-CHIP code has the 4 byte
+ * F000 NNNN, which skips step over as a whole, the range store 5XY2 and the index register
+ * moving past the registers of FX55 and FX65.
+ */
+public final class RomAnalyzer {
+
+    private RomAnalyzer() {
+    }
+
+    /**
+     * Analyzes the Chip 8 program loaded at Cpu.PROGRAM_START
+     */
+    public static RomAnalysis analyze(Memory memory) {
+        return analyze(memory, Variant.CHIP_8);
+    }
+
+    /**
+     * Analyzes the program of the given variant loaded at Cpu.PROGRAM_START
+     */
+    public static RomAnalysis analyze(Memory memory, Variant variant) {
+        return analyze(memory, variant, Cpu.PROGRAM_START);
+    }
+
+    public static RomAnalysis analyze(Memory memory, int entry) {
+        return analyze(memory, Variant.CHIP_8, entry);
+    }
+
+    public static RomAnalysis analyze(Memory memory, Variant variant, int entry) {
+        int size = memory.size();
+        int mask = size - 1;
+
+        boolean[] instructions = new boolean[size];
+        boolean[] leaders = new boolean[size];
+        // Instructions which the one before them runs into
+        boolean[] followed = new boolean[size];
+        boolean indirectJumps = false;
+
+        // First pass, find every reachable instruction and where blocks start
+        Deque<Integer> work = new ArrayDeque<>();
+        work.push(entry & mask);
+        leaders[entry & mask] = true;
+
+        while (!work.isEmpty()) {
+            int address = work.pop();
+            if (instructions[address]) {
+                continue;
+            }
+            instructions[address] = true;
+
+            int opcode = opcodeAt(memory, address, mask);
+            int next = (address + length(variant, opcode)) & mask;
+
+            switch (kind(variant, opcode)) {
+                case FALL_THROUGH:
+                    followed[next] = true;
+                    work.push(next);
+                    break;
+                case JUMP:
+                    leaders[Instruction.nnn(opcode) & mask] = true;
+                    work.push(Instruction.nnn(opcode) & mask);
+                    break;
+                case CALL:
+                    leaders[Instruction.nnn(opcode) & mask] = true;
+                    leaders[next] = true;
+                    work.push(Instruction.nnn(opcode) & mask);
+                    work.push(next);
+                    break;
+                case SKIP:
+                    int skipped = skipTarget(memory, variant, next, mask);
+                    leaders[next] = true;
+                    leaders[skipped] = true;
+                    work.push(next);
+                    work.push(skipped);
+                    break;
+                case INDIRECT:
+                    indirectJumps = true;
+                    break;
+                case END:
+                    break;
+            }
+        }
+
+        boolean[] code = new boolean[size];
+        boolean[] data = new boolean[size];
+        boolean[] written = new boolean[size];
+        List<BasicBlock> blocks = new ArrayList<>();
+        List<int[]> writes = new ArrayList<>();
+        boolean unknownWrites = false;
+
+        // Second pass, cut the instructions into blocks and follow the index register
+        for (int start = 0; start < size; start++) {
+            if (!instructions[start] || !(leaders[start] || !followed[start])) {
+                continue;
+            }
+
+            int index = -1;
+            int address = start;
+            int count = 0;
+            int opcode;
+            while (true) {
+                opcode = opcodeAt(memory, address, mask);
+                mark(code, address, length(variant, opcode), mask);
+                count++;
+
+                int length = 0;
+                switch (opcode & 0xF000) {
+                    case 0x5000:
+                        // Range stores and loads, only XO-CHIP has them
+                        if (variant != Variant.XO_CHIP) {
+                            break;
+                        }
+                        int registers = Math.abs(Instruction.x(opcode) - Instruction.y(opcode)) + 1;
+                        if ((opcode & 0x000F) == 0x0002) {
+                            length = registers;
+                        } else if ((opcode & 0x000F) == 0x0003 && index >= 0) {
+                            mark(data, index, registers, mask);
+                        }
+                        break;
+                    case 0xA000:
+                        index = Instruction.nnn(opcode);
+                        break;
+                    case 0xD000:
+                        if (index >= 0) {
+                            mark(data, index, spriteSize(variant, opcode), mask);
+                        }
+                        break;
+                    case 0xF000:
+                        if (opcode == 0xF000 && variant == Variant.XO_CHIP) {
+                            index = opcodeAt(memory, address + 2, mask);
+                            break;
+                        }
+                        switch (opcode & 0x00FF) {
+                            case 0x0002:
+                                if (index >= 0) {
+                                    mark(data, index, 16, mask);
+                                }
+                                break;
+                            case 0x0033: length = 3; break;
+                            case 0x0055: length = Instruction.x(opcode) + 1; break;
+                            case 0x0065:
+                                if (index >= 0) {
+                                    mark(data, index, Instruction.x(opcode) + 1, mask);
+                                }
+                                break;
+                            case 0x001E: case 0x0029: case 0x0030:
+                                index = -1;
+                                break;
+                        }
+                        break;
+                }
+                if (length > 0) {
+                    if (index >= 0) {
+                        mark(written, index, length, mask);
+                        writes.add(new int[] { address, index, length });
+                    } else {
+                        unknownWrites = true;
+                    }
+                }
+                // XO-CHIP moves I past the registers it stored or loaded
+                if (variant == Variant.XO_CHIP && index >= 0 && ((opcode & 0xF0FF) == 0xF055 || (opcode & 0xF0FF) == 0xF065)) {
+                    index += Instruction.x(opcode) + 1;
+                }
+
+                int next = (address + length(variant, opcode)) & mask;
+                if (ends(variant, opcode) || !instructions[next] || leaders[next] || next == start) {
+                    break;
+                }
+                address = next;
+            }
+
+            int end = address + length(variant, opcode);
+            blocks.add(new BasicBlock(start, end, count, successors(memory, variant, opcode, end & mask, mask, instructions)));
+        }
+
+        // Writes which land on reachable code
+        int[] selfModifying = new int[writes.size()];
+        int count = 0;
+        for (int[] write : writes) {
+            for (int i = 0; i < write[2]; i++) {
+                if (code[(write[1] + i) & mask]) {
+                    selfModifying[count++] = write[0];
+                    break;
+                }
+            }
+        }
+
+        return new RomAnalysis(size, instructions, code, data, written, blocks,
+            Arrays.copyOf(selfModifying, count), indirectJumps, unknownWrites);
+    }
+
+    private enum Kind { FALL_THROUGH, JUMP, CALL, SKIP, INDIRECT, END }
+
+    private static Kind kind(Variant variant, int opcode) {
+        if (InstructionTable.isInvalid(variant, opcode)) {
+            return Kind.END;
+        }
+
+        switch (opcode & 0xF000) {
+            case 0x0000:
+                // 00FD halts by executing itself over and over
+                return opcode == 0x00EE || (opcode == 0x00FD && variant != Variant.CHIP_8) ? Kind.END : Kind.FALL_THROUGH;
+            case 0x1000: return Kind.JUMP;
+            case 0x2000: return Kind.CALL;
+            case 0x3000: case 0x4000: case 0x9000: return Kind.SKIP;
+            case 0x5000: return (opcode & 0x000F) == 0 ? Kind.SKIP : Kind.FALL_THROUGH;
+            case 0xB000: return Kind.INDIRECT;
+            case 0xE000: return Kind.SKIP;
+            default: return Kind.FALL_THROUGH;
+        }
+    }
+
+    private static boolean ends(Variant variant, int opcode) {
+        return kind(variant, opcode) != Kind.FALL_THROUGH;
+    }
+
+    // Only F000 NNNN of XO-CHIP takes more than one word
+    private static int length(Variant variant, int opcode) {
+        return opcode == 0xF000 && variant == Variant.XO_CHIP ? 4 : 2;
+    }
+
+    // Where a skip lands, past the whole of the instruction at next
+    private static int skipTarget(Memory memory, Variant variant, int next, int mask) {
+        return (next + length(variant, opcodeAt(memory, next, mask))) & mask;
+    }
+
+    // Bytes of sprite data DXYN reads, 16x16 sprites for N 0 and one sprite per plane
+    private static int spriteSize(Variant variant, int opcode) {
+        int height = Instruction.n(opcode);
+        if (variant == Variant.CHIP_8) {
+            return height;
+        }
+
+        return (height == 0 ? 32 : height) * variant.getPlanes();
+    }
+
+    private static int[] successors(Memory memory, Variant variant, int opcode, int next, int mask, boolean[] instructions) {
+        switch (kind(variant, opcode)) {
+            case FALL_THROUGH: return instructions[next] ? new int[] { next } : new int[0];
+            case JUMP: return new int[] { Instruction.nnn(opcode) & mask };
+            case CALL: return new int[] { Instruction.nnn(opcode) & mask, next };
+            case SKIP: return new int[] { next, skipTarget(memory, variant, next, mask) };
+            default: return new int[0];
+        }
+    }
+
+    private static void mark(boolean[] map, int address, int length, int mask) {
+        for (int i = 0; i < length; i++) {
+            map[(address + i) & mask] = true;
+        }
+    }
+
+    private static int opcodeAt(Memory memory, int address, int mask) {
+        return ((memory.read(address & mask) << 8) | (memory.read((address + 1) & mask) & 0xFF)) & 0xFFFF;
+    }
+}
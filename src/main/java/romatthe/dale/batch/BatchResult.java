@@ -0,0 +1,100 @@
+package romatthe.dale.batch;
+
+import romatthe.dale.cpu.Cpu;
+import romatthe.dale.cpu.Memory;
+
+import java.util.zip.CRC32;
+
+/**
+ * Outcome of running a single Rom in a batch: how far it got, and hashes of the final
+ * register file and memory so runs can be compared against each other.
+ */
+public class BatchResult {
+
+    private final String name;
+    private final long cycles;
+    private final long registerHash;
+    private final long memoryHash;
+    private final String error;
+
+    public BatchResult(String name, long cycles, long registerHash, long memoryHash, String error) {
+        this.name = name;
+        this.cycles = cycles;
+        this.registerHash = registerHash;
+        this.memoryHash = memoryHash;
+        this.error = error;
+    }
+
+    /**
+     * Captures the final state of the given Cpu
+     */
+    public static BatchResult of(String name, Cpu cpu, long cycles, String error) {
+        return new BatchResult(name, cycles, hashRegisters(cpu), hashMemory(cpu.getMemory()), error);
+    }
+
+    /**
+     * CRC32 over V0-VF, I, the program counter, the call stack and both timers
+     */
+    public static long hashRegisters(Cpu cpu) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < 16; i++) {
+            crc.update(cpu.getRegisterAt(i));
+        }
+        crc.update(cpu.getIndexRegisterI() >> 8);
+        crc.update(cpu.getIndexRegisterI());
+        crc.update(cpu.getProgramCounter() >> 8);
+        crc.update(cpu.getProgramCounter());
+        crc.update(cpu.getStackPointer());
+        for (int i = 0; i < cpu.getStackPointer(); i++) {
+            crc.update(cpu.getStackAt(i) >> 8);
+            crc.update(cpu.getStackAt(i));
+        }
+        crc.update(cpu.getDelayRegister());
+        crc.update(cpu.getSoundRegister());
+
+        return crc.getValue();
+    }
+
+    /**
+     * CRC32 over every byte of memory
+     */
+    public static long hashMemory(Memory memory) {
+        byte[] contents = new byte[memory.size()];
+        memory.copyTo(contents);
+
+        CRC32 crc = new CRC32();
+        crc.update(contents, 0, contents.length);
+
+        return crc.getValue();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCycles() {
+        return cycles;
+    }
+
+    public long getRegisterHash() {
+        return registerHash;
+    }
+
+    public long getMemoryHash() {
+        return memoryHash;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-20s %12d %08x %08x%s", name, cycles, registerHash, memoryHash,
+            error == null ? "" : " " + error);
+    }
+}
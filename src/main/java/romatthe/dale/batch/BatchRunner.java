@@ -0,0 +1,115 @@
+package romatthe.dale.batch;
+
+import romatthe.dale.analysis.RomAnalysis;
+import romatthe.dale.cpu.Cpu;
+import romatthe.dale.cpu.ExecutionEngine;
+import romatthe.dale.cpu.Scheduler;
+import romatthe.dale.cpu.jit.Recompiler;
+import romatthe.dale.rom.RomEntry;
+import romatthe.dale.rom.RomLibrary;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs every Rom in a directory or Rom archive headless for a fixed number of cycles, one Cpu per Rom,
+ * spread over a work-stealing pool.
+ */
+public class BatchRunner {
+
+    private final long cycles;
+    private final boolean recompile;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param cycles      the number of instructions each Rom may execute
+     * @param parallelism the number of Roms to run at the same time
+     * @param recompile   whether to run through the Recompiler instead of the interpreter
+     */
+    public BatchRunner(long cycles, int parallelism, boolean recompile) {
+        this.cycles = cycles;
+        this.recompile = recompile;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    public BatchRunner(long cycles, boolean recompile) {
+        this(cycles, Runtime.getRuntime().availableProcessors(), recompile);
+    }
+
+    /**
+     * Runs every Rom in the given directory or Rom archive
+     *
+     * @return one result per Rom, in library order
+     */
+    public List<BatchResult> run(Path roms) throws IOException {
+        return this.run(RomLibrary.open(roms));
+    }
+
+    /**
+     * Runs every Rom in the library
+     *
+     * @return one result per Rom, in library order
+     */
+    public List<BatchResult> run(RomLibrary library) {
+        List<ForkJoinTask<BatchResult>> tasks = new ArrayList<>(library.getEntries().size());
+        for (RomEntry rom : library.getEntries()) {
+            tasks.add(this.pool.submit(() -> this.run(rom.getName(), rom.getContents())));
+        }
+
+        List<BatchResult> results = new ArrayList<>(tasks.size());
+        for (ForkJoinTask<BatchResult> task : tasks) {
+            results.add(task.join());
+        }
+
+        return results;
+    }
+
+    /**
+     * Runs a single Rom on the calling thread
+     */
+    public BatchResult run(String name, byte[] program) {
+        return this.run(name, ByteBuffer.wrap(program));
+    }
+
+    /**
+     * Runs a single Rom on the calling thread
+     */
+    public BatchResult run(String name, ByteBuffer program) {
+        Cpu cpu = new Cpu();
+        ExecutionEngine engine = this.recompile ? new Recompiler(cpu) : cpu;
+
+        // Unthrottled, so the timers advance with the executed instructions
+        Scheduler scheduler = new Scheduler(cpu, engine, Scheduler.DEFAULT_INSTRUCTIONS_PER_FRAME, false);
+        long frames = this.cycles / Scheduler.DEFAULT_INSTRUCTIONS_PER_FRAME;
+        long remainder = this.cycles % Scheduler.DEFAULT_INSTRUCTIONS_PER_FRAME;
+
+        // Whole frames, then what is left of the budget within the last one, so every
+        // engine stops at exactly the same instruction
+        long instructions;
+        try {
+            cpu.load(program);
+            RomAnalysis analysis = cpu.predecode();
+            if (engine instanceof Recompiler) {
+                ((Recompiler) engine).setAnalysis(analysis);
+            }
+            scheduler.run(frames);
+            instructions = scheduler.getInstructions();
+            if (remainder > 0) {
+                instructions += engine.execute(remainder);
+            }
+        } catch (RuntimeException e) {
+            return BatchResult.of(name, cpu, scheduler.getInstructions(), e.toString());
+        }
+
+        return BatchResult.of(name, cpu, instructions, null);
+    }
+
+    public void shutdown() {
+        this.pool.shutdown();
+    }
+}
@@ -0,0 +1,64 @@
+package romatthe.dale.cpu;
+
+import java.util.Arrays;
+
+/**
+ * Shared plumbing for Memory implementations: size validation, the address mask and
+ * write listeners.
+ */
+public abstract class AbstractMemory implements Memory {
+
+    protected final int mask;
+    private MemoryWriteListener[] writeListeners = new MemoryWriteListener[0];
+
+    protected AbstractMemory(int size) {
+        if (size <= 0 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Memory size must be a power of two");
+        }
+
+        this.mask = size - 1;
+    }
+
+    @Override
+    public int size() {
+        return this.mask + 1;
+    }
+
+    @Override
+    public void addWriteListener(MemoryWriteListener writeListener) {
+        this.writeListeners = Arrays.copyOf(this.writeListeners, this.writeListeners.length + 1);
+        this.writeListeners[this.writeListeners.length - 1] = writeListener;
+    }
+
+    @Override
+    public void removeWriteListener(MemoryWriteListener writeListener) {
+        for (int i = 0; i < this.writeListeners.length; i++) {
+            if (this.writeListeners[i] == writeListener) {
+                MemoryWriteListener[] writeListeners = new MemoryWriteListener[this.writeListeners.length - 1];
+                System.arraycopy(this.writeListeners, 0, writeListeners, 0, i);
+                System.arraycopy(this.writeListeners, i + 1, writeListeners, i, writeListeners.length - i);
+                this.writeListeners = writeListeners;
+                return;
+            }
+        }
+    }
+
+    protected void written(int address) {
+        for (MemoryWriteListener writeListener : this.writeListeners) {
+            writeListener.onWrite(address);
+        }
+    }
+
+    protected void written(int address, int length) {
+        for (MemoryWriteListener writeListener : this.writeListeners) {
+            writeListener.onWrite(address, length);
+        }
+    }
+
+    protected void checkLoad(int length, int address) {
+        if (address < 0 || length > this.size() - address) {
+            throw new IllegalArgumentException(
+                "Cannot load " + length + " bytes at " + address + " into " + this.size() + " bytes of memory");
+        }
+    }
+}
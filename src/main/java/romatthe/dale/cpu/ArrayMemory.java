@@ -0,0 +1,55 @@
+package romatthe.dale.cpu;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Memory backed by a plain byte array on the heap
+ */
+public class ArrayMemory extends AbstractMemory {
+
+    private final byte[] memory;
+
+    public ArrayMemory(int size) {
+        super(size);
+        this.memory = new byte[size];
+    }
+
+    @Override
+    public short read(int address) {
+        return (short)(this.memory[address & this.mask] & 0xFF);
+    }
+
+    @Override
+    public void write(int address, int value) {
+        address &= this.mask;
+        this.memory[address] = (byte) value;
+        this.written(address);
+    }
+
+    @Override
+    public void load(byte[] data, int offset, int length, int address) {
+        this.checkLoad(length, address);
+        System.arraycopy(data, offset, this.memory, address, length);
+        this.written(address, length);
+    }
+
+    @Override
+    public void load(ByteBuffer data, int address) {
+        this.checkLoad(data.remaining(), address);
+        data.duplicate().get(this.memory, address, data.remaining());
+        this.written(address, data.remaining());
+    }
+
+    @Override
+    public ArrayMemory fork() {
+        ArrayMemory fork = new ArrayMemory(this.size());
+        System.arraycopy(this.memory, 0, fork.memory, 0, this.memory.length);
+
+        return fork;
+    }
+
+    @Override
+    public void copyTo(byte[] target, int offset) {
+        System.arraycopy(this.memory, 0, target, offset, this.memory.length);
+    }
+}
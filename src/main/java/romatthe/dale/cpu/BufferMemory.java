@@ -0,0 +1,76 @@
+package romatthe.dale.cpu;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Memory backed by a ByteBuffer, by default a direct one outside of the Java heap
+ */
+public class BufferMemory extends AbstractMemory {
+
+    private final ByteBuffer memory;
+
+    public BufferMemory(int size) {
+        this(ByteBuffer.allocateDirect(size));
+    }
+
+    /**
+     * Uses the whole capacity of the given buffer as memory
+     */
+    public BufferMemory(ByteBuffer buffer) {
+        super(buffer.capacity());
+        this.memory = buffer;
+    }
+
+    @Override
+    public short read(int address) {
+        return (short)(this.memory.get(address & this.mask) & 0xFF);
+    }
+
+    @Override
+    public void write(int address, int value) {
+        address &= this.mask;
+        this.memory.put(address, (byte) value);
+        this.written(address);
+    }
+
+    @Override
+    public void load(byte[] data, int offset, int length, int address) {
+        this.checkLoad(length, address);
+        ByteBuffer target = this.memory.duplicate();
+        target.clear();
+        target.position(address);
+        target.put(data, offset, length);
+        this.written(address, length);
+    }
+
+    @Override
+    public void load(ByteBuffer data, int address) {
+        this.checkLoad(data.remaining(), address);
+        ByteBuffer target = this.memory.duplicate();
+        target.clear();
+        target.position(address);
+        target.put(data.duplicate());
+        this.written(address, data.remaining());
+    }
+
+    /**
+     * Copies into a new direct buffer
+     */
+    @Override
+    public BufferMemory fork() {
+        ByteBuffer source = this.memory.duplicate();
+        source.clear();
+
+        ByteBuffer copy = ByteBuffer.allocateDirect(this.size());
+        copy.put(source);
+
+        return new BufferMemory(copy);
+    }
+
+    @Override
+    public void copyTo(byte[] target, int offset) {
+        ByteBuffer source = this.memory.duplicate();
+        source.clear();
+        source.get(target, offset, this.size());
+    }
+}
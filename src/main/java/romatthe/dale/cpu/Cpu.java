@@ -1,42 +1,239 @@
 package romatthe.dale.cpu;
 
-import org.apache.commons.io.IOUtils;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
+import romatthe.dale.analysis.RomAnalysis;
+import romatthe.dale.analysis.RomAnalyzer;
+import romatthe.dale.cpu.instructions.InstructionHandler;
+import romatthe.dale.cpu.instructions.SideEffect;
+import romatthe.dale.display.Display;
+import romatthe.dale.input.Keypad;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
 
-public class Cpu {
+public class Cpu implements ExecutionEngine {
+
+    /**
+     * Address at which programs are loaded and start executing
+     */
+    public static final int PROGRAM_START = 0x200;
+
+    private static final byte[] FONT_SET = toBytes(
+        0xF0, 0x90, 0x90, 0x90, 0xF0, // 0
+        0x20, 0x60, 0x20, 0x20, 0x70, // 1
+        0xF0, 0x10, 0xF0, 0x80, 0xF0, // 2
+        0xF0, 0x10, 0xF0, 0x10, 0xF0, // 3
+        0x90, 0x90, 0xF0, 0x10, 0x10, // 4
+        0xF0, 0x80, 0xF0, 0x10, 0xF0, // 5
+        0xF0, 0x80, 0xF0, 0x90, 0xF0, // 6
+        0xF0, 0x10, 0x20, 0x40, 0x40, // 7
+        0xF0, 0x90, 0xF0, 0x90, 0xF0, // 8
+        0xF0, 0x90, 0xF0, 0x10, 0xF0, // 9
+        0xF0, 0x90, 0xF0, 0x90, 0x90, // A
+        0xE0, 0x90, 0xE0, 0x90, 0xE0, // B
+        0xF0, 0x80, 0x80, 0x80, 0xF0, // C
+        0xE0, 0x90, 0x90, 0x90, 0xE0, // D
+        0xF0, 0x80, 0xF0, 0x80, 0xF0, // E
+        0xF0, 0x80, 0xF0, 0x80, 0x80  // F
+    );
+
+    /**
+     * Address of the 8x10 digits of SUPER-CHIP and XO-CHIP, right after the small font
+     */
+    public static final int LARGE_FONT_START = 0x50;
+
+    private static final byte[] LARGE_FONT_SET = toBytes(
+        0xFF, 0xFF, 0xC3, 0xC3, 0xC3, 0xC3, 0xC3, 0xC3, 0xFF, 0xFF, // 0
+        0x18, 0x78, 0x78, 0x18, 0x18, 0x18, 0x18, 0x18, 0xFF, 0xFF, // 1
+        0xFF, 0xFF, 0x03, 0x03, 0xFF, 0xFF, 0xC0, 0xC0, 0xFF, 0xFF, // 2
+        0xFF, 0xFF, 0x03, 0x03, 0xFF, 0xFF, 0x03, 0x03, 0xFF, 0xFF, // 3
+        0xC3, 0xC3, 0xC3, 0xC3, 0xFF, 0xFF, 0x03, 0x03, 0x03, 0x03, // 4
+        0xFF, 0xFF, 0xC0, 0xC0, 0xFF, 0xFF, 0x03, 0x03, 0xFF, 0xFF, // 5
+        0xFF, 0xFF, 0xC0, 0xC0, 0xFF, 0xFF, 0xC3, 0xC3, 0xFF, 0xFF, // 6
+        0xFF, 0xFF, 0x03, 0x03, 0x06, 0x0C, 0x18, 0x18, 0x18, 0x18, // 7
+        0xFF, 0xFF, 0xC3, 0xC3, 0xFF, 0xFF, 0xC3, 0xC3, 0xFF, 0xFF, // 8
+        0xFF, 0xFF, 0xC3, 0xC3, 0xFF, 0xFF, 0x03, 0x03, 0xFF, 0xFF, // 9
+        0x7E, 0xFF, 0xC3, 0xC3, 0xC3, 0xFF, 0xFF, 0xC3, 0xC3, 0xC3, // A
+        0xFC, 0xFC, 0xC3, 0xC3, 0xFC, 0xFC, 0xC3, 0xC3, 0xFC, 0xFC, // B
+        0x3C, 0xFF, 0xC3, 0xC0, 0xC0, 0xC0, 0xC0, 0xC3, 0xFF, 0x3C, // C
+        0xFC, 0xFE, 0xC3, 0xC3, 0xC3, 0xC3, 0xC3, 0xC3, 0xFE, 0xFC, // D
+        0xFF, 0xFF, 0xC0, 0xC0, 0xFF, 0xFF, 0xC0, 0xC0, 0xFF, 0xFF, // E
+        0xFF, 0xFF, 0xC0, 0xC0, 0xFF, 0xFF, 0xC0, 0xC0, 0xC0, 0xC0  // F
+    );
+
+    /**
+     * Number of persistent flags SUPER-CHIP and XO-CHIP store registers in with FX75
+     */
+    public static final int FLAG_COUNT = 16;
+
+    /**
+     * Size in bytes of the XO-CHIP audio pattern buffer
+     */
+    public static final int AUDIO_PATTERN_SIZE = 16;
+
+    /**
+     * Seed of the random number generator unless another one is set, so runs are
+     * reproducible by default
+     */
+    public static final long DEFAULT_RANDOM_SEED = 0x5DEECE66DL;
+
+    /**
+     * Number of return addresses the call stack holds, like the original interpreters
+     */
+    public static final int STACK_DEPTH = 16;
+
+    private static final int SNAPSHOT_MAGIC = 0x44414C45; // DALE
+    private static final byte SNAPSHOT_VERSION = 4;
+
+    /**
+     * Size of the snapshot of a Chip 8 machine without the memory contents: magic,
+     * version, variant, V0-VF, I, PC, SP, the call stack, both timers, the random state,
+     * the keypad, the flags, the audio pattern and pitch, the display mode and rows and
+     * the memory size. The larger screens of other variants add to this, see
+     * snapshotHeaderSize().
+     */
+    public static final int SNAPSHOT_HEADER_SIZE = 4 + 1 + 1 + 16 + 2 + 2 + 2 + STACK_DEPTH * 2 + 1 + 1 + 8 + 2
+            + FLAG_COUNT + AUDIO_PATTERN_SIZE + 1 + 1 + Display.HEIGHT * 8 + 4;
 
     private short opcode = 0;
     private short indexRegisterI = 0;
     private short delayRegister = 0;
     private short soundRegister = 0;
-    private int programCounter = 0x200;   // Program counter starts at 0x200
+    private int programCounter = PROGRAM_START;   // Program counter starts at 0x200
     private int stackPointer = 0;
-    private Memory memory = new Memory(0x1000);
+    private int[] stack = new int[STACK_DEPTH];
+    private Memory memory;
+    private DecodeCache decodeCache;
+    private int addressMask;
     private short[] registers = new short[16];
+    private final Variant variant;
+    private Display display;
+    private short[] flags = new short[FLAG_COUNT];
+    private byte[] audioPattern = new byte[AUDIO_PATTERN_SIZE];
+    private short pitch = 64;
+    private Keypad keypad = new Keypad();
+    private long randomState = DEFAULT_RANDOM_SEED;
+    private Profiler profiler;
+    private long idleInstructions = 0;
 
-    public Cpu() throws IOException {
-        // Clear display
-        // Clear stack
-        // Clear registers V0-VF
-        // Clear memory
+    /**
+     * Creates a machine with cleared registers and the fontset in memory, but no program.
+     * Nothing is executed until step() or run() is called.
+     */
+    public Cpu() {
+        this(Variant.CHIP_8);
+    }
 
-        InputStream in = this.getClass().getClassLoader().getResourceAsStream("PONG");
-        byte[] data = IOUtils.toByteArray(in);
+    /**
+     * Creates a machine of the given variant with cleared registers, the memory the
+     * variant comes with and its fonts in memory, but no program
+     */
+    public Cpu(Variant variant) {
+        this(new ArrayMemory(variant.getMemorySize()), variant);
 
         // Load the fontset into memory
-        for(int i = 0; i < 80; i++) {
-            //TODO this.memory[i] = chip8_fontset[i];
+        this.memory.load(FONT_SET, 0);
+        if (variant != Variant.CHIP_8) {
+            this.memory.load(LARGE_FONT_SET, LARGE_FONT_START);
         }
+    }
+
+    /**
+     * Creates a machine with cleared registers on top of the given memory, which is used
+     * as is. Use fontSet() to put the fontset into it.
+     */
+    public Cpu(Memory memory) {
+        this(memory, Variant.CHIP_8);
+    }
+
+    /**
+     * Creates a machine of the given variant on top of the given memory, which is used as
+     * is
+     */
+    public Cpu(Memory memory, Variant variant) {
+        this(memory, variant, new DecodeCache(memory, variant), new Display(variant));
+    }
 
-        // Load the program into memory
-        for(int i = 0; i < data.length; ++i)
-            this.memory.write(i + 512, data[i]);
+    private Cpu(Memory memory, Variant variant, DecodeCache decodeCache, Display display) {
+        this.memory = memory;
+        this.variant = variant;
+        this.decodeCache = decodeCache;
+        this.display = display;
+        this.addressMask = memory.size() - 1;
+        this.profiler = Profiler.ENABLED ? new Profiler(memory.size(), variant) : null;
+    }
 
-        // Reset timers
-        this.run();
+    /**
+     * Returns a copy of the Chip 8 fontset, which lives at address 0
+     */
+    public static byte[] fontSet() {
+        return FONT_SET.clone();
+    }
+
+    /**
+     * Returns an independent copy of this machine. Memory is forked, so with PagedMemory
+     * this costs only the pages either machine writes to afterwards, and the decoded
+     * instructions are shared in the same way.
+     */
+    public Cpu fork() {
+        Memory forkedMemory = this.memory.fork();
+        Cpu fork = new Cpu(forkedMemory, this.variant, this.decodeCache.fork(forkedMemory), this.display.fork());
+
+        fork.registers = this.registers.clone();
+        fork.indexRegisterI = this.indexRegisterI;
+        fork.programCounter = this.programCounter;
+        fork.stackPointer = this.stackPointer;
+        fork.stack = this.stack.clone();
+        fork.delayRegister = this.delayRegister;
+        fork.soundRegister = this.soundRegister;
+        fork.randomState = this.randomState;
+        fork.keypad.setState(this.keypad.getState());
+        fork.flags = this.flags.clone();
+        fork.audioPattern = this.audioPattern.clone();
+        fork.pitch = this.pitch;
+
+        return fork;
+    }
+
+    /**
+     * Loads a program into memory at PROGRAM_START
+     */
+    public void load(byte[] program) {
+        if (program.length > this.memory.size() - PROGRAM_START) {
+            throw new IllegalArgumentException("Program of " + program.length + " bytes does not fit in memory");
+        }
+
+        this.memory.load(program, PROGRAM_START);
+    }
+
+    private static byte[] toBytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Loads the remaining bytes of program into memory at PROGRAM_START, in one bulk copy
+     */
+    public void load(ByteBuffer program) {
+        if (program.remaining() > this.memory.size() - PROGRAM_START) {
+            throw new IllegalArgumentException("Program of " + program.remaining() + " bytes does not fit in memory");
+        }
+
+        this.memory.load(program, PROGRAM_START);
+    }
+
+    /**
+     * Analyzes the loaded program for the variant of this machine and decodes all of its
+     * reachable code up front
+     */
+    public RomAnalysis predecode() {
+        RomAnalysis analysis = RomAnalyzer.analyze(this.decodeCache.getMemory(), this.variant);
+        this.decodeCache.predecode(analysis);
+
+        return analysis;
     }
 
     public Memory getMemory() {
@@ -45,6 +242,47 @@ public class Cpu {
 
     public void setMemory(Memory memory) {
         this.memory = memory;
+        this.decodeCache = new DecodeCache(memory, this.variant);
+        this.addressMask = memory.size() - 1;
+        if (Profiler.ENABLED) {
+            this.profiler = new Profiler(memory.size(), this.variant);
+        }
+    }
+
+    /**
+     * Routes the memory accesses of instructions through view, a wrapper around the
+     * memory of this machine, or straight to the memory again when view is null. Opcodes
+     * are still decoded from the memory itself.
+     *
+     * Views stack: a view wraps whatever getMemory() returns when it is installed, and
+     * puts that back once it is no longer needed. A view which has since been wrapped in
+     * another one stays where it is and passes everything through instead.
+     */
+    public void setMemoryView(Memory view) {
+        this.memory = view != null ? view : this.decodeCache.getMemory();
+    }
+
+    public DecodeCache getDecodeCache() {
+        return decodeCache;
+    }
+
+    /**
+     * Returns the profiler of this machine, or null unless Profiler.ENABLED
+     */
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    public Variant getVariant() {
+        return variant;
+    }
+
+    public Display getDisplay() {
+        return display;
+    }
+
+    public Keypad getKeypad() {
+        return keypad;
     }
 
     public int getProgramCounter() {
@@ -52,7 +290,8 @@ public class Cpu {
     }
 
     public void setProgramCounter(int programCounter) {
-        this.programCounter = programCounter;
+        // Addresses wrap around at the end of memory, just like Memory does
+        this.programCounter = programCounter & this.addressMask;
     }
 
     public short getIndexRegisterI() {
@@ -72,21 +311,82 @@ public class Cpu {
     }
 
     public short getSoundRegister() {
-        return this.delayRegister;
+        return soundRegister;
     }
 
     public void setSoundRegister(short soundRegister) {
         this.soundRegister = soundRegister;
     }
 
+    public short getFlagAt(int index) {
+        return this.flags[index];
+    }
+
+    public void setFlagAt(int index, short value) {
+        this.flags[index] = value;
+    }
+
+    public short getAudioPatternAt(int index) {
+        return (short) (this.audioPattern[index] & 0xFF);
+    }
+
+    public void setAudioPatternAt(int index, short value) {
+        this.audioPattern[index] = (byte) value;
+    }
+
+    public short getPitch() {
+        return pitch;
+    }
+
+    public void setPitch(short pitch) {
+        this.pitch = pitch;
+    }
+
     public int getStackPointer() {
         return stackPointer;
     }
 
     public void setStackPointer(int stackPointer) {
+        if (stackPointer < 0 || stackPointer > STACK_DEPTH) {
+            throw new IllegalArgumentException("Stack pointer " + stackPointer + " outside of the stack");
+        }
+
         this.stackPointer = stackPointer;
     }
 
+    /**
+     * Pushes a return address on the call stack
+     */
+    public void push(int returnAddress) {
+        if (this.stackPointer == STACK_DEPTH) {
+            throw new IllegalStateException("Call stack overflow, more than " + STACK_DEPTH + " nested calls");
+        }
+
+        this.stack[this.stackPointer++] = returnAddress;
+    }
+
+    /**
+     * Pops the most recent return address off the call stack
+     */
+    public int pop() {
+        if (this.stackPointer == 0) {
+            throw new IllegalStateException("Call stack underflow, return without a call");
+        }
+
+        return this.stack[--this.stackPointer];
+    }
+
+    /**
+     * Returns the return address at the given depth of the call stack, 0 being the oldest
+     */
+    public int getStackAt(int depth) {
+        return this.stack[depth];
+    }
+
+    public void setStackAt(int depth, int returnAddress) {
+        this.stack[depth] = returnAddress;
+    }
+
     public short getRegisterAt(int register) {
         return this.registers[register];
     }
@@ -95,86 +395,311 @@ public class Cpu {
         this.registers[register] = value;
     }
 
-    private void run() {
-        while(true) {
+    /**
+     * Executes instructions until the thread is interrupted. Once the program sits in an
+     * idle loop the thread is parked for a frame, after which the timers tick, as only
+     * they or input can end the loop.
+     */
+    public void run() {
+        while(!Thread.currentThread().isInterrupted()) {
+            int address = this.programCounter;
             this.step();
+
+            if (this.programCounter <= address && this.idleLoopLength() > 0) {
+                LockSupport.parkNanos(this, Scheduler.FRAME_NANOS);
+                this.tickTimers();
+            }
         }
     }
 
-    private void step() {
-        // Fetch the entire opcode
-        // The Chip 8 Opcodes consist of 2 bytes each, so we much fetch them and merge them
-        int opcode = this.getNextOpcode();
-
-        // The first switch inspects the 4 most significant bits
-        // Therefore we do `opcode & 0xF000`
-        switch(opcode & 0xF000) {
-            case 0x0000:
-                switch(opcode) {
-                    case 0x00E0: System.out.println("0x00E0"); break;
-                    case 0x00EE: System.out.println("0x00EE"); break;
-                    default: System.out.println("0x0NNN"); break;
-                }
-                break;
-            case 0x1000: System.out.println("0x1NNN"); break;
-            case 0x2000: System.out.println("0x2NNN"); break;
-            case 0x3000: System.out.println("0x3XNN"); break;
-            case 0x4000: System.out.println("0x4XNN"); break;
-            case 0x5000: System.out.println("0x5XY0"); break;
-            case 0x6000: System.out.println("0x6XNN"); break;
-            case 0x7000: System.out.println("0x7XNN"); break;
-            case 0x8000:
-                // The first switch inspects the 4 least significant bits
-                // Therefore we do `opcode & 0x000F`
-                switch(opcode & 0x000F) {
-                    case 0x0000: System.out.println("0x8XY0"); break;
-                    case 0x0001: System.out.println("0x8XY1"); break;
-                    case 0x0002: System.out.println("0x8XY2"); break;
-                    case 0x0003: System.out.println("0x8XY3"); break;
-                    case 0x0004: System.out.println("0x8XY4"); break;
-                    case 0x0005: System.out.println("0x8XY5"); break;
-                    case 0x0006: System.out.println("0x8XY6"); break;
-                    case 0x0007: System.out.println("0x8XY7"); break;
-                    case 0x000E: System.out.println("0x8XYE"); break;
-                }
-                break;
-            case 0x9000: System.out.println("0x9XY0"); break;
-            case 0xA000: System.out.println("0xANNN"); break;
-            case 0xB000: System.out.println("0xBNNN"); break;
-            case 0xC000: System.out.println("0xCXNN"); break;
-            case 0xD000: System.out.println("0xDXYN"); break;
-            case 0xE000:
-                // The first switch inspects the 4 least significant bits
-                // Therefore we do `opcode & 0x000F`
-                switch(opcode & 0x000F) {
-                    case 0x0001: System.out.println("0xEXA1"); break;
-                    case 0x000E: System.out.println("0xEX9E"); break;
-                }
-                break;
-            case 0xF000:
-                // The first switch inspects the 8 least significant bits
-                // Therefore we do `opcode & 0x00FF`
-                switch(opcode & 0x00FF) {
-                    case 0x0007: System.out.println("0xFX07"); break;
-                    case 0x000A: System.out.println("0xFX0A"); break;
-                    case 0x0015: System.out.println("0xFX15"); break;
-                    case 0x0018: System.out.println("0xFX18"); break;
-                    case 0x001E: System.out.println("0xFX1E"); break;
-                    case 0x0029: System.out.println("0xFX29"); break;
-                    case 0x0033: System.out.println("0xFX33"); break;
-                    case 0x0055: System.out.println("0xFX55"); break;
-                    case 0x0065: System.out.println("0xFX65"); break;
-                }
-                break;
-            default:
-                throw new NotImplementedException();
-        }
-
-        this.programCounter += 2;
-    }
-
-    private int getNextOpcode() {
-        return ((this.memory.read(this.programCounter) << 8) | (0x00FF & this.memory.read(this.programCounter +1)))  & 0xFFFF;
+    /**
+     * Executes the given number of instructions. Idle loops are not spun through but
+     * skipped, see skipIdle().
+     */
+    public void run(long cycles) {
+        for (long i = 0; i < cycles; ) {
+            int address = this.programCounter;
+            this.step();
+            i++;
+
+            // Idle loops can only be entered by jumping back
+            if (this.programCounter <= address) {
+                i += this.skipIdle(cycles - i);
+            }
+        }
+    }
+
+    /**
+     * Skips over the idle loop at the program counter, if there is one, as if it had been
+     * executed for at most the given number of instructions. Whole iterations are skipped
+     * only, so the machine ends up in exactly the state spinning would have left it in.
+     *
+     * Idle loops only end when a timer ticks or a key is pressed, which never happens in
+     * the middle of a frame, so engines can skip straight to the end of their budget.
+     *
+     * @return the number of instructions skipped
+     */
+    public long skipIdle(long instructions) {
+        int length = this.idleLoopLength();
+        if (length == 0 || instructions < length) {
+            return 0;
+        }
+
+        // The only state the loops write, see idleLoopLength()
+        int opcode = this.opcodeAt(this.programCounter);
+        if ((opcode & 0xF0FF) == 0xF007) {
+            this.registers[Instruction.x(opcode)] = this.delayRegister;
+        } else if ((opcode & 0xF0FF) == 0xF00A) {
+            this.keypad.setWaiting(true);
+        }
+
+        long skipped = instructions - instructions % length;
+        this.idleInstructions += skipped;
+
+        return skipped;
+    }
+
+    /**
+     * Returns the number of instructions in the idle loop at the program counter, or 0 if
+     * the program is not idling. Recognised are a jump to itself, FX0A waiting for a key,
+     * polling the delay timer with FX07, 3XNN and a jump back, and the 00FD exit of the
+     * extended variants, which halts by executing itself again.
+     */
+    public int idleLoopLength() {
+        int address = this.programCounter;
+        int opcode = this.opcodeAt(address);
+
+        if (opcode == (0x1000 | address)) {
+            return 1;
+        }
+
+        // Ignored as a machine code call on the Chip 8
+        if (opcode == 0x00FD && this.variant != Variant.CHIP_8) {
+            return 1;
+        }
+
+        if ((opcode & 0xF0FF) == 0xF00A) {
+            return this.keypad.firstPressed() < 0 ? 1 : 0;
+        }
+
+        if ((opcode & 0xF0FF) == 0xF007) {
+            int x = Instruction.x(opcode);
+            int skip = this.opcodeAt((address + 2) & this.addressMask);
+            int jump = this.opcodeAt((address + 4) & this.addressMask);
+
+            if ((skip & 0xFF00) == (0x3000 | x << 8) && (skip & 0x00FF) != this.delayRegister && jump == (0x1000 | address)) {
+                return 3;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Returns the number of instructions skipped as idle so far
+     */
+    public long getIdleInstructions() {
+        return idleInstructions;
+    }
+
+    private int opcodeAt(int address) {
+        this.decodeCache.handlerAt(address);
+
+        return this.decodeCache.opcodeAt(address);
+    }
+
+    /**
+     * Interprets exactly the given number of instructions
+     */
+    @Override
+    public long execute(long instructions) {
+        this.run(instructions);
+
+        return instructions;
+    }
+
+    /**
+     * Returns the next 8 random bits. SplitMix64, so it is cheap, allocation free and
+     * fully determined by the seed.
+     */
+    public int nextRandomByte() {
+        long z = (this.randomState += 0x9E3779B97F4A7C15L);
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+
+        return (int) (z ^ (z >>> 31)) & 0xFF;
+    }
+
+    public long getRandomState() {
+        return randomState;
+    }
+
+    /**
+     * Seeds the random number generator used by CXNN
+     */
+    public void setRandomState(long randomState) {
+        this.randomState = randomState;
+    }
+
+    /**
+     * Returns the size in bytes of a snapshot of this machine
+     */
+    public int snapshotSize() {
+        return this.snapshotHeaderSize() + this.memory.size();
+    }
+
+    /**
+     * Returns the size in bytes of a snapshot of this machine without the memory contents,
+     * which come last
+     */
+    public int snapshotHeaderSize() {
+        return SNAPSHOT_HEADER_SIZE + (this.display.getLineCount() - Display.HEIGHT) * 8;
+    }
+
+    /**
+     * Captures the complete machine state: registers, timers, random state, keypad,
+     * display and memory
+     */
+    public byte[] snapshot() {
+        byte[] snapshot = new byte[this.snapshotSize()];
+        this.snapshot(ByteBuffer.wrap(snapshot));
+
+        return snapshot;
+    }
+
+    /**
+     * Writes the complete machine state into target at its current position, advancing
+     * the position by snapshotSize() bytes
+     */
+    public void snapshot(ByteBuffer target) {
+        target.putInt(SNAPSHOT_MAGIC);
+        target.put(SNAPSHOT_VERSION);
+        target.put((byte) this.variant.ordinal());
+        for (short register : this.registers) {
+            target.put((byte) register);
+        }
+        target.putShort(this.indexRegisterI);
+        target.putShort((short) this.programCounter);
+        target.putShort((short) this.stackPointer);
+        for (int returnAddress : this.stack) {
+            target.putShort((short) returnAddress);
+        }
+        target.put((byte) this.delayRegister);
+        target.put((byte) this.soundRegister);
+        target.putLong(this.randomState);
+        target.putShort((short) this.keypad.getState());
+        for (short flag : this.flags) {
+            target.put((byte) flag);
+        }
+        target.put(this.audioPattern);
+        target.put((byte) this.pitch);
+        target.put((byte) this.display.getMode());
+        for (int line = 0; line < this.display.getLineCount(); line++) {
+            target.putLong(this.display.getLine(line));
+        }
+        target.putInt(this.memory.size());
+
+        if (target.hasArray()) {
+            this.memory.copyTo(target.array(), target.arrayOffset() + target.position());
+            target.position(target.position() + this.memory.size());
+        } else {
+            byte[] contents = new byte[this.memory.size()];
+            this.memory.copyTo(contents);
+            target.put(contents);
+        }
+    }
+
+    /**
+     * Restores the machine state from a snapshot
+     */
+    public void restore(byte[] snapshot) {
+        this.restore(ByteBuffer.wrap(snapshot));
+    }
+
+    /**
+     * Restores the machine state from a snapshot at the current position of source,
+     * advancing the position past it
+     */
+    public void restore(ByteBuffer source) {
+        if (source.getInt() != SNAPSHOT_MAGIC) {
+            throw new IllegalArgumentException("Not a snapshot");
+        }
+        byte version = source.get();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IllegalArgumentException("Unsupported snapshot version " + version);
+        }
+        int variant = source.get();
+        if (variant != this.variant.ordinal()) {
+            throw new IllegalArgumentException("Snapshot of variant " + variant + " does not fit a " + this.variant);
+        }
+
+        for (int i = 0; i < this.registers.length; i++) {
+            this.registers[i] = (short) (source.get() & 0xFF);
+        }
+        this.indexRegisterI = source.getShort();
+        this.programCounter = source.getShort() & this.addressMask;
+        this.setStackPointer(source.getShort());
+        for (int i = 0; i < STACK_DEPTH; i++) {
+            this.stack[i] = source.getShort() & this.addressMask;
+        }
+        this.delayRegister = (short) (source.get() & 0xFF);
+        this.soundRegister = (short) (source.get() & 0xFF);
+        this.randomState = source.getLong();
+        this.keypad.setState(source.getShort() & 0xFFFF);
+        this.keypad.setWaiting(false);
+        for (int i = 0; i < FLAG_COUNT; i++) {
+            this.flags[i] = (short) (source.get() & 0xFF);
+        }
+        source.get(this.audioPattern);
+        this.pitch = (short) (source.get() & 0xFF);
+        this.display.setMode(source.get());
+        for (int line = 0; line < this.display.getLineCount(); line++) {
+            this.display.setLine(line, source.getLong());
+        }
+
+        int memorySize = source.getInt();
+        if (memorySize != this.memory.size()) {
+            throw new IllegalArgumentException("Snapshot of " + memorySize + " bytes of memory does not fit " + this.memory.size());
+        }
+
+        if (source.hasArray()) {
+            this.memory.load(source.array(), source.arrayOffset() + source.position(), memorySize, 0);
+            source.position(source.position() + memorySize);
+        } else {
+            byte[] contents = new byte[memorySize];
+            source.get(contents);
+            this.memory.load(contents, 0);
+        }
+    }
+
+    /**
+     * Counts both timers down by one, called at 60 Hz
+     */
+    public void tickTimers() {
+        if (this.delayRegister > 0) {
+            this.delayRegister--;
+        }
+        if (this.soundRegister > 0) {
+            this.soundRegister--;
+        }
+    }
+
+    public SideEffect step() {
+        // Fetch the decoded instruction, the cache only goes to Memory the first
+        // time an address is executed or after it has been written to
+        int address = this.programCounter;
+        InstructionHandler handler = this.decodeCache.handlerAt(address);
+
+        // Advance past the opcode before executing it, so jumps and calls can simply
+        // overwrite the program counter and skips only have to add another 2
+        this.programCounter = (address + 2) & this.addressMask;
+
+        int opcode = this.decodeCache.opcodeAt(address);
+        if (Profiler.ENABLED) {
+            this.profiler.record(address, opcode);
+        }
+
+        return handler.execute(this, opcode);
     }
 
 }
@@ -0,0 +1,184 @@
+package romatthe.dale.cpu;
+
+import romatthe.dale.analysis.RomAnalysis;
+import romatthe.dale.cpu.instructions.InstructionHandler;
+import romatthe.dale.cpu.instructions.InstructionTable;
+
+import java.util.Arrays;
+
+/**
+ * Cache of decoded instructions, keyed by the address they were fetched from.
+ *
+ * The first time an address is executed its opcode is fetched from Memory and looked
+ * up in the InstructionTable of the machine's Variant. Every later execution of that
+ * address reads the handler and opcode straight from the arrays below, so the
+ * steady-state decode path allocates nothing. Handlers take their operands from the
+ * opcode with a shift and a mask, which is as cheap as loading them from yet more
+ * arrays.
+ *
+ * The cache listens to writes on its Memory: writing either byte of a cached
+ * opcode drops the entry, so self-modifying Roms are decoded again.
+ *
+ * Entries are grouped in pages of 256 addresses which are only allocated once code
+ * in them is executed, so a machine only pays for the code it actually runs. A fork
+ * shares every page with its parent until either of them invalidates an entry in it.
+ */
+public final class DecodeCache implements MemoryWriteListener {
+
+    private static final int PAGE_SHIFT = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private final Memory memory;
+    private final Variant variant;
+    private final DecodedPage[] pages;
+
+    // Pages which are not shared with a fork, and may be changed in place
+    private final boolean[] owned;
+
+    public DecodeCache(Memory memory) {
+        this(memory, Variant.CHIP_8);
+    }
+
+    public DecodeCache(Memory memory, Variant variant) {
+        this(memory, variant, new DecodedPage[(memory.size() + PAGE_SIZE - 1) >> PAGE_SHIFT]);
+    }
+
+    private DecodeCache(Memory memory, Variant variant, DecodedPage[] pages) {
+        this.memory = memory;
+        this.variant = variant;
+        this.pages = pages;
+        this.owned = new boolean[pages.length];
+
+        memory.addWriteListener(this);
+    }
+
+    /**
+     * Returns the memory the opcodes are decoded from
+     */
+    public Memory getMemory() {
+        return memory;
+    }
+
+    /**
+     * Returns the handler for the opcode at the given address, decoding it if needed
+     */
+    public InstructionHandler handlerAt(int address) {
+        DecodedPage page = this.pages[address >> PAGE_SHIFT];
+        InstructionHandler handler;
+        if (page == null || (handler = page.handlers[address & PAGE_MASK]) == null) {
+            handler = this.decode(address);
+        }
+
+        return handler;
+    }
+
+    /**
+     * Returns the opcode at the given address. Only valid after handlerAt(address).
+     */
+    public int opcodeAt(int address) {
+        return this.pages[address >> PAGE_SHIFT].opcodes[address & PAGE_MASK];
+    }
+
+    /**
+     * Decodes every reachable instruction the analysis found, so the program runs without
+     * decoding anything on its first pass
+     */
+    public void predecode(RomAnalysis analysis) {
+        int end = Math.min(analysis.getMemorySize(), this.memory.size());
+        for (int address = 0; address < end; address++) {
+            if (analysis.isInstruction(address)) {
+                this.handlerAt(address);
+            }
+        }
+    }
+
+    /**
+     * Drops every cached instruction
+     */
+    public void invalidateAll() {
+        Arrays.fill(this.pages, null);
+    }
+
+    /**
+     * Creates a cache for a fork of this cache's Memory, sharing every decoded page
+     * until one of the two caches changes it
+     */
+    public DecodeCache fork(Memory forkedMemory) {
+        Arrays.fill(this.owned, false);
+
+        return new DecodeCache(forkedMemory, this.variant, this.pages.clone());
+    }
+
+    @Override
+    public void onWrite(int address) {
+        // A write can hit either the high byte of the opcode at address,
+        // or the low byte of the opcode starting one byte earlier
+        this.invalidate(address);
+        if (address > 0) {
+            this.invalidate(address - 1);
+        }
+    }
+
+    @Override
+    public void onWrite(int address, int length) {
+        int end = Math.min(this.memory.size(), address + length);
+        for (int start = Math.max(0, address - 1); start < end; start++) {
+            this.invalidate(start);
+        }
+    }
+
+    private void invalidate(int address) {
+        int index = address >> PAGE_SHIFT;
+        DecodedPage page = this.pages[index];
+        if (page == null || page.handlers[address & PAGE_MASK] == null) {
+            return;
+        }
+
+        this.ownedPage(index).handlers[address & PAGE_MASK] = null;
+    }
+
+    private DecodedPage ownedPage(int index) {
+        DecodedPage page = this.pages[index];
+        if (page == null) {
+            page = new DecodedPage();
+        } else if (!this.owned[index]) {
+            page = page.copy();
+        } else {
+            return page;
+        }
+
+        this.pages[index] = page;
+        this.owned[index] = true;
+
+        return page;
+    }
+
+    private InstructionHandler decode(int address) {
+        // The Chip 8 Opcodes consist of 2 bytes each, so we much fetch them and merge them
+        int opcode = ((this.memory.read(address) << 8) | (0x00FF & this.memory.read(address + 1))) & 0xFFFF;
+        InstructionHandler handler = InstructionTable.lookup(this.variant, opcode);
+
+        DecodedPage page = this.ownedPage(address >> PAGE_SHIFT);
+        int offset = address & PAGE_MASK;
+        page.opcodes[offset] = opcode;
+        page.handlers[offset] = handler;
+
+        return handler;
+    }
+
+    private static final class DecodedPage {
+
+        // A null handler marks an address which has not been decoded yet
+        final InstructionHandler[] handlers = new InstructionHandler[PAGE_SIZE];
+        final int[] opcodes = new int[PAGE_SIZE];
+
+        DecodedPage copy() {
+            DecodedPage copy = new DecodedPage();
+            System.arraycopy(this.handlers, 0, copy.handlers, 0, PAGE_SIZE);
+            System.arraycopy(this.opcodes, 0, copy.opcodes, 0, PAGE_SIZE);
+
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package romatthe.dale.cpu;
+
+/**
+ * Something that executes instructions on a Cpu, such as the Cpu's own interpreter or
+ * the Recompiler
+ */
+public interface ExecutionEngine {
+
+    /**
+     * Executes at least the given number of instructions
+     *
+     * @return the number of instructions which were actually executed
+     */
+    long execute(long instructions);
+
+    /**
+     * Returns true when the last execute() stopped before its budget ran out on purpose,
+     * like a debugger halting at a breakpoint. The Scheduler then keeps the frame open
+     * and finishes it on the next call.
+     */
+    default boolean isStopped() {
+        return false;
+    }
+}
@@ -0,0 +1,10 @@
+package romatthe.dale.cpu;
+
+/**
+ * Notified by the Scheduler at the end of every 60 Hz frame
+ */
+@FunctionalInterface
+public interface FrameListener {
+
+    void onFrame(long frame);
+}
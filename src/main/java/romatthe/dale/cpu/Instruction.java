@@ -1,21 +1,65 @@
 package romatthe.dale.cpu;
 
-import java.util.Arrays;
-
 public class Instruction {
 
     private int opcode;
-    private int[] ints;
 
     public Instruction(int opcode) {
-        this.opcode = opcode;
-        this.ints =
-            Arrays.stream(String.format("%04x", this.opcode).split(""))
-                .mapToInt(s -> Integer.parseInt(s, 16))
-                .toArray();
+        this.opcode = opcode & 0xFFFF;
+    }
+
+    public int getOpcode() {
+        return opcode;
     }
 
+    /**
+     * Returns the n-th nibble of the opcode, counting from the most significant one
+     */
     public int getNth(int n) {
-        return this.ints[n];
+        return nibble(this.opcode, n);
+    }
+
+    public int getX() {
+        return x(this.opcode);
+    }
+
+    public int getY() {
+        return y(this.opcode);
+    }
+
+    public int getN() {
+        return n(this.opcode);
+    }
+
+    public int getNN() {
+        return nn(this.opcode);
+    }
+
+    public int getNNN() {
+        return nnn(this.opcode);
+    }
+
+    public static int nibble(int opcode, int n) {
+        return (opcode >> ((3 - n) << 2)) & 0xF;
+    }
+
+    public static int x(int opcode) {
+        return (opcode & 0x0F00) >> 8;
+    }
+
+    public static int y(int opcode) {
+        return (opcode & 0x00F0) >> 4;
+    }
+
+    public static int n(int opcode) {
+        return opcode & 0x000F;
+    }
+
+    public static int nn(int opcode) {
+        return opcode & 0x00FF;
+    }
+
+    public static int nnn(int opcode) {
+        return opcode & 0x0FFF;
     }
 }
@@ -1,34 +1,65 @@
 package romatthe.dale.cpu;
 
-public class Memory {
+import java.nio.ByteBuffer;
 
-    private short[] memory;
+/**
+ * Byte addressable memory of a Chip 8 machine.
+ *
+ * The size is always a power of two and addresses are masked to it, so reads and writes
+ * past the end wrap around instead of throwing. This keeps bounds checks and exceptions
+ * off the path of every instruction.
+ */
+public interface Memory {
 
-    public Memory(int size) {
-        this.memory = new short[size];
+    /**
+     * Returns the unsigned byte at the given address
+     */
+    short read(int address);
+
+    /**
+     * Writes the low 8 bits of value to the given address
+     */
+    void write(int address, int value);
+
+    /**
+     * Copies all of data into memory, starting at the given address
+     */
+    default void load(byte[] data, int address) {
+        this.load(data, 0, data.length, address);
     }
 
-    public short read(int address) {
-        if (address > this.memory.length) {
-            throw new IllegalArgumentException("Location must be less than memory size");
-        }
+    /**
+     * Copies length bytes of data, starting at offset, into memory at the given address
+     */
+    void load(byte[] data, int offset, int length, int address);
 
-        if (address < 0) {
-            throw new IllegalArgumentException("Location must be 0 or larger");
-        }
+    /**
+     * Copies the remaining bytes of data into memory at the given address, without
+     * changing the position of data
+     */
+    void load(ByteBuffer data, int address);
 
-        return (short)(memory[address] & 0xFF);
+    /**
+     * Copies the whole memory into target, which must be at least size() bytes long
+     */
+    default void copyTo(byte[] target) {
+        this.copyTo(target, 0);
     }
 
-    public void write(int address, int value) {
-        if (address > this.memory.length) {
-            throw new IllegalArgumentException("Location must be less than memory size");
-        }
+    /**
+     * Copies the whole memory into target, starting at the given offset
+     */
+    void copyTo(byte[] target, int offset);
 
-        if (address < 0) {
-            throw new IllegalArgumentException("Location must be 0 or larger");
-        }
+    int size();
 
-        memory[address] = (short)(value & 0xFF);
-    }
+    /**
+     * Returns an independent Memory with the same contents. Write listeners are not
+     * carried over.
+     */
+    Memory fork();
+
+    void addWriteListener(MemoryWriteListener writeListener);
+
+    void removeWriteListener(MemoryWriteListener writeListener);
 }
@@ -0,0 +1,19 @@
+package romatthe.dale.cpu;
+
+/**
+ * Notified whenever a byte of Memory is written
+ */
+@FunctionalInterface
+public interface MemoryWriteListener {
+
+    void onWrite(int address);
+
+    /**
+     * Notified after a bulk load of length bytes starting at address
+     */
+    default void onWrite(int address, int length) {
+        for (int i = 0; i < length; i++) {
+            this.onWrite(address + i);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package romatthe.dale.cpu;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Copy-on-write Memory made of 256 byte pages.
+ *
+ * fork() gives a new Memory which shares every page with this one. Pages are treated as
+ * immutable while shared: the first write to a page, from either side, copies just that
+ * page. Forking a machine therefore only costs the page table, and each fork pays for
+ * the pages it actually writes to. The fontset and Rom pages are typically shared by every
+ * fork for their whole life.
+ */
+public class PagedMemory extends AbstractMemory {
+
+    public static final int PAGE_SHIFT = 8;
+    public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    // Every page starts out as this one, it is never written to because it is never owned
+    private static final byte[] ZERO_PAGE = new byte[PAGE_SIZE];
+
+    private final byte[][] pages;
+
+    // Pages which belong to this memory alone, and may be written in place
+    private final boolean[] owned;
+
+    public PagedMemory(int size) {
+        super(Math.max(size, PAGE_SIZE));
+
+        this.pages = new byte[this.size() >> PAGE_SHIFT][];
+        this.owned = new boolean[this.pages.length];
+        Arrays.fill(this.pages, ZERO_PAGE);
+    }
+
+    private PagedMemory(byte[][] pages) {
+        super(pages.length << PAGE_SHIFT);
+
+        this.pages = pages;
+        this.owned = new boolean[pages.length];
+    }
+
+    @Override
+    public short read(int address) {
+        address &= this.mask;
+        return (short)(this.pages[address >> PAGE_SHIFT][address & PAGE_MASK] & 0xFF);
+    }
+
+    @Override
+    public void write(int address, int value) {
+        address &= this.mask;
+        this.ownedPage(address >> PAGE_SHIFT)[address & PAGE_MASK] = (byte) value;
+        this.written(address);
+    }
+
+    @Override
+    public void load(byte[] data, int offset, int length, int address) {
+        this.checkLoad(length, address);
+
+        for (int done = 0; done < length; ) {
+            int target = address + done;
+            int chunk = Math.min(length - done, PAGE_SIZE - (target & PAGE_MASK));
+            System.arraycopy(data, offset + done, this.ownedPage(target >> PAGE_SHIFT), target & PAGE_MASK, chunk);
+            done += chunk;
+        }
+
+        this.written(address, length);
+    }
+
+    @Override
+    public void load(ByteBuffer data, int address) {
+        int length = data.remaining();
+        this.checkLoad(length, address);
+
+        ByteBuffer source = data.duplicate();
+        for (int done = 0; done < length; ) {
+            int target = address + done;
+            int chunk = Math.min(length - done, PAGE_SIZE - (target & PAGE_MASK));
+            source.get(this.ownedPage(target >> PAGE_SHIFT), target & PAGE_MASK, chunk);
+            done += chunk;
+        }
+
+        this.written(address, length);
+    }
+
+    @Override
+    public void copyTo(byte[] target, int offset) {
+        for (int page = 0; page < this.pages.length; page++) {
+            System.arraycopy(this.pages[page], 0, target, offset + (page << PAGE_SHIFT), PAGE_SIZE);
+        }
+    }
+
+    /**
+     * Returns a new Memory with the same contents, sharing every page with this one until
+     * either side writes to it. Write listeners are not carried over.
+     */
+    @Override
+    public PagedMemory fork() {
+        Arrays.fill(this.owned, false);
+
+        return new PagedMemory(this.pages.clone());
+    }
+
+    /**
+     * Returns the number of pages this memory has its own copy of
+     */
+    public int getOwnedPages() {
+        int count = 0;
+        for (boolean page : this.owned) {
+            if (page) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private byte[] ownedPage(int index) {
+        if (!this.owned[index]) {
+            this.pages[index] = this.pages[index].clone();
+            this.owned[index] = true;
+        }
+
+        return this.pages[index];
+    }
+}
@@ -0,0 +1,137 @@
+package romatthe.dale.cpu;
+
+import romatthe.dale.cpu.instructions.InstructionTable;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Counts executed instructions per handler family (funcDRAW, funcADDR, funcCALL, ...) and
+ * per address. The families are those of the variant the machine runs, so the extended
+ * instructions of SUPER-CHIP and XO-CHIP are counted under their own handlers.
+ *
+ * Profiling is switched on for the whole JVM with -Ddale.profile=true. ENABLED is a static
+ * final constant, so when it is off the JIT folds the check in Cpu.step() away and the
+ * instrumentation costs nothing. The Recompiler leaves code to the interpreter while
+ * profiling, so every instruction is counted.
+ */
+public class Profiler implements ProfilerMXBean {
+
+    public static final boolean ENABLED = Boolean.getBoolean("dale.profile");
+
+    private final long[] familyCounts = new long[InstructionTable.getFamilyCount()];
+    private final long[] addressHits;
+    private final Variant variant;
+
+    public Profiler(int memorySize, Variant variant) {
+        this.addressHits = new long[memorySize];
+        this.variant = variant;
+    }
+
+    public void record(int address, int opcode) {
+        this.familyCounts[InstructionTable.familyOf(this.variant, opcode)]++;
+        this.addressHits[address]++;
+    }
+
+    @Override
+    public long getTotalInstructions() {
+        long total = 0;
+        for (long count : this.familyCounts) {
+            total += count;
+        }
+
+        return total;
+    }
+
+    @Override
+    public String[] getFamilyNames() {
+        return InstructionTable.getFamilyNames();
+    }
+
+    @Override
+    public long[] getFamilyCounts() {
+        return this.familyCounts.clone();
+    }
+
+    @Override
+    public long[] getAddressHits() {
+        return this.addressHits.clone();
+    }
+
+    @Override
+    public int[] getHottestAddresses(int count) {
+        return IntStream.range(0, this.addressHits.length)
+            .boxed()
+            .filter(address -> this.addressHits[address] > 0)
+            .sorted((a, b) -> Long.compare(this.addressHits[b], this.addressHits[a]))
+            .limit(count)
+            .mapToInt(Integer::intValue)
+            .toArray();
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(this.familyCounts, 0);
+        Arrays.fill(this.addressHits, 0);
+    }
+
+    /**
+     * Registers this profiler with the platform MBean server under
+     * romatthe.dale:type=Profiler,name=&lt;name&gt;
+     */
+    public void registerMBean(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(this, new ObjectName("romatthe.dale:type=Profiler,name=" + ObjectName.quote(name)));
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register profiler " + name, e);
+        }
+    }
+
+    /**
+     * Writes opcodes.csv (family,count) and addresses.csv (address,hits) into the given
+     * directory
+     */
+    public void writeCsv(Path directory) throws IOException {
+        Files.createDirectories(directory);
+
+        String[] names = this.getFamilyNames();
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(directory.resolve("opcodes.csv"), StandardCharsets.UTF_8))) {
+            out.println("family,count");
+            for (int i = 0; i < names.length; i++) {
+                out.println(names[i] + "," + this.familyCounts[i]);
+            }
+        }
+
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(directory.resolve("addresses.csv"), StandardCharsets.UTF_8))) {
+            out.println("address,hits");
+            for (int address = 0; address < this.addressHits.length; address++) {
+                if (this.addressHits[address] > 0) {
+                    out.println(String.format("0x%03X,%d", address, this.addressHits[address]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the CSV files into the given directory when the JVM exits
+     */
+    public void writeCsvOnExit(Path directory) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                this.writeCsv(directory);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, "dale-profiler-dump"));
+    }
+}
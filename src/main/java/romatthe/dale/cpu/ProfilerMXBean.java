@@ -0,0 +1,31 @@
+package romatthe.dale.cpu;
+
+/**
+ * Management interface of the Profiler, as exposed over JMX
+ */
+public interface ProfilerMXBean {
+
+    long getTotalInstructions();
+
+    /**
+     * Names of the handler families, in the same order as getFamilyCounts()
+     */
+    String[] getFamilyNames();
+
+    /**
+     * Number of executed instructions per handler family
+     */
+    long[] getFamilyCounts();
+
+    /**
+     * Number of times each address was executed
+     */
+    long[] getAddressHits();
+
+    /**
+     * The given number of most executed addresses, most executed first
+     */
+    int[] getHottestAddresses(int count);
+
+    void reset();
+}
@@ -0,0 +1,198 @@
+package romatthe.dale.cpu;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Ring buffer of periodic snapshots of a single Cpu, to rewind a session by a few seconds.
+ *
+ * Only the oldest snapshot keeps a full copy of memory. Every later one stores its
+ * registers and display, plus the 256 byte memory pages which changed since the snapshot
+ * before it. Most frames only touch a page or two, so a few seconds of history cost little
+ * more than the registers themselves.
+ *
+ * Registered as a FrameListener, a snapshot is captured every interval frames.
+ */
+public class RewindBuffer implements FrameListener {
+
+    public static final int PAGE_SIZE = 256;
+
+    private static final int[] NO_PAGES = new int[0];
+    private static final byte[] NO_DATA = new byte[0];
+
+    private final Cpu cpu;
+    private final int capacity;
+    private final int interval;
+    private final int pageCount;
+    private final int headerSize;
+
+    // Ring of snapshots, the slot of the oldest one is at `oldest`
+    private final byte[][] headers;
+    private final int[][] changedPages;
+    private final byte[][] pageData;
+    private int oldest = 0;
+    private int count = 0;
+
+    // Memory as of the oldest and the newest snapshot
+    private final byte[] baseMemory;
+    private final byte[] latestMemory;
+
+    // Reused for every capture and restore
+    private final byte[] scratch;
+    private final ByteBuffer scratchBuffer;
+    private final int[] scratchPages;
+
+    /**
+     * @param capacity the number of snapshots to keep
+     * @param interval the number of frames between snapshots
+     */
+    public RewindBuffer(Cpu cpu, int capacity, int interval) {
+        if (capacity <= 0 || interval <= 0) {
+            throw new IllegalArgumentException("Capacity and interval must be positive");
+        }
+
+        this.cpu = cpu;
+        this.capacity = capacity;
+        this.interval = interval;
+        this.pageCount = (cpu.getMemory().size() + PAGE_SIZE - 1) / PAGE_SIZE;
+
+        this.headerSize = cpu.snapshotHeaderSize();
+        this.headers = new byte[capacity][this.headerSize];
+        this.changedPages = new int[capacity][];
+        this.pageData = new byte[capacity][];
+        this.baseMemory = new byte[cpu.getMemory().size()];
+        this.latestMemory = new byte[cpu.getMemory().size()];
+
+        this.scratch = new byte[cpu.snapshotSize()];
+        this.scratchBuffer = ByteBuffer.wrap(this.scratch);
+        this.scratchPages = new int[this.pageCount];
+    }
+
+    @Override
+    public void onFrame(long frame) {
+        if (frame % this.interval == 0) {
+            this.capture();
+        }
+    }
+
+    /**
+     * Captures a snapshot now, evicting the oldest one when the buffer is full
+     */
+    public void capture() {
+        this.scratchBuffer.clear();
+        this.cpu.snapshot(this.scratchBuffer);
+
+        if (this.count == this.capacity) {
+            this.evictOldest();
+        }
+
+        int slot = this.slot(this.count);
+        System.arraycopy(this.scratch, 0, this.headers[slot], 0, this.headerSize);
+
+        if (this.count == 0) {
+            System.arraycopy(this.scratch, this.headerSize, this.baseMemory, 0, this.baseMemory.length);
+            System.arraycopy(this.scratch, this.headerSize, this.latestMemory, 0, this.latestMemory.length);
+            this.changedPages[slot] = NO_PAGES;
+            this.pageData[slot] = NO_DATA;
+        } else {
+            this.storeChangedPages(slot);
+        }
+
+        this.count++;
+    }
+
+    /**
+     * Returns the number of snapshots currently held
+     */
+    public int size() {
+        return this.count;
+    }
+
+    /**
+     * Restores the snapshot taken the given number of captures ago, 0 being the newest.
+     * Every snapshot newer than that one is discarded.
+     */
+    public void rewind(int captures) {
+        if (captures < 0 || captures >= this.count) {
+            throw new IllegalArgumentException("Only " + this.count + " snapshots to rewind through");
+        }
+
+        int target = this.count - 1 - captures;
+
+        // Rebuild memory from the oldest snapshot forward
+        System.arraycopy(this.headers[this.slot(target)], 0, this.scratch, 0, this.headerSize);
+        System.arraycopy(this.baseMemory, 0, this.scratch, this.headerSize, this.baseMemory.length);
+        for (int i = 1; i <= target; i++) {
+            this.applyPages(this.slot(i), this.scratch, this.headerSize);
+        }
+
+        this.scratchBuffer.clear();
+        this.cpu.restore(this.scratchBuffer);
+
+        System.arraycopy(this.scratch, this.headerSize, this.latestMemory, 0, this.latestMemory.length);
+        this.count = target + 1;
+    }
+
+    private void storeChangedPages(int slot) {
+        int changed = 0;
+        for (int page = 0; page < this.pageCount; page++) {
+            if (!this.samePage(page)) {
+                this.scratchPages[changed++] = page;
+            }
+        }
+
+        int[] pages = new int[changed];
+        byte[] data = new byte[changed * PAGE_SIZE];
+        for (int i = 0; i < changed; i++) {
+            int page = this.scratchPages[i];
+            int length = this.pageLength(page);
+            pages[i] = page;
+            System.arraycopy(this.scratch, this.headerSize + page * PAGE_SIZE, data, i * PAGE_SIZE, length);
+            System.arraycopy(this.scratch, this.headerSize + page * PAGE_SIZE, this.latestMemory, page * PAGE_SIZE, length);
+        }
+
+        this.changedPages[slot] = pages;
+        this.pageData[slot] = data;
+    }
+
+    private boolean samePage(int page) {
+        int start = page * PAGE_SIZE;
+        int end = start + this.pageLength(page);
+        for (int i = start; i < end; i++) {
+            if (this.scratch[this.headerSize + i] != this.latestMemory[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Folds the second oldest snapshot's pages into the base memory, so it becomes the
+     * new oldest one
+     */
+    private void evictOldest() {
+        int next = this.slot(1);
+        this.applyPages(next, this.baseMemory, 0);
+        this.changedPages[next] = NO_PAGES;
+        this.pageData[next] = NO_DATA;
+
+        this.oldest = next;
+        this.count--;
+    }
+
+    private void applyPages(int slot, byte[] target, int offset) {
+        int[] pages = this.changedPages[slot];
+        byte[] data = this.pageData[slot];
+        for (int i = 0; i < pages.length; i++) {
+            System.arraycopy(data, i * PAGE_SIZE, target, offset + pages[i] * PAGE_SIZE, this.pageLength(pages[i]));
+        }
+    }
+
+    private int pageLength(int page) {
+        return Math.min(PAGE_SIZE, this.latestMemory.length - page * PAGE_SIZE);
+    }
+
+    private int slot(int index) {
+        return (this.oldest + index) % this.capacity;
+    }
+}
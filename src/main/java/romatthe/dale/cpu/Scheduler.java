@@ -0,0 +1,201 @@
+package romatthe.dale.cpu;
+
+import romatthe.dale.input.InputLog;
+import romatthe.dale.input.Keypad;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces a Cpu in 60 Hz frames. Every frame executes a fixed number of instructions and
+ * then counts the delay and sound timers down by one.
+ *
+ * Throttled, frames are spread out over wall-clock time and the thread is parked in
+ * between, so an idle emulator costs next to no CPU. Unthrottled, frames follow each
+ * other immediately and the timers advance purely by executed instructions, which is
+ * deterministic and suits fast-forward and headless runs.
+ *
+ * Engines skip the rest of a frame's budget once the program idles (see Cpu.skipIdle()),
+ * so an idling program costs next to nothing in either mode.
+ *
+ * Keypad changes are latched at the start of every frame, so they reach the program at a
+ * known instruction count. With an InputLog attached, those changes and every timer tick
+ * are recorded and can be replayed exactly by an InputReplayer.
+ */
+public class Scheduler {
+
+    public static final int FRAMES_PER_SECOND = 60;
+    public static final long FRAME_NANOS = 1_000_000_000L / FRAMES_PER_SECOND;
+
+    /**
+     * Roughly 600 instructions per second, close to the original interpreters
+     */
+    public static final int DEFAULT_INSTRUCTIONS_PER_FRAME = 10;
+
+    // When the host falls further behind than this, drop the backlog instead of
+    // running frames back to back to catch up
+    private static final long MAX_LAG_NANOS = FRAME_NANOS * 5;
+
+    private final Cpu cpu;
+    private final ExecutionEngine engine;
+    private final int instructionsPerFrame;
+    private final boolean throttled;
+
+    // Copied on write, so listeners can be added from other threads while frames run
+    private volatile FrameListener[] frameListeners = new FrameListener[0];
+
+    private InputLog recording;
+    private long recordingStart;
+
+    private long frames = 0;
+    private long instructions = 0;
+
+    // Instructions executed beyond the budget of earlier frames, for engines which
+    // can not stop at an exact instruction count
+    private long overshoot = 0;
+
+    // Budget left of a frame the engine halted halfway, see ExecutionEngine.isStopped()
+    private long remaining = 0;
+
+    public Scheduler(Cpu cpu, ExecutionEngine engine, int instructionsPerFrame, boolean throttled) {
+        if (instructionsPerFrame <= 0) {
+            throw new IllegalArgumentException("Instructions per frame must be positive");
+        }
+
+        this.cpu = cpu;
+        this.engine = engine;
+        this.instructionsPerFrame = instructionsPerFrame;
+        this.throttled = throttled;
+    }
+
+    public Scheduler(Cpu cpu, int instructionsPerFrame, boolean throttled) {
+        this(cpu, cpu, instructionsPerFrame, throttled);
+    }
+
+    /**
+     * Executes a single frame without any throttling
+     */
+    public void frame() {
+        long budget;
+        if (this.remaining > 0) {
+            // Finish a frame which was halted halfway, its keypad state is latched already
+            budget = this.remaining;
+        } else {
+            Keypad keypad = this.cpu.getKeypad();
+            if (keypad.latch() && this.recording != null) {
+                this.recording.keys(this.instructions - this.recordingStart, keypad.getState());
+            }
+
+            budget = this.instructionsPerFrame - this.overshoot;
+        }
+
+        long executed = budget > 0 ? this.engine.execute(budget) : 0;
+        this.instructions += executed;
+        if (executed < budget && this.engine.isStopped()) {
+            this.remaining = budget - executed;
+            return;
+        }
+
+        this.remaining = 0;
+        this.overshoot = executed - budget;
+        this.frames++;
+        this.cpu.tickTimers();
+        if (this.recording != null) {
+            this.recording.tick(this.instructions - this.recordingStart);
+        }
+
+        for (FrameListener frameListener : this.frameListeners) {
+            frameListener.onFrame(this.frames);
+        }
+    }
+
+    /**
+     * Registers a listener called at the end of every frame, after the timers ticked.
+     * May be called from any thread.
+     */
+    public synchronized void addFrameListener(FrameListener frameListener) {
+        FrameListener[] frameListeners = Arrays.copyOf(this.frameListeners, this.frameListeners.length + 1);
+        frameListeners[frameListeners.length - 1] = frameListener;
+        this.frameListeners = frameListeners;
+    }
+
+    /**
+     * Starts recording input into a new log, with cycles counted from now. The log
+     * starts with the keypad state the machine currently sees.
+     */
+    public InputLog record() {
+        this.recording = new InputLog(this.cpu.getRandomState());
+        this.recordingStart = this.instructions;
+
+        int keys = this.cpu.getKeypad().getState();
+        if (keys != 0) {
+            this.recording.keys(0, keys);
+        }
+
+        return this.recording;
+    }
+
+    /**
+     * Stops recording and returns the log, or null if nothing was being recorded
+     */
+    public InputLog stopRecording() {
+        InputLog log = this.recording;
+        this.recording = null;
+
+        return log;
+    }
+
+    /**
+     * Executes frames until the thread is interrupted
+     */
+    public void run() {
+        this.run(Long.MAX_VALUE);
+    }
+
+    /**
+     * Executes the given number of frames, or fewer if the thread is interrupted
+     */
+    public void run(long frames) {
+        long deadline = System.nanoTime();
+
+        for (long i = 0; i < frames && !Thread.currentThread().isInterrupted(); i++) {
+            this.frame();
+
+            if (this.throttled) {
+                deadline += FRAME_NANOS;
+
+                // Parking may return early, so keep going until the deadline has passed
+                long wait;
+                while ((wait = deadline - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted()) {
+                    LockSupport.parkNanos(this, wait);
+                }
+
+                if (wait < -MAX_LAG_NANOS) {
+                    deadline = System.nanoTime();
+                }
+            }
+        }
+    }
+
+    public boolean isThrottled() {
+        return throttled;
+    }
+
+    public int getInstructionsPerFrame() {
+        return instructionsPerFrame;
+    }
+
+    /**
+     * Returns the number of frames executed so far
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Returns the number of instructions executed so far
+     */
+    public long getInstructions() {
+        return instructions;
+    }
+}
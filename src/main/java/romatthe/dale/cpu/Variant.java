@@ -0,0 +1,74 @@
+package romatthe.dale.cpu;
+
+/**
+ * The dialects of Chip 8 a machine can run.
+ *
+ * A variant is fixed when a Cpu is created. It decides the memory size, the layout of the
+ * Display and which handler table opcodes are decoded with, so quirks and extensions are
+ * resolved once up front rather than checked by every instruction. A plain CHIP_8 machine
+ * therefore runs exactly the same code it did before variants existed.
+ */
+public enum Variant {
+
+    /**
+     * The original instruction set on a 64x32 screen and 4 KiB of memory
+     */
+    CHIP_8(0x1000, 64, 32, 1, false),
+
+    /**
+     * SUPER-CHIP 1.1: a 128x64 high resolution mode, scrolling, 16x16 sprites, a large
+     * font and the persistent RPL flags. BNNN jumps to VX + NNN and sprites are clipped
+     * at the screen edges.
+     */
+    SUPER_CHIP(0x1000, 128, 64, 1, true),
+
+    /**
+     * XO-CHIP: everything of SUPER_CHIP, plus 64 KiB of memory addressed with F000 NNNN,
+     * two bitplanes, register range loads and stores and an audio pattern buffer. Shifts
+     * read VY, FX55 and FX65 advance I and sprites wrap around the screen edges.
+     */
+    XO_CHIP(0x10000, 128, 64, 2, false);
+
+    private final int memorySize;
+    private final int width;
+    private final int height;
+    private final int planes;
+    private final boolean clipping;
+
+    Variant(int memorySize, int width, int height, int planes, boolean clipping) {
+        this.memorySize = memorySize;
+        this.width = width;
+        this.height = height;
+        this.planes = planes;
+        this.clipping = clipping;
+    }
+
+    public int getMemorySize() {
+        return memorySize;
+    }
+
+    /**
+     * Returns the width of the screen in its highest resolution
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the screen in its highest resolution
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    public int getPlanes() {
+        return planes;
+    }
+
+    /**
+     * Returns whether sprites are cut off at the screen edges instead of wrapping around
+     */
+    public boolean isClipping() {
+        return clipping;
+    }
+}
@@ -0,0 +1,13 @@
+package romatthe.dale.cpu.instructions;
+
+import romatthe.dale.cpu.Cpu;
+
+/**
+ * Executes a single decoded opcode against a Cpu. The opcode is passed as a
+ * primitive so that dispatching an instruction never boxes it.
+ */
+@FunctionalInterface
+public interface InstructionHandler {
+
+    SideEffect execute(Cpu cpu, int opcode);
+}
@@ -0,0 +1,314 @@
+package romatthe.dale.cpu.instructions;
+
+import romatthe.dale.cpu.Variant;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Flat dispatch table mapping every possible 16-bit opcode to its handler.
+ *
+ * The table is decoded once when the class is loaded, so executing an
+ * instruction is a single array index followed by a single call, instead of
+ * walking a cascade of switches for every opcode. The handlers are the shared
+ * constants of Instructions, so the table itself is the only per-JVM cost.
+ *
+ * SUPER-CHIP and XO-CHIP get tables of their own, which start out as the Chip 8 table and
+ * swap in the extended instructions and the handlers for their quirks. Those are only
+ * built once a machine of that variant asks for them.
+ */
+public final class InstructionTable {
+
+    private static final InstructionHandler[] HANDLERS = new InstructionHandler[0x10000];
+
+    /**
+     * Handler for opcodes which have no meaning on the Chip 8
+     */
+    private static final InstructionHandler INVALID = (cpu, op) -> {
+        throw new UnsupportedOperationException(String.format("Unknown opcode 0x%04X", op));
+    };
+
+    static {
+        for (int opcode = 0; opcode < HANDLERS.length; opcode++) {
+            HANDLERS[opcode] = decode(opcode);
+        }
+    }
+
+    private InstructionTable() {
+    }
+
+    /**
+     * Returns the handler for the given opcode
+     */
+    public static InstructionHandler lookup(int opcode) {
+        return HANDLERS[opcode & 0xFFFF];
+    }
+
+    /**
+     * Returns the handler for the given opcode on the given variant
+     */
+    public static InstructionHandler lookup(Variant variant, int opcode) {
+        return handlers(variant)[opcode & 0xFFFF];
+    }
+
+    private static InstructionHandler[] handlers(Variant variant) {
+        switch (variant) {
+            case SUPER_CHIP: return SuperChipTable.HANDLERS;
+            case XO_CHIP: return XoChipTable.HANDLERS;
+            default: return HANDLERS;
+        }
+    }
+
+    /**
+     * Returns whether the given opcode is not a Chip 8 instruction
+     */
+    public static boolean isInvalid(int opcode) {
+        return HANDLERS[opcode & 0xFFFF] == INVALID;
+    }
+
+    /**
+     * Returns whether the given opcode is not an instruction of the given variant
+     */
+    public static boolean isInvalid(Variant variant, int opcode) {
+        return handlers(variant)[opcode & 0xFFFF] == INVALID;
+    }
+
+    /**
+     * Returns the index of the handler family of the given opcode on the given variant,
+     * see getFamilyNames()
+     */
+    public static int familyOf(Variant variant, int opcode) {
+        return Families.FAMILIES[variant.ordinal()][opcode & 0xFFFF];
+    }
+
+    /**
+     * Returns the names of all handler families of all variants, named after the handlers
+     * in Instructions, SuperChipInstructions and XoChipInstructions
+     */
+    public static String[] getFamilyNames() {
+        return Families.NAMES.clone();
+    }
+
+    public static int getFamilyCount() {
+        return Families.NAMES.length;
+    }
+
+    private static InstructionHandler decode(int opcode) {
+        // The first switch inspects the 4 most significant bits
+        // Therefore we do `opcode & 0xF000`
+        switch (opcode & 0xF000) {
+            case 0x0000:
+                switch (opcode) {
+                    case 0x00E0: return Instructions.funcCLR;
+                    case 0x00EE: return Instructions.funcRTS;
+                    default: return Instructions.funcSYS;
+                }
+            case 0x1000: return Instructions.funcJUMP;
+            case 0x2000: return Instructions.funcCALL;
+            case 0x3000: return Instructions.funcSKE;
+            case 0x4000: return Instructions.funcSKNE;
+            case 0x5000: return (opcode & 0x000F) == 0 ? Instructions.funcSKRE : INVALID;
+            case 0x6000: return Instructions.funcLOAD;
+            case 0x7000: return Instructions.funcADD;
+            case 0x8000:
+                // The second switch inspects the 4 least significant bits
+                // Therefore we do `opcode & 0x000F`
+                switch (opcode & 0x000F) {
+                    case 0x0000: return Instructions.funcMOVE;
+                    case 0x0001: return Instructions.funcOR;
+                    case 0x0002: return Instructions.funcAND;
+                    case 0x0003: return Instructions.funcXOR;
+                    case 0x0004: return Instructions.funcADDR;
+                    case 0x0005: return Instructions.funcSUB;
+                    case 0x0006: return Instructions.funcSHR;
+                    case 0x0007: return Instructions.funcSUBN;
+                    case 0x000E: return Instructions.funcSHL;
+                    default: return INVALID;
+                }
+            case 0x9000: return (opcode & 0x000F) == 0 ? Instructions.funcSKRNE : INVALID;
+            case 0xA000: return Instructions.funcLOADI;
+            case 0xB000: return Instructions.funcJUMPI;
+            case 0xC000: return Instructions.funcRAND;
+            case 0xD000: return Instructions.funcDRAW;
+            case 0xE000:
+                // The second switch inspects the 8 least significant bits
+                // Therefore we do `opcode & 0x00FF`
+                switch (opcode & 0x00FF) {
+                    case 0x009E: return Instructions.funcSKPR;
+                    case 0x00A1: return Instructions.funcSKUP;
+                    default: return INVALID;
+                }
+            case 0xF000:
+                // The second switch inspects the 8 least significant bits
+                // Therefore we do `opcode & 0x00FF`
+                switch (opcode & 0x00FF) {
+                    case 0x0007: return Instructions.funcMOVED;
+                    case 0x000A: return Instructions.funcKEYD;
+                    case 0x0015: return Instructions.funcLOADD;
+                    case 0x0018: return Instructions.funcLOADS;
+                    case 0x001E: return Instructions.funcADDI;
+                    case 0x0029: return Instructions.funcLDSPR;
+                    case 0x0033: return Instructions.funcBCD;
+                    case 0x0055: return Instructions.funcSTOR;
+                    case 0x0065: return Instructions.funcREAD;
+                    default: return INVALID;
+                }
+            default:
+                return INVALID;
+        }
+    }
+
+    private static InstructionHandler decodeSuperChip(int opcode) {
+        switch (opcode & 0xF000) {
+            case 0x0000:
+                if ((opcode & 0xFFF0) == 0x00C0) {
+                    return SuperChipInstructions.funcSCD;
+                }
+                switch (opcode) {
+                    case 0x00FB: return SuperChipInstructions.funcSCR;
+                    case 0x00FC: return SuperChipInstructions.funcSCL;
+                    case 0x00FD: return SuperChipInstructions.funcEXIT;
+                    case 0x00FE: return SuperChipInstructions.funcLOW;
+                    case 0x00FF: return SuperChipInstructions.funcHIGH;
+                    default: return decode(opcode);
+                }
+            case 0xB000: return SuperChipInstructions.funcJUMPX;
+            case 0xD000: return SuperChipInstructions.funcDRAW;
+            case 0xF000:
+                switch (opcode & 0x00FF) {
+                    case 0x0030: return SuperChipInstructions.funcLDHSPR;
+                    // The original only had 8 flags
+                    case 0x0075: return (opcode & 0x0800) == 0 ? SuperChipInstructions.funcSTRFL : INVALID;
+                    case 0x0085: return (opcode & 0x0800) == 0 ? SuperChipInstructions.funcLDFL : INVALID;
+                    default: return decode(opcode);
+                }
+            default:
+                return decode(opcode);
+        }
+    }
+
+    private static InstructionHandler decodeXoChip(int opcode) {
+        switch (opcode & 0xF000) {
+            case 0x0000:
+                if (opcode == 0x00E0) {
+                    return XoChipInstructions.funcCLR;
+                }
+                if ((opcode & 0xFFF0) == 0x00D0) {
+                    return XoChipInstructions.funcSCU;
+                }
+                return decodeSuperChip(opcode);
+            case 0x3000: return XoChipInstructions.funcSKE;
+            case 0x4000: return XoChipInstructions.funcSKNE;
+            case 0x5000:
+                switch (opcode & 0x000F) {
+                    case 0x0000: return XoChipInstructions.funcSKRE;
+                    case 0x0002: return XoChipInstructions.funcSTRR;
+                    case 0x0003: return XoChipInstructions.funcLDRR;
+                    default: return INVALID;
+                }
+            case 0x8000:
+                switch (opcode & 0x000F) {
+                    case 0x0006: return XoChipInstructions.funcSHR;
+                    case 0x000E: return XoChipInstructions.funcSHL;
+                    default: return decode(opcode);
+                }
+            case 0x9000: return (opcode & 0x000F) == 0 ? XoChipInstructions.funcSKRNE : INVALID;
+            // Jumps keep using V0
+            case 0xB000: return Instructions.funcJUMPI;
+            case 0xE000:
+                switch (opcode & 0x00FF) {
+                    case 0x009E: return XoChipInstructions.funcSKPR;
+                    case 0x00A1: return XoChipInstructions.funcSKUP;
+                    default: return INVALID;
+                }
+            case 0xF000:
+                if (opcode == 0xF000) {
+                    return XoChipInstructions.funcLOADL;
+                }
+                switch (opcode & 0x00FF) {
+                    case 0x0001: return XoChipInstructions.funcPLANE;
+                    case 0x0002: return (opcode & 0x0F00) == 0 ? XoChipInstructions.funcAUDIO : INVALID;
+                    case 0x003A: return XoChipInstructions.funcPITCH;
+                    case 0x0055: return XoChipInstructions.funcSTOR;
+                    case 0x0065: return XoChipInstructions.funcREAD;
+                    // All 16 registers fit in the flags
+                    case 0x0075: return SuperChipInstructions.funcSTRFL;
+                    case 0x0085: return SuperChipInstructions.funcLDFL;
+                    default: return decodeSuperChip(opcode);
+                }
+            default:
+                return decodeSuperChip(opcode);
+        }
+    }
+
+    private static final class SuperChipTable {
+
+        static final InstructionHandler[] HANDLERS = new InstructionHandler[0x10000];
+
+        static {
+            for (int opcode = 0; opcode < HANDLERS.length; opcode++) {
+                HANDLERS[opcode] = decodeSuperChip(opcode);
+            }
+        }
+    }
+
+    private static final class XoChipTable {
+
+        static final InstructionHandler[] HANDLERS = new InstructionHandler[0x10000];
+
+        static {
+            for (int opcode = 0; opcode < HANDLERS.length; opcode++) {
+                HANDLERS[opcode] = decodeXoChip(opcode);
+            }
+        }
+    }
+
+    /**
+     * Names every handler after its field, e.g. funcDRAW for Instructions and
+     * SuperChip.funcDRAW or XoChip.funcDRAW for the extended ones. Only profilers need
+     * this, so it is kept out of the way of the tables until the first lookup, which
+     * builds the tables of all variants.
+     */
+    private static final class Families {
+
+        static final String[] NAMES;
+
+        // Index into NAMES for every opcode, per variant
+        static final byte[][] FAMILIES = new byte[Variant.values().length][0x10000];
+
+        static {
+            Map<InstructionHandler, Integer> families = new IdentityHashMap<>();
+            List<String> names = new ArrayList<>();
+            addFamilies(Instructions.class, "", families, names);
+            addFamilies(SuperChipInstructions.class, "SuperChip.", families, names);
+            addFamilies(XoChipInstructions.class, "XoChip.", families, names);
+            families.put(INVALID, names.size());
+            names.add("INVALID");
+            NAMES = names.toArray(new String[0]);
+
+            for (Variant variant : Variant.values()) {
+                InstructionHandler[] handlers = handlers(variant);
+                for (int opcode = 0; opcode < handlers.length; opcode++) {
+                    FAMILIES[variant.ordinal()][opcode] = (byte) (int) families.get(handlers[opcode]);
+                }
+            }
+        }
+
+        private static void addFamilies(Class<?> instructions, String prefix, Map<InstructionHandler, Integer> families, List<String> names) {
+            for (Field field : instructions.getFields()) {
+                if (field.getType() == InstructionHandler.class && Modifier.isStatic(field.getModifiers())) {
+                    try {
+                        families.put((InstructionHandler) field.get(null), names.size());
+                    } catch (IllegalAccessException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    names.add(prefix + field.getName());
+                }
+            }
+        }
+    }
+}
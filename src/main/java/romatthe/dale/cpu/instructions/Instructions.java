@@ -1,33 +1,36 @@
 package romatthe.dale.cpu.instructions;
 
-import com.sun.org.apache.bcel.internal.generic.ConstantPushInstruction;
-import javafx.geometry.Side;
-import romatthe.dale.cpu.Cpu;
+/**
+ * The handlers of every Chip 8 instruction.
+ *
+ * None of them capture any state, everything they work on comes in through their
+ * arguments, so each is a single constant shared by every Cpu in the JVM.
+ */
+public final class Instructions {
 
-import java.util.Random;
-import java.util.function.BiFunction;
-
-public class Instructions {
+    private Instructions() {
+    }
 
     /**
      * This instruction is mostly ignored and used by few Roms
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcSYS = (cpu, op) -> SideEffect.NONE;
+    public static final InstructionHandler funcSYS = (cpu, op) -> SideEffect.NONE;
 
     /**
      * Clears the screen
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcCLR = (cpu, op) -> SideEffect.CLEAR_SCREEN;
+    public static final InstructionHandler funcCLR = (cpu, op) -> {
+        cpu.getDisplay().clear();
+
+        return SideEffect.CLEAR_SCREEN;
+    };
 
     /**
-     * Returns from a subroutine. Pop the current value in the stack pointer off of
-     * the stack, and set the program counter to the value popped.
+     * Returns from a subroutine. Pop the most recent return address off of the call
+     * stack, and set the program counter to it.
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcRTS = (cpu, op) -> {
-        cpu.setStackPointer(cpu.getStackPointer() - 1);
-        cpu.setProgramCounter(cpu.getMemory().read(cpu.getStackPointer()) << 8);
-        cpu.setStackPointer(cpu.getStackPointer() - 1);
-        cpu.setProgramCounter(cpu.getProgramCounter() + cpu.getMemory().read(cpu.getStackPointer()));
+    public static final InstructionHandler funcRTS = (cpu, op) -> {
+        cpu.setProgramCounter(cpu.pop());
 
         return SideEffect.NONE;
     };
@@ -35,7 +38,7 @@ public class Instructions {
     /**
      * Sets the Program Counter to the address defined by operand NNN
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcJUMP = (cpu, op) -> {
+    public static final InstructionHandler funcJUMP = (cpu, op) -> {
         cpu.setProgramCounter(op & 0x0FFF);
 
         return SideEffect.NONE;
@@ -45,11 +48,8 @@ public class Instructions {
      * Call routine at address defined by operand NNN. Save the current Program Counter on the
      * stack, then set the Program Counter to the address defined by operand NNN
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcCALL = (cpu, op) -> {
-        cpu.getMemory().write(cpu.getStackPointer(), cpu.getProgramCounter() & 0x00FF);
-        cpu.setStackPointer(cpu.getStackPointer() + 1);
-        cpu.getMemory().write(cpu.getStackPointer(), (cpu.getProgramCounter() & 0xFF00) >> 8);
-        cpu.setStackPointer(cpu.getStackPointer() + 1);
+    public static final InstructionHandler funcCALL = (cpu, op) -> {
+        cpu.push(cpu.getProgramCounter());
         cpu.setProgramCounter(op & 0x0FFF);
 
         return SideEffect.NONE;
@@ -59,7 +59,7 @@ public class Instructions {
      * Skip next instruction if register defined by operand S equals value
      * defined by operand NN
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcSKE = (cpu, op) -> {
+    public static final InstructionHandler funcSKE = (cpu, op) -> {
         if (cpu.getRegisterAt((op & 0x0F00) >> 8) == (op & 0x00FF)) {
             cpu.setProgramCounter(cpu.getProgramCounter() + 2);
         }
@@ -71,7 +71,7 @@ public class Instructions {
      * Skip next instruction if register defined by operand S does not equal
      * value defined by operand NN
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcSKNE = (cpu, op) -> {
+    public static final InstructionHandler funcSKNE = (cpu, op) -> {
         if (cpu.getRegisterAt((op & 0x0F00) >> 8) != (op & 0x00FF)) {
             cpu.setProgramCounter(cpu.getProgramCounter() + 2);
         }
@@ -83,7 +83,7 @@ public class Instructions {
      * Skip next instruction if register defined by operand S equals value
      * defined by operand T
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcSKRE = (cpu, op) -> {
+    public static final InstructionHandler funcSKRE = (cpu, op) -> {
         if (cpu.getRegisterAt((op & 0x0F00) >> 8) == cpu.getRegisterAt((op & 0x0F0) >> 4)) {
             cpu.setProgramCounter(cpu.getProgramCounter() + 2);
         }
@@ -94,7 +94,7 @@ public class Instructions {
     /**
      * Load register defined by operand s with value defined by operand nn
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcLOAD = (cpu, op) -> {
+    public static final InstructionHandler funcLOAD = (cpu, op) -> {
         cpu.setRegisterAt((op & 0x0F00) >> 8, (short) (op & 0x00FF));
 
         return SideEffect.NONE;
@@ -103,7 +103,7 @@ public class Instructions {
     /**
      * Add value defined by operand nn to register defined by operand s
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcADD = (cpu, op) -> {
+    public static final InstructionHandler funcADD = (cpu, op) -> {
         int registerValue = cpu.getRegisterAt((op & 0x0F00) >> 8);
         short newRegisterValue = (short) (registerValue + (op & 0x00FF));
         newRegisterValue = (newRegisterValue < 256) ? (short) newRegisterValue : (short) (newRegisterValue - 256);
@@ -114,11 +114,11 @@ public class Instructions {
     };
 
     /**
-     * Move value from register defined by operand s to register defined by operand t
+     * Move value from register defined by operand t to register defined by operand s
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcMOVE = (cpu, op) -> {
-        int registerSource = (op & 0x0F00) >> 8;
-        int registerTarget = (op & 0x00F0) >> 4;
+    public static final InstructionHandler funcMOVE = (cpu, op) -> {
+        int registerTarget = (op & 0x0F00) >> 8;
+        int registerSource = (op & 0x00F0) >> 4;
         short valueToMove = cpu.getRegisterAt(registerSource);
         cpu.setRegisterAt(registerTarget, valueToMove);
 
@@ -127,11 +127,11 @@ public class Instructions {
 
     /**
      * Perform logical OR on register defined by operand s and register defined by operand t
-     * and store in register defined by operand t
+     * and store in register defined by operand s
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcOR = (cpu, op) -> {
-        int registerSource = (op & 0x0F00) >> 8;
-        int registerTarget = (op & 0x00F0) >> 4;
+    public static final InstructionHandler funcOR = (cpu, op) -> {
+        int registerTarget = (op & 0x0F00) >> 8;
+        int registerSource = (op & 0x00F0) >> 4;
         short valueToMove = (short) (cpu.getRegisterAt(registerSource) | cpu.getRegisterAt(registerTarget));
         cpu.setRegisterAt(registerTarget, valueToMove);
 
@@ -140,11 +140,11 @@ public class Instructions {
 
     /**
      * Perform logical AND on register defined by operand s and register defined by operand t
-     * and store in register defined by operand t
+     * and store in register defined by operand s
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcAND = (cpu, op) -> {
-        int registerSource = (op & 0x0F00) >> 8;
-        int registerTarget = (op & 0x00F0) >> 4;
+    public static final InstructionHandler funcAND = (cpu, op) -> {
+        int registerTarget = (op & 0x0F00) >> 8;
+        int registerSource = (op & 0x00F0) >> 4;
         short valueToMove = (short) (cpu.getRegisterAt(registerSource) & cpu.getRegisterAt(registerTarget));
         cpu.setRegisterAt(registerTarget, valueToMove);
 
@@ -153,11 +153,11 @@ public class Instructions {
 
     /**
      * Perform logical XOR on register defined by operand s and register defined by operand t
-     * and store in register defined by operand t
+     * and store in register defined by operand s
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcXOR = (cpu, op) -> {
-        int registerSource = (op & 0x0F00) >> 8;
-        int registerTarget = (op & 0x00F0) >> 4;
+    public static final InstructionHandler funcXOR = (cpu, op) -> {
+        int registerTarget = (op & 0x0F00) >> 8;
+        int registerSource = (op & 0x00F0) >> 4;
         short valueToMove = (short) (cpu.getRegisterAt(registerSource) ^ cpu.getRegisterAt(registerTarget));
         cpu.setRegisterAt(registerTarget, valueToMove);
 
@@ -168,9 +168,9 @@ public class Instructions {
      * Add value in register defined by operand s and value in register defined by operand t
      * and store in register defined by operand s. Set register F on carry.
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcADDR = (cpu, op) -> {
-        int registerSource = (op & 0x0F00) >> 8;
-        int registerTarget = (op & 0x00F0) >> 4;
+    public static final InstructionHandler funcADDR = (cpu, op) -> {
+        int registerTarget = (op & 0x0F00) >> 8;
+        int registerSource = (op & 0x00F0) >> 4;
         short valueToMove = (short) (cpu.getRegisterAt(registerSource) + cpu.getRegisterAt(registerTarget));
 
         if (valueToMove > 255) {
@@ -185,17 +185,40 @@ public class Instructions {
         return SideEffect.NONE;
     };
 
+    /**
+     * Subtract value in register defined by operand t from value in register defined by operand s
+     * and store in register defined by operand s. If a borrow is NOT generated,
+     * set a carry flag in register F.
+     */
+    public static final InstructionHandler funcSUB = (cpu, op) -> {
+        int registerTarget = (op & 0x0F00) >> 8;
+        int registerSource = (op & 0x00F0) >> 4;
+
+        int resultValue;
+        if (cpu.getRegisterAt(registerTarget) >= cpu.getRegisterAt(registerSource)) {
+            resultValue = cpu.getRegisterAt(registerTarget) - cpu.getRegisterAt(registerSource);
+            cpu.setRegisterAt(0xF, (short) 1);
+        } else {
+            resultValue = 256 + cpu.getRegisterAt(registerTarget) - cpu.getRegisterAt(registerSource);
+            cpu.setRegisterAt(0xF, (short) 0);
+        }
+
+        cpu.setRegisterAt(registerTarget, (short) resultValue);
+
+        return SideEffect.NONE;
+    };
+
     /**
      * Subtract value in register defined by operand s from value in register defined by operand t
      * and store in register defined by operand s. If a borrow is NOT generated,
      * set a carry flag in register F.
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcSUB = (cpu, op) -> {
-        int registerSource = (op & 0x0F00) >> 8;
-        int registerTarget = (op & 0x00F0) >> 4;
+    public static final InstructionHandler funcSUBN = (cpu, op) -> {
+        int registerTarget = (op & 0x0F00) >> 8;
+        int registerSource = (op & 0x00F0) >> 4;
 
         int resultValue;
-        if (cpu.getRegisterAt(registerSource) > cpu.getRegisterAt(registerTarget)) {
+        if (cpu.getRegisterAt(registerSource) >= cpu.getRegisterAt(registerTarget)) {
             resultValue = cpu.getRegisterAt(registerSource) - cpu.getRegisterAt(registerTarget);
             cpu.setRegisterAt(0xF, (short) 1);
         } else {
@@ -211,7 +234,7 @@ public class Instructions {
     /**
      * Shift bits in register s 1 bit to the right. Bit 0 shifts to register F
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcSHR = (cpu, op) -> {
+    public static final InstructionHandler funcSHR = (cpu, op) -> {
         int register = (op & 0x0F00) >> 8;
         cpu.setRegisterAt(0xF, (short) (cpu.getRegisterAt(register) & 0x1));
         cpu.setRegisterAt(register, (short) (cpu.getRegisterAt(register) >> 1));
@@ -222,10 +245,10 @@ public class Instructions {
     /**
      * Shift bits in register s 1 bit to the left. Bit 7 shifts to register F
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcSHL = (cpu, op) -> {
+    public static final InstructionHandler funcSHL = (cpu, op) -> {
         int register = (op & 0x0F00) >> 8;
-        cpu.setRegisterAt(0xF, (short)((cpu.getRegisterAt(register) & 0x80) >> 8));
-        cpu.setRegisterAt(register, (short) (cpu.getRegisterAt(register) << 1));
+        cpu.setRegisterAt(0xF, (short)((cpu.getRegisterAt(register) & 0x80) >> 7));
+        cpu.setRegisterAt(register, (short) ((cpu.getRegisterAt(register) << 1) & 0xFF));
 
         return SideEffect.NONE;
     };
@@ -234,7 +257,7 @@ public class Instructions {
      * Skip next instruction if register defined by operand s is not not equal to
      * register defined by operand t
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcSKRNE = (cpu, op) -> {
+    public static final InstructionHandler funcSKRNE = (cpu, op) -> {
         int registerS = (op & 0x0F00) >> 8;
         int registerT = (op & 0x00F0) >> 4;
 
@@ -248,17 +271,17 @@ public class Instructions {
     /**
      * Load index with value defined by operand nnn
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcLOADI = (cpu, op) -> {
+    public static final InstructionHandler funcLOADI = (cpu, op) -> {
         cpu.setIndexRegisterI((short)(op & 0x0FFF));
 
         return SideEffect.NONE;
     };
 
     /**
-     * Jump to address defined by operand nnn + index
+     * Jump to address defined by operand nnn + register 0
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcJUMPI = (cpu, op) -> {
-        cpu.setProgramCounter(cpu.getIndexRegisterI() + (op & 0x0FFF));
+    public static final InstructionHandler funcJUMPI = (cpu, op) -> {
+        cpu.setProgramCounter(cpu.getRegisterAt(0) + (op & 0x0FFF));
 
         return SideEffect.NONE;
     };
@@ -267,12 +290,10 @@ public class Instructions {
      * Generate random number between 0 and value defined by operand nn and store in
      * register defined by operand t
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcRAND = (cpu, op) -> {
-        Random random = new Random();
-
+    public static final InstructionHandler funcRAND = (cpu, op) -> {
         int targetRegister = (op & 0x0F00) >> 8;
         int maxValue = (op & 0x00FF);
-        cpu.setRegisterAt(targetRegister, (short)(maxValue & random.nextInt(256)));
+        cpu.setRegisterAt(targetRegister, (short)(maxValue & cpu.nextRandomByte()));
 
         return SideEffect.NONE;
     };
@@ -286,77 +307,65 @@ public class Instructions {
      * Each bit in the sprite byte determines whether a pixel is turned on (1) or turned off (0).
      * If writing a pixel to a location causes that pixel to be turned off, then register F will be set to 1.
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcDRAW = (cpu, op) -> {
+    public static final InstructionHandler funcDRAW = (cpu, op) -> {
         // Get the x and y coordinates
         int xRegister = (op & 0x0F00) >> 8;
         int yRegister = (op & 0x00F0) >> 4;
         int xPos = cpu.getRegisterAt(xRegister);
         int yPos = cpu.getRegisterAt(yRegister);
-        short byteCount = (short)(op & 0xF);
-
-        cpu.setRegisterAt(0xF, (short)0);
-
-        // The sprite byte array has size n
-        byte[] sprite = new byte[byteCount];
+        int byteCount = op & 0xF;
 
-        // Loop over each byte (representing a row) of the sprite
-        for (int i = 0; i < byteCount; i++) {
-            byte pixel = (byte)cpu.getMemory().read(cpu.getIndexRegisterI() + i);
+        boolean collision = cpu.getDisplay().draw(cpu.getMemory(), cpu.getIndexRegisterI(), xPos, yPos, byteCount);
+        cpu.setRegisterAt(0xF, (short)(collision ? 1 : 0));
 
-            // Loop over the 8 bits of the row
-            for(int xline = 0; xline < 8; xline++) {
-                // TODO
-            }
-        }
-
-        /*
-        // Read the sprite to draw
-        for (int yIndex = 0; yIndex < (op & 0xF); yIndex++) {
-            short colorByte = memory.read(index + yIndex);
-            int yCoord = yPos + yIndex;
-            yCoord = yCoord % mScreen.getHeight();
-
-            int mask = 0x80;
-
-            for (int xIndex = 0; xIndex < 8; xIndex++) {
-                int xCoord = xPos + xIndex;
-                xCoord = xCoord % mScreen.getWidth();
+        return SideEffect.DRAW;
+    };
 
-                boolean turnOn = (colorByte & mask) > 0;
-                boolean currentOn = mScreen.pixelOn(xCoord, yCoord);
+    /**
+     * Move delay timer value into register defined by operand t
+     */
+    public static final InstructionHandler funcMOVED = (cpu, op) -> {
+        int targetRegister = (op & 0x0F00) >> 8;
+        cpu.setRegisterAt(targetRegister, cpu.getDelayRegister());
 
-                if (turnOn && currentOn) {
-                    v[0xF] |= 1;
-                    turnOn = false;
-                } else if (!turnOn && currentOn) {
-                    turnOn = true;
-                }
+        return SideEffect.NONE;
+    };
 
-                mScreen.drawPixel(xCoord, yCoord, turnOn);
-                mask = mask >> 1;
-            }
+    /**
+     * Skip next instruction if the key defined by the value in register s is pressed
+     */
+    public static final InstructionHandler funcSKPR = (cpu, op) -> {
+        if (cpu.getKeypad().isPressed(cpu.getRegisterAt((op & 0x0F00) >> 8))) {
+            cpu.setProgramCounter(cpu.getProgramCounter() + 2);
         }
-        lastOpDesc = "DRAW V" + toHex(xRegister, 1) + ", V" + toHex(yRegister, 1);
-        */
 
-        return SideEffect.DRAW;
+        return SideEffect.NONE;
     };
 
     /**
-     * Move delay timer value into register defined by operand t
+     * Skip next instruction if the key defined by the value in register s is not pressed
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcMOVED = (cpu, op) -> {
-        int targetRegister = (op & 0x0F00) >> 8;
-        cpu.setRegisterAt(targetRegister, cpu.getDelayRegister());
+    public static final InstructionHandler funcSKUP = (cpu, op) -> {
+        if (!cpu.getKeypad().isPressed(cpu.getRegisterAt((op & 0x0F00) >> 8))) {
+            cpu.setProgramCounter(cpu.getProgramCounter() + 2);
+        }
 
         return SideEffect.NONE;
     };
 
     /**
-     * Wait for keypress and store in register defined by operand t
+     * Wait for keypress and store in register defined by operand t. While no key is
+     * pressed the instruction is simply executed again, so timers keep running.
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcKEYD = (cpu, op) -> {
-        // TODO
+    public static final InstructionHandler funcKEYD = (cpu, op) -> {
+        int key = cpu.getKeypad().firstPressed();
+        if (key < 0) {
+            cpu.getKeypad().setWaiting(true);
+            cpu.setProgramCounter(cpu.getProgramCounter() - 2);
+        } else {
+            cpu.getKeypad().setWaiting(false);
+            cpu.setRegisterAt((op & 0x0F00) >> 8, (short) key);
+        }
 
         return SideEffect.NONE;
     };
@@ -364,7 +373,7 @@ public class Instructions {
     /**
      * Load value in register defined by operand s into delay register
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcLOADD = (cpu, op) -> {
+    public static final InstructionHandler funcLOADD = (cpu, op) -> {
         int sourceRegister = (op & 0x0F00) >> 8;
         cpu.setDelayRegister(cpu.getRegisterAt(sourceRegister));
 
@@ -374,7 +383,7 @@ public class Instructions {
     /**
      * Load value in register defined by operand s into sound register
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcLOADS = (cpu, op) -> {
+    public static final InstructionHandler funcLOADS = (cpu, op) -> {
         int sourceRegister = (op & 0x0F00) >> 8;
         cpu.setSoundRegister(cpu.getRegisterAt(sourceRegister));
 
@@ -384,7 +393,7 @@ public class Instructions {
     /**
      * Add value in register defined by operand s to index
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcADDI = (cpu, op) -> {
+    public static final InstructionHandler funcADDI = (cpu, op) -> {
         int sourceRegister = (op & 0x0F00) >> 8;
         cpu.setIndexRegisterI((short)(cpu.getIndexRegisterI() + cpu.getRegisterAt(sourceRegister)));
 
@@ -394,7 +403,7 @@ public class Instructions {
     /**
      * Load index with sprite from register defined by operand s
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcLDSPR = (cpu, op) -> {
+    public static final InstructionHandler funcLDSPR = (cpu, op) -> {
         int sourceRegister = (op & 0x0F00) >> 8;
         cpu.setIndexRegisterI((short)(cpu.getRegisterAt(sourceRegister) * 5));
 
@@ -412,7 +421,7 @@ public class Instructions {
      * ones     -> memory[index + 2]
      *
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcBCD = (cpu, op) -> {
+    public static final InstructionHandler funcBCD = (cpu, op) -> {
         int sourceRegister = (op & 0x0F00) >> 8;
         int bcd = cpu.getRegisterAt(sourceRegister);
         cpu.getMemory().write(cpu.getIndexRegisterI(), bcd / 100);
@@ -428,10 +437,24 @@ public class Instructions {
      * store. For example, to store all of the S registers, the source register
      * would contain the value 0xF.
      */
-    public BiFunction<Cpu, Integer, SideEffect> funcSTOR = (cpu, op) -> {
+    public static final InstructionHandler funcSTOR = (cpu, op) -> {
+        int numberOfRegisters = (op & 0x0F00) >> 8;
+        for (int i = 0; i <= numberOfRegisters; i++) {
+            cpu.getMemory().write(cpu.getIndexRegisterI() + i, cpu.getRegisterAt(i));
+        }
+
+        return SideEffect.NONE;
+    };
+
+    /**
+     * Load all of the S registers from the memory pointed to by the index
+     * register. The source register contains the number of S registers to
+     * load, mirroring funcSTOR.
+     */
+    public static final InstructionHandler funcREAD = (cpu, op) -> {
         int numberOfRegisters = (op & 0x0F00) >> 8;
         for (int i = 0; i <= numberOfRegisters; i++) {
-            cpu.getMemory().write(cpu.getRegisterAt(i), cpu.getIndexRegisterI() + i);
+            cpu.setRegisterAt(i, cpu.getMemory().read(cpu.getIndexRegisterI() + i));
         }
 
         return SideEffect.NONE;
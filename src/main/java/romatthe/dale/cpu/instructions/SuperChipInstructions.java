@@ -0,0 +1,128 @@
+package romatthe.dale.cpu.instructions;
+
+import romatthe.dale.cpu.Cpu;
+
+/**
+ * The handlers SUPER-CHIP adds to, or replaces in, the Chip 8 instruction set. XO-CHIP
+ * shares most of them.
+ *
+ * Like Instructions, none of them capture any state.
+ */
+public final class SuperChipInstructions {
+
+    private SuperChipInstructions() {
+    }
+
+    /**
+     * Scroll the screen down by the number of pixels defined by operand N
+     */
+    public static final InstructionHandler funcSCD = (cpu, op) -> {
+        cpu.getDisplay().scrollDown(op & 0x000F);
+
+        return SideEffect.DRAW;
+    };
+
+    /**
+     * Scroll the screen 4 pixels to the right
+     */
+    public static final InstructionHandler funcSCR = (cpu, op) -> {
+        cpu.getDisplay().scrollRight();
+
+        return SideEffect.DRAW;
+    };
+
+    /**
+     * Scroll the screen 4 pixels to the left
+     */
+    public static final InstructionHandler funcSCL = (cpu, op) -> {
+        cpu.getDisplay().scrollLeft();
+
+        return SideEffect.DRAW;
+    };
+
+    /**
+     * Exit the interpreter. The instruction is executed again and again, so the machine
+     * halts in place while timers and the host keep running.
+     */
+    public static final InstructionHandler funcEXIT = (cpu, op) -> {
+        cpu.setProgramCounter(cpu.getProgramCounter() - 2);
+
+        return SideEffect.NONE;
+    };
+
+    /**
+     * Switch to the 64x32 low resolution mode
+     */
+    public static final InstructionHandler funcLOW = (cpu, op) -> {
+        cpu.getDisplay().setHires(false);
+
+        return SideEffect.CLEAR_SCREEN;
+    };
+
+    /**
+     * Switch to the 128x64 high resolution mode
+     */
+    public static final InstructionHandler funcHIGH = (cpu, op) -> {
+        cpu.getDisplay().setHires(true);
+
+        return SideEffect.CLEAR_SCREEN;
+    };
+
+    /**
+     * Draw a sprite like funcDRAW, in the current resolution. With operand N 0 the sprite
+     * is 16x16 pixels.
+     */
+    public static final InstructionHandler funcDRAW = (cpu, op) -> {
+        int xPos = cpu.getRegisterAt((op & 0x0F00) >> 8);
+        int yPos = cpu.getRegisterAt((op & 0x00F0) >> 4);
+
+        boolean collision = cpu.getDisplay().drawSprite(cpu.getMemory(), cpu.getIndexRegisterI(), xPos, yPos, op & 0xF);
+        cpu.setRegisterAt(0xF, (short) (collision ? 1 : 0));
+
+        return SideEffect.DRAW;
+    };
+
+    /**
+     * Set the Program Counter to the address NNN plus the register defined by the high
+     * nibble of NNN, instead of V0
+     */
+    public static final InstructionHandler funcJUMPX = (cpu, op) -> {
+        cpu.setProgramCounter(cpu.getRegisterAt((op & 0x0F00) >> 8) + (op & 0x0FFF));
+
+        return SideEffect.NONE;
+    };
+
+    /**
+     * Load index with the large 8x10 digit from register defined by operand s
+     */
+    public static final InstructionHandler funcLDHSPR = (cpu, op) -> {
+        int digit = cpu.getRegisterAt((op & 0x0F00) >> 8) & 0xF;
+        cpu.setIndexRegisterI((short) (Cpu.LARGE_FONT_START + digit * 10));
+
+        return SideEffect.NONE;
+    };
+
+    /**
+     * Store registers V0 up to the register defined by operand s in the persistent flags
+     */
+    public static final InstructionHandler funcSTRFL = (cpu, op) -> {
+        int numberOfRegisters = (op & 0x0F00) >> 8;
+        for (int i = 0; i <= numberOfRegisters; i++) {
+            cpu.setFlagAt(i, cpu.getRegisterAt(i));
+        }
+
+        return SideEffect.NONE;
+    };
+
+    /**
+     * Load registers V0 up to the register defined by operand s from the persistent flags
+     */
+    public static final InstructionHandler funcLDFL = (cpu, op) -> {
+        int numberOfRegisters = (op & 0x0F00) >> 8;
+        for (int i = 0; i <= numberOfRegisters; i++) {
+            cpu.setRegisterAt(i, cpu.getFlagAt(i));
+        }
+
+        return SideEffect.NONE;
+    };
+}
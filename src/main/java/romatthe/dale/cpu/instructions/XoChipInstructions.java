@@ -0,0 +1,245 @@
+package romatthe.dale.cpu.instructions;
+
+import romatthe.dale.cpu.Cpu;
+import romatthe.dale.cpu.DecodeCache;
+import romatthe.dale.cpu.Memory;
+
+/**
+ * The handlers XO-CHIP adds to, or replaces in, the SUPER-CHIP instruction set.
+ *
+ * F000 NNNN is the one instruction of 4 bytes, so every skip has to look at the opcode
+ * it skips and step over the whole of it. The plain skips of Instructions never pay for
+ * that check, a machine only gets these when it is an XO-CHIP.
+ *
+ * Like Instructions, none of them capture any state.
+ */
+public final class XoChipInstructions {
+
+    private XoChipInstructions() {
+    }
+
+    /**
+     * Clears the selected planes
+     */
+    public static final InstructionHandler funcCLR = (cpu, op) -> {
+        cpu.getDisplay().clearPlanes();
+
+        return SideEffect.CLEAR_SCREEN;
+    };
+
+    /**
+     * Scroll the selected planes up by the number of pixels defined by operand N
+     */
+    public static final InstructionHandler funcSCU = (cpu, op) -> {
+        cpu.getDisplay().scrollUp(op & 0x000F);
+
+        return SideEffect.DRAW;
+    };
+
+    /**
+     * Skip next instruction if register defined by operand S equals value
+     * defined by operand NN
+     */
+    public static final InstructionHandler funcSKE = (cpu, op) -> {
+        if (cpu.getRegisterAt((op & 0x0F00) >> 8) == (op & 0x00FF)) {
+            skip(cpu);
+        }
+
+        return SideEffect.NONE;
+    };
+
+    /**
+     * Skip next instruction if register defined by operand S does not equal
+     * value defined by operand NN
+     */
+    public static final InstructionHandler funcSKNE = (cpu, op) -> {
+        if (cpu.getRegisterAt((op & 0x0F00) >> 8) != (op & 0x00FF)) {
+            skip(cpu);
+        }
+
+        return SideEffect.NONE;
+    };
+
+    /**
+     * Skip next instruction if register defined by operand S equals value
+     * defined by operand T
+     */
+    public static final InstructionHandler funcSKRE = (cpu, op) -> {
+        if (cpu.getRegisterAt((op & 0x0F00) >> 8) == cpu.getRegisterAt((op & 0x0F0) >> 4)) {
+            skip(cpu);
+        }
+
+        return SideEffect.NONE;
+    };
+
+    /**
+     * Skip next instruction if register defined by operand s is not equal to
+     * register defined by operand t
+     */
+    public static final InstructionHandler funcSKRNE = (cpu, op) -> {
+        if (cpu.getRegisterAt((op & 0x0F00) >> 8) != cpu.getRegisterAt((op & 0x00F0) >> 4)) {
+            skip(cpu);
+        }
+
+        return SideEffect.NONE;
+    };
+
+    /**
+     * Skip next instruction if the key defined by the value in register s is pressed
+     */
+    public static final InstructionHandler funcSKPR = (cpu, op) -> {
+        if (cpu.getKeypad().isPressed(cpu.getRegisterAt((op & 0x0F00) >> 8))) {
+            skip(cpu);
+        }
+
+        return SideEffect.NONE;
+    };
+
+    /**
+     * Skip next instruction if the key defined by the value in register s is not pressed
+     */
+    public static final InstructionHandler funcSKUP = (cpu, op) -> {
+        if (!cpu.getKeypad().isPressed(cpu.getRegisterAt((op & 0x0F00) >> 8))) {
+            skip(cpu);
+        }
+
+        return SideEffect.NONE;
+    };
+
+    /**
+     * Shift register t 1 bit to the right into register s. Bit 0 shifts to register F,
+     * which is written last.
+     */
+    public static final InstructionHandler funcSHR = (cpu, op) -> {
+        int source = cpu.getRegisterAt((op & 0x00F0) >> 4);
+        cpu.setRegisterAt((op & 0x0F00) >> 8, (short) (source >> 1));
+        cpu.setRegisterAt(0xF, (short) (source & 0x1));
+
+        return SideEffect.NONE;
+    };
+
+    /**
+     * Shift register t 1 bit to the left into register s. Bit 7 shifts to register F,
+     * which is written last.
+     */
+    public static final InstructionHandler funcSHL = (cpu, op) -> {
+        int source = cpu.getRegisterAt((op & 0x00F0) >> 4);
+        cpu.setRegisterAt((op & 0x0F00) >> 8, (short) ((source << 1) & 0xFF));
+        cpu.setRegisterAt(0xF, (short) ((source & 0x80) >> 7));
+
+        return SideEffect.NONE;
+    };
+
+    /**
+     * Store the registers s up to and including t, in either direction, in the memory
+     * pointed to by the index register, leaving the index as it is
+     */
+    public static final InstructionHandler funcSTRR = (cpu, op) -> {
+        int first = (op & 0x0F00) >> 8;
+        int last = (op & 0x00F0) >> 4;
+        int direction = first <= last ? 1 : -1;
+        for (int i = 0; i <= Math.abs(last - first); i++) {
+            cpu.getMemory().write(cpu.getIndexRegisterI() + i, cpu.getRegisterAt(first + i * direction));
+        }
+
+        return SideEffect.NONE;
+    };
+
+    /**
+     * Load the registers s up to and including t, in either direction, from the memory
+     * pointed to by the index register, leaving the index as it is
+     */
+    public static final InstructionHandler funcLDRR = (cpu, op) -> {
+        int first = (op & 0x0F00) >> 8;
+        int last = (op & 0x00F0) >> 4;
+        int direction = first <= last ? 1 : -1;
+        for (int i = 0; i <= Math.abs(last - first); i++) {
+            cpu.setRegisterAt(first + i * direction, cpu.getMemory().read(cpu.getIndexRegisterI() + i));
+        }
+
+        return SideEffect.NONE;
+    };
+
+    /**
+     * Load index with the 16-bit address in the 2 bytes following the opcode, and skip
+     * over them
+     */
+    public static final InstructionHandler funcLOADL = (cpu, op) -> {
+        int address = cpu.getProgramCounter();
+        cpu.setIndexRegisterI((short) opcodeAt(cpu, address));
+        cpu.setProgramCounter(address + 2);
+
+        return SideEffect.NONE;
+    };
+
+    /**
+     * Select the bitplanes defined by operand s for drawing, clearing and scrolling
+     */
+    public static final InstructionHandler funcPLANE = (cpu, op) -> {
+        cpu.getDisplay().setSelectedPlanes((op & 0x0F00) >> 8);
+
+        return SideEffect.NONE;
+    };
+
+    /**
+     * Load the 16 byte audio pattern from the memory pointed to by the index register
+     */
+    public static final InstructionHandler funcAUDIO = (cpu, op) -> {
+        Memory memory = cpu.getMemory();
+        for (int i = 0; i < Cpu.AUDIO_PATTERN_SIZE; i++) {
+            cpu.setAudioPatternAt(i, memory.read(cpu.getIndexRegisterI() + i));
+        }
+
+        return SideEffect.NONE;
+    };
+
+    /**
+     * Load value in register defined by operand s into the pitch register
+     */
+    public static final InstructionHandler funcPITCH = (cpu, op) -> {
+        cpu.setPitch(cpu.getRegisterAt((op & 0x0F00) >> 8));
+
+        return SideEffect.NONE;
+    };
+
+    /**
+     * Store registers like funcSTOR, then advance the index past them
+     */
+    public static final InstructionHandler funcSTOR = (cpu, op) -> {
+        int numberOfRegisters = (op & 0x0F00) >> 8;
+        for (int i = 0; i <= numberOfRegisters; i++) {
+            cpu.getMemory().write(cpu.getIndexRegisterI() + i, cpu.getRegisterAt(i));
+        }
+        cpu.setIndexRegisterI((short) (cpu.getIndexRegisterI() + numberOfRegisters + 1));
+
+        return SideEffect.NONE;
+    };
+
+    /**
+     * Load registers like funcREAD, then advance the index past them
+     */
+    public static final InstructionHandler funcREAD = (cpu, op) -> {
+        int numberOfRegisters = (op & 0x0F00) >> 8;
+        for (int i = 0; i <= numberOfRegisters; i++) {
+            cpu.setRegisterAt(i, cpu.getMemory().read(cpu.getIndexRegisterI() + i));
+        }
+        cpu.setIndexRegisterI((short) (cpu.getIndexRegisterI() + numberOfRegisters + 1));
+
+        return SideEffect.NONE;
+    };
+
+    // Skips the next instruction, which is 4 bytes long when it is F000 NNNN
+    private static void skip(Cpu cpu) {
+        int address = cpu.getProgramCounter();
+        cpu.setProgramCounter(address + (opcodeAt(cpu, address) == 0xF000 ? 4 : 2));
+    }
+
+    // Reads through the decode cache like an opcode fetch, so it is no memory access
+    // as far as a debugger watching memory is concerned
+    private static int opcodeAt(Cpu cpu, int address) {
+        DecodeCache decodeCache = cpu.getDecodeCache();
+        decodeCache.handlerAt(address);
+
+        return decodeCache.opcodeAt(address);
+    }
+}
@@ -0,0 +1,16 @@
+package romatthe.dale.cpu.jit;
+
+/**
+ * Defines the classes generated for compiled blocks. Each Recompiler owns one loader,
+ * so all of its blocks can be unloaded together once the Recompiler is unreachable.
+ */
+final class BlockClassLoader extends ClassLoader {
+
+    BlockClassLoader() {
+        super(BlockClassLoader.class.getClassLoader());
+    }
+
+    Class<?> define(String name, byte[] bytecode) {
+        return this.defineClass(name, bytecode, 0, bytecode.length);
+    }
+}
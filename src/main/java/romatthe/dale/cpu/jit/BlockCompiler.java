@@ -0,0 +1,505 @@
+package romatthe.dale.cpu.jit;
+
+import romatthe.dale.cpu.Instruction;
+import romatthe.dale.cpu.Memory;
+
+import java.util.Arrays;
+
+import static romatthe.dale.cpu.jit.ClassFileWriter.*;
+
+/**
+ * Recompiles straight-line runs of Chip 8 instructions into JVM classes.
+ *
+ * A block starts at a given address and extends over every instruction which only
+ * touches the register file (6XNN, 7XNN, 8XYn, ANNN and the FX timer and index
+ * instructions). It ends after the first jump or skip (1NNN, BNNN, 3XNN, 4XNN,
+ * 5XY0, 9XY0), which is compiled into a branch-free update of the program counter,
+ * or after a call or return (2NNN, 00EE), which go straight to the Cpu call stack,
+ * or right before any instruction which touches memory, the screen or the keypad.
+ * Those are left to the interpreter.
+ *
+ * A call to a leaf subroutine, one that is straight-line code ending in 00EE, does not end
+ * the block. The subroutine is compiled into the block at the call, with its push and pop,
+ * and the block carries on at the return address. The pair of blocks before and after the
+ * call is thereby linked into one, with no trip through the dispatcher in between. A block
+ * never pushes more than one return address at a time, so Recompiler only runs it when
+ * the call stack has room for one more.
+ *
+ * The generated code copies the registers it uses into JVM locals on entry and back
+ * on exit, so HotSpot is free to keep them in machine registers for the whole block.
+ */
+public final class BlockCompiler {
+
+    /**
+     * Upper bound on the number of instructions in a single block
+     */
+    public static final int MAX_BLOCK_INSTRUCTIONS = 64;
+
+    private static final String CPU = "romatthe/dale/cpu/Cpu";
+    private static final String BLOCK = "romatthe/dale/cpu/jit/CompiledBlock";
+
+    // Local variable slots: 0 is the block, 1 the Cpu, 2-17 V0-VF
+    private static final int I_SLOT = 18;
+    private static final int TMP_SLOT = 19;
+    private static final int MAX_LOCALS = 20;
+    private static final int MAX_STACK = 6;
+
+    // Pseudo opcodes in the sequence of an inlined call: push the return address in the
+    // low bits, and pop it again
+    private static final int PUSH = 0x10000;
+    private static final int POP_RETURN = 0x20000;
+
+    private static final int STOP = 0;
+    private static final int STRAIGHT = 1;
+    private static final int TERMINATOR = 2;
+
+    private final BlockClassLoader classLoader = new BlockClassLoader();
+    private int blockCount = 0;
+
+    /**
+     * Returns the address right after the last instruction of the block starting at the
+     * given address. If nothing can be compiled there, this is the start address itself.
+     */
+    public int scan(Memory memory, int start) {
+        int address = start;
+        int instructions = 0;
+
+        while (instructions < MAX_BLOCK_INSTRUCTIONS && address + 1 < memory.size()) {
+            int opcode = opcodeAt(memory, address);
+            int kind = classify(opcode);
+            if (kind == STOP) {
+                break;
+            }
+
+            address += 2;
+            instructions++;
+
+            if (kind == TERMINATOR) {
+                int leaf = (opcode & 0xF000) == 0x2000 ? this.leafEnd(memory, Instruction.nnn(opcode)) : -1;
+                int length = (leaf - Instruction.nnn(opcode)) / 2;
+                if (leaf < 0 || instructions + length >= MAX_BLOCK_INSTRUCTIONS) {
+                    break;
+                }
+                instructions += length;
+            }
+        }
+
+        return address;
+    }
+
+    /**
+     * Returns the start and end address of every leaf subroutine the block between start
+     * and end, as returned by scan(), compiles in, in pairs
+     */
+    public int[] inlinedCalls(Memory memory, int start, int end) {
+        int[] calls = new int[0];
+        for (int address = start; address < end - 2; address += 2) {
+            int opcode = opcodeAt(memory, address);
+            if ((opcode & 0xF000) == 0x2000) {
+                calls = Arrays.copyOf(calls, calls.length + 2);
+                calls[calls.length - 2] = Instruction.nnn(opcode);
+                calls[calls.length - 1] = this.leafEnd(memory, Instruction.nnn(opcode));
+            }
+        }
+
+        return calls;
+    }
+
+    /**
+     * Returns the address right after the 00EE which ends the leaf subroutine at the given
+     * address, or -1 if it is not one
+     */
+    private int leafEnd(Memory memory, int address) {
+        for (int i = 0; i < MAX_BLOCK_INSTRUCTIONS && address + 1 < memory.size(); i++) {
+            int opcode = opcodeAt(memory, address);
+            address += 2;
+            if (opcode == 0x00EE) {
+                return address;
+            }
+            if (classify(opcode) != STRAIGHT) {
+                return -1;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Compiles the instructions between start (inclusive) and end (exclusive), as
+     * returned by scan()
+     */
+    public CompiledBlock compile(Memory memory, int start, int end) {
+        // The opcodes in the order they execute, with inlined subroutines spliced in
+        int[] sequence = new int[MAX_BLOCK_INSTRUCTIONS];
+        int length = 0;
+        for (int address = start; address < end; address += 2) {
+            int opcode = opcodeAt(memory, address);
+            if ((opcode & 0xF000) == 0x2000 && address < end - 2) {
+                sequence[length++] = PUSH | ((address + 2) & (memory.size() - 1));
+                for (int callee = Instruction.nnn(opcode); ; callee += 2) {
+                    int calleeOpcode = opcodeAt(memory, callee);
+                    if (calleeOpcode == 0x00EE) {
+                        break;
+                    }
+                    sequence[length++] = calleeOpcode;
+                }
+                sequence[length++] = POP_RETURN;
+            } else {
+                sequence[length++] = opcode;
+            }
+        }
+
+        boolean[] used = new boolean[16];
+        boolean[] written = new boolean[16];
+        boolean usesI = false;
+        boolean writesI = false;
+
+        // First pass, find out which registers the block touches
+        for (int s = 0; s < length; s++) {
+            int opcode = sequence[s];
+            if (opcode > 0xFFFF) {
+                continue;
+            }
+            int x = Instruction.x(opcode);
+            int y = Instruction.y(opcode);
+
+            switch (opcode & 0xF000) {
+                case 0x3000: case 0x4000:
+                    used[x] = true;
+                    break;
+                case 0x5000: case 0x9000:
+                    used[x] = true;
+                    used[y] = true;
+                    break;
+                case 0x6000: case 0x7000:
+                    used[x] = written[x] = true;
+                    break;
+                case 0x8000:
+                    used[x] = written[x] = true;
+                    used[y] = true;
+                    if ((opcode & 0x000F) >= 0x4) {
+                        used[0xF] = written[0xF] = true;
+                    }
+                    break;
+                case 0xA000:
+                    usesI = writesI = true;
+                    break;
+                case 0xB000:
+                    used[0] = true;
+                    break;
+                case 0xF000:
+                    used[x] = true;
+                    switch (opcode & 0x00FF) {
+                        case 0x0007: written[x] = true; break;
+                        case 0x001E: case 0x0029: usesI = writesI = true; break;
+                    }
+                    break;
+            }
+        }
+
+        String className = String.format("romatthe/dale/cpu/jit/Block_%03X_%d", start, this.blockCount++);
+        ClassFileWriter writer = new ClassFileWriter(className, BLOCK);
+
+        // Load the register file into locals
+        for (int r = 0; r < 16; r++) {
+            if (used[r]) {
+                writer.op(ALOAD_1);
+                writer.push(r);
+                writer.invokeVirtual(CPU, "getRegisterAt", "(I)S");
+                writer.store(slot(r));
+            }
+        }
+        if (usesI) {
+            writer.op(ALOAD_1);
+            writer.invokeVirtual(CPU, "getIndexRegisterI", "()S");
+            writer.store(I_SLOT);
+        }
+
+        // Second pass, emit the instructions. The last one may be a terminator, which
+        // leaves the new program counter in TMP_SLOT
+        int nextPc = end;
+        boolean terminated = false;
+        int last = opcodeAt(memory, end - 2);
+        boolean linked = (last & 0xF000) == 0x2000 || last == 0x00EE;
+        for (int s = 0; s < length; s++) {
+            int opcode = sequence[s];
+            if ((opcode & PUSH) != 0) {
+                writer.op(ALOAD_1);
+                writer.push(opcode & 0xFFFF);
+                writer.invokeVirtual(CPU, "push", "(I)V");
+            } else if (opcode == POP_RETURN) {
+                writer.op(ALOAD_1);
+                writer.invokeVirtual(CPU, "pop", "()I");
+                writer.op(POP);
+            } else if (classify(opcode) != TERMINATOR) {
+                emitStraight(writer, opcode);
+            } else if (!linked) {
+                emitTerminator(writer, opcode, end - 2);
+                terminated = true;
+            }
+        }
+
+        // Write the changed registers back
+        for (int r = 0; r < 16; r++) {
+            if (written[r]) {
+                writer.op(ALOAD_1);
+                writer.push(r);
+                writer.load(slot(r));
+                writer.op(I2S);
+                writer.invokeVirtual(CPU, "setRegisterAt", "(IS)V");
+            }
+        }
+        if (writesI) {
+            writer.op(ALOAD_1);
+            writer.load(I_SLOT);
+            writer.op(I2S);
+            writer.invokeVirtual(CPU, "setIndexRegisterI", "(S)V");
+        }
+
+        // Calls and returns go last, so a stack overflow or underflow leaves the
+        // registers just as the interpreter would
+        writer.op(ALOAD_1);
+        if ((last & 0xF000) == 0x2000) {
+            writer.push(end & (memory.size() - 1));
+            writer.invokeVirtual(CPU, "push", "(I)V");
+            writer.op(ALOAD_1);
+            writer.push(Instruction.nnn(last));
+        } else if (last == 0x00EE) {
+            writer.op(ALOAD_1);
+            writer.invokeVirtual(CPU, "pop", "()I");
+        } else if (terminated) {
+            writer.load(TMP_SLOT);
+        } else {
+            writer.push(nextPc);
+        }
+        writer.invokeVirtual(CPU, "setProgramCounter", "(I)V");
+
+        // One entry per instruction, the inlined calls and returns included
+        writer.push(length);
+        writer.op(IRETURN);
+
+        byte[] bytecode = writer.toByteArray("execute", "(L" + CPU + ";)I", MAX_STACK, MAX_LOCALS);
+
+        try {
+            return (CompiledBlock) this.classLoader.define(className.replace('/', '.'), bytecode)
+                .getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not instantiate compiled block at " + start, e);
+        }
+    }
+
+    private static void emitStraight(ClassFileWriter writer, int opcode) {
+        int x = slot(Instruction.x(opcode));
+        int y = slot(Instruction.y(opcode));
+        int vf = slot(0xF);
+
+        switch (opcode & 0xF000) {
+            case 0x0000:
+                // SYS, ignored just like the interpreter does
+                break;
+            case 0x6000:
+                writer.push(Instruction.nn(opcode));
+                writer.store(x);
+                break;
+            case 0x7000:
+                writer.load(x);
+                writer.push(Instruction.nn(opcode));
+                writer.op(IADD);
+                writer.push(0xFF);
+                writer.op(IAND);
+                writer.store(x);
+                break;
+            case 0x8000:
+                switch (opcode & 0x000F) {
+                    case 0x0:
+                        writer.load(y);
+                        writer.store(x);
+                        break;
+                    case 0x1:
+                    case 0x2:
+                    case 0x3:
+                        writer.load(x);
+                        writer.load(y);
+                        writer.op((opcode & 0x000F) == 0x1 ? IOR : (opcode & 0x000F) == 0x2 ? IAND : IXOR);
+                        writer.store(x);
+                        break;
+                    case 0x4:
+                        // VF receives the carry, bit 8 of the sum
+                        writer.load(x);
+                        writer.load(y);
+                        writer.op(IADD);
+                        writer.store(TMP_SLOT);
+                        writer.load(TMP_SLOT);
+                        writer.push(8);
+                        writer.op(IUSHR);
+                        writer.store(vf);
+                        writer.load(TMP_SLOT);
+                        writer.push(0xFF);
+                        writer.op(IAND);
+                        writer.store(x);
+                        break;
+                    case 0x5:
+                    case 0x7:
+                        // VF receives NOT borrow, the inverted sign bit of the difference
+                        writer.load((opcode & 0x000F) == 0x5 ? x : y);
+                        writer.load((opcode & 0x000F) == 0x5 ? y : x);
+                        writer.op(ISUB);
+                        writer.store(TMP_SLOT);
+                        writer.load(TMP_SLOT);
+                        writer.push(31);
+                        writer.op(IUSHR);
+                        writer.push(1);
+                        writer.op(IXOR);
+                        writer.store(vf);
+                        writer.load(TMP_SLOT);
+                        writer.push(0xFF);
+                        writer.op(IAND);
+                        writer.store(x);
+                        break;
+                    case 0x6:
+                        writer.load(x);
+                        writer.push(1);
+                        writer.op(IAND);
+                        writer.store(vf);
+                        writer.load(x);
+                        writer.push(1);
+                        writer.op(ISHR);
+                        writer.store(x);
+                        break;
+                    case 0xE:
+                        writer.load(x);
+                        writer.push(0x80);
+                        writer.op(IAND);
+                        writer.push(7);
+                        writer.op(ISHR);
+                        writer.store(vf);
+                        writer.load(x);
+                        writer.push(1);
+                        writer.op(ISHL);
+                        writer.push(0xFF);
+                        writer.op(IAND);
+                        writer.store(x);
+                        break;
+                }
+                break;
+            case 0xA000:
+                writer.push(Instruction.nnn(opcode));
+                writer.store(I_SLOT);
+                break;
+            case 0xF000:
+                switch (opcode & 0x00FF) {
+                    case 0x07:
+                        writer.op(ALOAD_1);
+                        writer.invokeVirtual(CPU, "getDelayRegister", "()S");
+                        writer.store(x);
+                        break;
+                    case 0x15:
+                        writer.op(ALOAD_1);
+                        writer.load(x);
+                        writer.invokeVirtual(CPU, "setDelayRegister", "(S)V");
+                        break;
+                    case 0x18:
+                        writer.op(ALOAD_1);
+                        writer.load(x);
+                        writer.invokeVirtual(CPU, "setSoundRegister", "(S)V");
+                        break;
+                    case 0x1E:
+                        writer.load(I_SLOT);
+                        writer.load(x);
+                        writer.op(IADD);
+                        writer.op(I2S);
+                        writer.store(I_SLOT);
+                        break;
+                    case 0x29:
+                        writer.load(x);
+                        writer.push(5);
+                        writer.op(IMUL);
+                        writer.op(I2S);
+                        writer.store(I_SLOT);
+                        break;
+                }
+                break;
+        }
+    }
+
+    private static void emitTerminator(ClassFileWriter writer, int opcode, int address) {
+        int x = slot(Instruction.x(opcode));
+        int y = slot(Instruction.y(opcode));
+
+        switch (opcode & 0xF000) {
+            case 0x1000:
+                writer.push(Instruction.nnn(opcode));
+                break;
+            case 0xB000:
+                writer.load(slot(0));
+                writer.push(Instruction.nnn(opcode));
+                writer.op(IADD);
+                break;
+            case 0x3000:
+            case 0x4000:
+            case 0x5000:
+            case 0x9000:
+                // Without branches: equal is ((a ^ b) - 1) >>> 31, which is 1 only when a == b.
+                // 3XNN and 5XY0 skip on equal, 4XNN and 9XY0 skip on not equal.
+                boolean skipOnEqual = (opcode & 0xF000) == 0x3000 || (opcode & 0xF000) == 0x5000;
+                writer.push(skipOnEqual ? address + 2 : address + 4);
+                writer.load(x);
+                if ((opcode & 0xF000) == 0x3000 || (opcode & 0xF000) == 0x4000) {
+                    writer.push(Instruction.nn(opcode));
+                } else {
+                    writer.load(y);
+                }
+                writer.op(IXOR);
+                writer.push(1);
+                writer.op(ISUB);
+                writer.push(31);
+                writer.op(IUSHR);
+                writer.push(1);
+                writer.op(ISHL);
+                writer.op(skipOnEqual ? IADD : ISUB);
+                break;
+        }
+
+        writer.store(TMP_SLOT);
+    }
+
+    private static int classify(int opcode) {
+        switch (opcode & 0xF000) {
+            case 0x0000:
+                return opcode == 0x00EE ? TERMINATOR : opcode == 0x00E0 ? STOP : STRAIGHT;
+            case 0x1000:
+            case 0x2000:
+            case 0x3000:
+            case 0x4000:
+            case 0xB000:
+                return TERMINATOR;
+            case 0x5000:
+            case 0x9000:
+                return (opcode & 0x000F) == 0 ? TERMINATOR : STOP;
+            case 0x6000:
+            case 0x7000:
+            case 0xA000:
+                return STRAIGHT;
+            case 0x8000:
+                int n = opcode & 0x000F;
+                return (n <= 0x7 || n == 0xE) ? STRAIGHT : STOP;
+            case 0xF000:
+                switch (opcode & 0x00FF) {
+                    case 0x07: case 0x15: case 0x18: case 0x1E: case 0x29:
+                        return STRAIGHT;
+                    default:
+                        return STOP;
+                }
+            default:
+                return STOP;
+        }
+    }
+
+    private static int opcodeAt(Memory memory, int address) {
+        return ((memory.read(address) << 8) | (0x00FF & memory.read(address + 1))) & 0xFFFF;
+    }
+
+    private static int slot(int register) {
+        return 2 + register;
+    }
+}
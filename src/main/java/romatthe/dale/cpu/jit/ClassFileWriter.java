@@ -0,0 +1,216 @@
+package romatthe.dale.cpu.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal class file writer, just capable enough to emit the classes for compiled blocks:
+ * one public final class implementing a single interface, with a default constructor and
+ * one method whose code has no branches.
+ *
+ * Because the generated code never branches, no StackMapTable is needed.
+ */
+final class ClassFileWriter {
+
+    static final int ALOAD_0 = 0x2A;
+    static final int ALOAD_1 = 0x2B;
+    static final int SIPUSH = 0x11;
+    static final int ILOAD = 0x15;
+    static final int ISTORE = 0x36;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int IADD = 0x60;
+    static final int ISUB = 0x64;
+    static final int IMUL = 0x68;
+    static final int ISHL = 0x78;
+    static final int ISHR = 0x7A;
+    static final int IUSHR = 0x7C;
+    static final int IAND = 0x7E;
+    static final int IOR = 0x80;
+    static final int IXOR = 0x82;
+    static final int I2S = 0x93;
+    static final int IRETURN = 0xAC;
+    static final int RETURN = 0xB1;
+    static final int INVOKEVIRTUAL = 0xB6;
+    static final int INVOKESPECIAL = 0xB7;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    // Java 5 class files, so the verifier infers types instead of requiring stack map frames
+    private static final int MAJOR_VERSION = 49;
+
+    private final ByteArrayOutputStream constants = new ByteArrayOutputStream();
+    private final DataOutputStream constantsOut = new DataOutputStream(this.constants);
+    private final Map<String, Integer> constantIndexes = new HashMap<>();
+    private int constantCount = 1;
+
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private final DataOutputStream codeOut = new DataOutputStream(this.code);
+
+    private final String className;
+    private final String interfaceName;
+
+    ClassFileWriter(String className, String interfaceName) {
+        this.className = className;
+        this.interfaceName = interfaceName;
+    }
+
+    void op(int opcode) {
+        this.code.write(opcode);
+    }
+
+    void push(int value) {
+        this.code.write(SIPUSH);
+        this.u2(this.codeOut, value);
+    }
+
+    void load(int slot) {
+        this.code.write(ILOAD);
+        this.code.write(slot);
+    }
+
+    void store(int slot) {
+        this.code.write(ISTORE);
+        this.code.write(slot);
+    }
+
+    void invokeVirtual(String owner, String name, String descriptor) {
+        this.code.write(INVOKEVIRTUAL);
+        this.u2(this.codeOut, this.methodref(owner, name, descriptor));
+    }
+
+    /**
+     * Assembles the class, using the code emitted so far as the body of the given method
+     */
+    byte[] toByteArray(String methodName, String methodDescriptor, int maxStack, int maxLocals) {
+        byte[] body = this.code.toByteArray();
+
+        int thisClass = this.classref(this.className);
+        int superClass = this.classref("java/lang/Object");
+        int implemented = this.classref(this.interfaceName);
+        int objectInit = this.methodref("java/lang/Object", "<init>", "()V");
+        int codeAttribute = this.utf8("Code");
+        int initName = this.utf8("<init>");
+        int initDescriptor = this.utf8("()V");
+        int name = this.utf8(methodName);
+        int descriptor = this.utf8(methodDescriptor);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(MAJOR_VERSION);
+            out.writeShort(this.constantCount);
+            this.constantsOut.flush();
+            this.constants.writeTo(out);
+
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(implemented);
+            out.writeShort(0); // Fields
+            out.writeShort(2); // Methods
+
+            // public <init>() { super(); }
+            byte[] init = { (byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (objectInit >> 8), (byte) objectInit, (byte) RETURN };
+            this.method(out, initName, initDescriptor, codeAttribute, 1, 1, init);
+            this.method(out, name, descriptor, codeAttribute, maxStack, maxLocals, body);
+
+            out.writeShort(0); // Class attributes
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private void method(DataOutputStream out, int name, int descriptor, int codeAttribute,
+                        int maxStack, int maxLocals, byte[] body) throws IOException {
+        out.writeShort(ACC_PUBLIC);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+        out.writeShort(codeAttribute);
+        out.writeInt(12 + body.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(body.length);
+        out.write(body);
+        out.writeShort(0); // Exception table
+        out.writeShort(0); // Code attributes
+    }
+
+    private int utf8(String value) {
+        return this.constant("U" + value, () -> {
+            this.constantsOut.writeByte(CONSTANT_UTF8);
+            this.constantsOut.writeUTF(value);
+        });
+    }
+
+    private int classref(String name) {
+        int nameIndex = this.utf8(name);
+        return this.constant("C" + name, () -> {
+            this.constantsOut.writeByte(CONSTANT_CLASS);
+            this.constantsOut.writeShort(nameIndex);
+        });
+    }
+
+    private int methodref(String owner, String name, String descriptor) {
+        int ownerIndex = this.classref(owner);
+        int nameIndex = this.utf8(name);
+        int descriptorIndex = this.utf8(descriptor);
+        int nameAndType = this.constant("N" + name + descriptor, () -> {
+            this.constantsOut.writeByte(CONSTANT_NAME_AND_TYPE);
+            this.constantsOut.writeShort(nameIndex);
+            this.constantsOut.writeShort(descriptorIndex);
+        });
+        return this.constant("M" + owner + "." + name + descriptor, () -> {
+            this.constantsOut.writeByte(CONSTANT_METHODREF);
+            this.constantsOut.writeShort(ownerIndex);
+            this.constantsOut.writeShort(nameAndType);
+        });
+    }
+
+    private int constant(String key, ConstantWriter writer) {
+        Integer index = this.constantIndexes.get(key);
+        if (index == null) {
+            try {
+                writer.write();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            index = this.constantCount++;
+            this.constantIndexes.put(key, index);
+        }
+
+        return index;
+    }
+
+    private void u2(DataOutputStream out, int value) {
+        try {
+            out.writeShort(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface ConstantWriter {
+        void write() throws IOException;
+    }
+}
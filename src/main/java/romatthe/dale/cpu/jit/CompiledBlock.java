@@ -0,0 +1,18 @@
+package romatthe.dale.cpu.jit;
+
+import romatthe.dale.cpu.Cpu;
+
+/**
+ * A straight-line run of Chip 8 instructions recompiled into a JVM class.
+ * Implementations are generated at runtime by the BlockCompiler.
+ */
+public interface CompiledBlock {
+
+    /**
+     * Executes the block against the given Cpu, leaving the program counter at the
+     * next instruction to execute
+     *
+     * @return the number of Chip 8 instructions which were executed
+     */
+    int execute(Cpu cpu);
+}
@@ -0,0 +1,299 @@
+package romatthe.dale.cpu.jit;
+
+import romatthe.dale.analysis.RomAnalysis;
+import romatthe.dale.cpu.Cpu;
+import romatthe.dale.cpu.ExecutionEngine;
+import romatthe.dale.cpu.Memory;
+import romatthe.dale.cpu.MemoryWriteListener;
+import romatthe.dale.cpu.Profiler;
+import romatthe.dale.cpu.Variant;
+
+
+/**
+ * Execution engine which runs hot code as compiled blocks and everything else through
+ * the Cpu.step() interpreter.
+ *
+ * An address is compiled once it has been interpreted COMPILE_THRESHOLD times as the
+ * start of a block. When a Memory write lands inside a compiled block, that block is
+ * dropped and its start address is handed to the interpreter for good, so self-modifying
+ * Roms always run the code that is actually in memory.
+ *
+ * Blocks which compile a leaf subroutine in at its call, see BlockCompiler, are also
+ * dropped by writes to the subroutine.
+ *
+ * With a RomAnalysis of the program, code which the program is known to overwrite is never
+ * compiled in the first place, and when the analysis is complete, writes which can not
+ * touch code skip the search for blocks to drop.
+ */
+public final class Recompiler implements ExecutionEngine, MemoryWriteListener {
+
+    /**
+     * Number of times an address must be reached before it is compiled
+     */
+    public static final int COMPILE_THRESHOLD = 16;
+
+    private static final int MAX_BLOCK_BYTES = BlockCompiler.MAX_BLOCK_INSTRUCTIONS * 2;
+
+    private final Cpu cpu;
+    private final Memory memory;
+    private final BlockCompiler compiler = new BlockCompiler();
+
+    private final CompiledBlock[] blocks;
+    private final int[] blockEnds;
+    // Instructions every compiled block executes, inlined subroutines included
+    private final int[] blockLengths;
+    private final int[] executions;
+    private final boolean[] interpretOnly;
+
+    // Start and end of the subroutines each block compiled in, in pairs, and for every
+    // address the number of compiled-in subroutines covering it
+    private final int[][] inlined;
+    private final int[] inlinedCode;
+
+    private RomAnalysis analysis;
+
+    public Recompiler(Cpu cpu) {
+        if (cpu.getVariant() != Variant.CHIP_8) {
+            throw new IllegalArgumentException("Only Chip 8 machines can be recompiled, not " + cpu.getVariant());
+        }
+
+        int size = cpu.getMemory().size();
+
+        this.cpu = cpu;
+        this.memory = cpu.getMemory();
+        this.blocks = new CompiledBlock[size];
+        this.blockEnds = new int[size];
+        this.blockLengths = new int[size];
+        this.executions = new int[size];
+        this.interpretOnly = new boolean[size];
+        this.inlined = new int[size][];
+        this.inlinedCode = new int[size];
+
+        this.memory.addWriteListener(this);
+    }
+
+    /**
+     * Executes either one compiled block or one interpreted instruction at the current
+     * program counter
+     *
+     * @return the number of Chip 8 instructions which were executed
+     */
+    public int execute() {
+        return this.execute(Integer.MAX_VALUE);
+    }
+
+    // Blocks longer than the budget are left to the interpreter, so a budget is never
+    // exceeded
+    private int execute(int budget) {
+        int pc = this.cpu.getProgramCounter();
+
+        CompiledBlock block = this.blocks[pc];
+        if (block != null && this.blockLengths[pc] <= budget) {
+            // A block with a subroutine compiled in needs room for its return address,
+            // otherwise the interpreter gets to throw the overflow at the call
+            if (this.inlined[pc] == null || this.cpu.getStackPointer() < Cpu.STACK_DEPTH) {
+                return block.execute(this.cpu);
+            }
+            this.cpu.step();
+            return 1;
+        }
+
+        // While profiling, everything is interpreted so Cpu.step() sees every instruction
+        if (!Profiler.ENABLED && !this.interpretOnly[pc] && ++this.executions[pc] >= COMPILE_THRESHOLD) {
+            block = this.compile(pc);
+            if (block != null && this.blockLengths[pc] <= budget && (this.inlined[pc] == null || this.cpu.getStackPointer() < Cpu.STACK_DEPTH)) {
+                return block.execute(this.cpu);
+            }
+        }
+
+        this.cpu.step();
+        return 1;
+    }
+
+    /**
+     * Executes exactly the given number of instructions. A compiled block is never split,
+     * so the instructions which do not fill a whole block any more are interpreted. Idle
+     * loops are skipped, see Cpu.skipIdle().
+     *
+     * @return the number of Chip 8 instructions which were executed
+     */
+    @Override
+    public long execute(long instructions) {
+        long executed = 0;
+        while (executed < instructions) {
+            int pc = this.cpu.getProgramCounter();
+            executed += this.execute((int) Math.min(instructions - executed, Integer.MAX_VALUE));
+
+            if (this.cpu.getProgramCounter() <= pc && executed < instructions) {
+                executed += this.cpu.skipIdle(instructions - executed);
+            }
+        }
+
+        return executed;
+    }
+
+    /**
+     * Uses the analysis of the program currently in memory, until another one is loaded
+     */
+    public void setAnalysis(RomAnalysis analysis) {
+        this.analysis = analysis;
+    }
+
+    @Override
+    public void onWrite(int address) {
+        // Nothing else can be compiled, see RomAnalysis.isComplete()
+        if (this.analysis != null && this.analysis.isComplete() && !this.analysis.isCode(address)) {
+            return;
+        }
+
+        // Blocks are bounded in length, so only the starts just before the written
+        // address can cover it
+        for (int start = Math.max(0, address - MAX_BLOCK_BYTES); start <= address; start++) {
+            if (this.blocks[start] != null && this.blockEnds[start] > address) {
+                this.drop(start);
+                this.interpretOnly[start] = true;
+            }
+        }
+
+        // Subroutines compiled into blocks are rarely written to, so those blocks are
+        // only searched for when one is
+        if (this.inlinedCode[address] > 0) {
+            for (int start = 0; start < this.blocks.length; start++) {
+                if (this.inlines(start, address, address + 1)) {
+                    this.drop(start);
+                    this.interpretOnly[start] = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Bulk loads replace the program wholesale (a new Rom, a restored snapshot), so the
+     * covered blocks are dropped but may be compiled again
+     */
+    @Override
+    public void onWrite(int address, int length) {
+        this.analysis = null;
+
+        for (int start = Math.max(0, address - MAX_BLOCK_BYTES); start < address + length && start < this.blocks.length; start++) {
+            if (start >= address || this.blockEnds[start] > address) {
+                this.reset(start);
+            }
+        }
+        if (this.isInlined(address, address + length)) {
+            for (int start = 0; start < this.blocks.length; start++) {
+                if (this.inlines(start, address, address + length)) {
+                    this.reset(start);
+                }
+            }
+        }
+    }
+
+    private void reset(int start) {
+        this.drop(start);
+        this.blockEnds[start] = 0;
+        this.executions[start] = 0;
+        this.interpretOnly[start] = false;
+    }
+
+    private void drop(int start) {
+        int[] calls = this.inlined[start];
+        if (calls != null) {
+            for (int i = 0; i < calls.length; i += 2) {
+                for (int address = calls[i]; address < calls[i + 1]; address++) {
+                    this.inlinedCode[address]--;
+                }
+            }
+        }
+
+        this.blocks[start] = null;
+        this.inlined[start] = null;
+    }
+
+    /**
+     * Returns whether any compiled block has a subroutine overlapping the range compiled in
+     */
+    private boolean isInlined(int from, int to) {
+        for (int address = from; address < to && address < this.inlinedCode.length; address++) {
+            if (this.inlinedCode[address] > 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns whether the block at start compiled in a subroutine overlapping the range
+     */
+    private boolean inlines(int start, int from, int to) {
+        int[] calls = this.inlined[start];
+        if (calls == null) {
+            return false;
+        }
+
+        for (int i = 0; i < calls.length; i += 2) {
+            if (calls[i] < to && calls[i + 1] > from) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private CompiledBlock compile(int start) {
+        int end = this.compiler.scan(this.memory, start);
+        if (end == start || this.overwritten(start, end)) {
+            this.interpretOnly[start] = true;
+            return null;
+        }
+
+        int[] calls = this.compiler.inlinedCalls(this.memory, start, end);
+        for (int i = 0; i < calls.length; i += 2) {
+            if (this.overwritten(calls[i], calls[i + 1])) {
+                this.interpretOnly[start] = true;
+                return null;
+            }
+        }
+
+        CompiledBlock block = this.compiler.compile(this.memory, start, end);
+        this.blocks[start] = block;
+        this.blockEnds[start] = end;
+        this.blockLengths[start] = (end - start) / 2;
+        for (int i = 0; i < calls.length; i += 2) {
+            // A subroutine adds its instructions up to and including the 00EE
+            this.blockLengths[start] += (calls[i + 1] - calls[i]) / 2;
+        }
+        if (calls.length > 0) {
+            this.inlined[start] = calls;
+            for (int i = 0; i < calls.length; i += 2) {
+                for (int address = calls[i]; address < calls[i + 1]; address++) {
+                    this.inlinedCode[address]++;
+                }
+            }
+        }
+
+        return block;
+    }
+
+    /**
+     * Returns whether the analysis says the program writes into the given range of code
+     */
+    private boolean overwritten(int start, int end) {
+        if (this.analysis == null) {
+            return false;
+        }
+
+        boolean overwritten = false;
+        for (int address = start; address < end && address < this.blocks.length; address++) {
+            if (!this.analysis.isCode(address)) {
+                // Running code the analysis did not find, so it can no longer be trusted
+                this.analysis = null;
+                return false;
+            }
+            overwritten |= this.analysis.mayBeWritten(address) && !this.analysis.hasUnknownWrites();
+        }
+
+        return overwritten;
+    }
+}
@@ -0,0 +1,331 @@
+package romatthe.dale.debug;
+
+import romatthe.dale.cpu.Cpu;
+import romatthe.dale.cpu.ExecutionEngine;
+import romatthe.dale.cpu.Memory;
+import romatthe.dale.cpu.Scheduler;
+
+import java.util.Arrays;
+
+/**
+ * Debugs a program on the machine it normally runs on, with the same instruction
+ * handlers, timers and frame pacing, instead of on a separate debugging interpreter.
+ *
+ * The Debugger is an ExecutionEngine wrapped around the real engine and drives its own
+ * Scheduler. As long as no breakpoints or watchpoints are set and no step is in
+ * progress, every frame is passed straight on to the wrapped engine, so attaching a
+ * Debugger costs one check per frame. Only while something has to be checked are the
+ * instructions stepped one by one, testing the program counter against a bitmap of
+ * breakpoints before each of them. Watchpoints wrap a WatchedMemory around the view the
+ * instructions access memory through, and put that view back once the last one is gone.
+ *
+ * Execution halts between instructions. A frame halted halfway is completed by the next
+ * run command before its timers tick, so debugging does not change what the program
+ * sees. Run commands may only be called from one thread, interrupt() from any.
+ */
+public class Debugger implements ExecutionEngine {
+
+    /**
+     * Why the last run command returned
+     */
+    public enum Stop {
+        BREAKPOINT,
+        READ_WATCHPOINT,
+        WRITE_WATCHPOINT,
+        STEP,
+        FRAME,
+        INTERRUPTED
+    }
+
+    private final Cpu cpu;
+    private final ExecutionEngine engine;
+    private final Scheduler scheduler;
+    private final int addressMask;
+
+    // One bit per address
+    private final long[] breakpoints;
+    private final long[] readWatches;
+    private final long[] writeWatches;
+    private int breakpointCount = 0;
+    private int watchCount = 0;
+
+    private WatchedMemory watchedMemory;
+
+    private Stop stop;
+    private int stopAddress = -1;
+    private volatile boolean interrupted;
+
+    // The instruction execution halted at on a breakpoint, step or watchpoint, which is
+    // executed when resuming rather than halting on it straight away again
+    private int resumeAddress = -1;
+
+    // Set while a step or step over is in progress
+    private long stepsLeft = 0;
+    private int returnAddress = -1;
+    private int returnDepth;
+
+    public Debugger(Cpu cpu, ExecutionEngine engine, int instructionsPerFrame) {
+        Memory memory = cpu.getDecodeCache().getMemory();
+        int words = Math.max(1, memory.size() >>> 6);
+
+        this.cpu = cpu;
+        this.engine = engine;
+        this.scheduler = new Scheduler(cpu, this, instructionsPerFrame, false);
+        this.addressMask = memory.size() - 1;
+        this.breakpoints = new long[words];
+        this.readWatches = new long[words];
+        this.writeWatches = new long[words];
+    }
+
+    public Debugger(Cpu cpu, int instructionsPerFrame) {
+        this(cpu, cpu, instructionsPerFrame);
+    }
+
+    /**
+     * Returns the unthrottled Scheduler which runs the machine through this Debugger
+     */
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    public void addBreakpoint(int address) {
+        if (set(this.breakpoints, address & this.addressMask)) {
+            this.breakpointCount++;
+        }
+    }
+
+    public void removeBreakpoint(int address) {
+        if (clear(this.breakpoints, address & this.addressMask)) {
+            this.breakpointCount--;
+        }
+    }
+
+    public boolean isBreakpoint(int address) {
+        return isSet(this.breakpoints, address & this.addressMask);
+    }
+
+    public void clearBreakpoints() {
+        Arrays.fill(this.breakpoints, 0L);
+        this.breakpointCount = 0;
+    }
+
+    /**
+     * Halts after any instruction which reads and/or writes one of the length bytes
+     * starting at address. Opcode fetches are not counted as reads.
+     */
+    public void addWatchpoint(int address, int length, boolean read, boolean write) {
+        for (int i = 0; i < length; i++) {
+            int masked = (address + i) & this.addressMask;
+            if (read && set(this.readWatches, masked)) {
+                this.watchCount++;
+            }
+            if (write && set(this.writeWatches, masked)) {
+                this.watchCount++;
+            }
+        }
+
+        this.updateMemoryView();
+    }
+
+    public void removeWatchpoint(int address, int length) {
+        for (int i = 0; i < length; i++) {
+            int masked = (address + i) & this.addressMask;
+            if (clear(this.readWatches, masked)) {
+                this.watchCount--;
+            }
+            if (clear(this.writeWatches, masked)) {
+                this.watchCount--;
+            }
+        }
+
+        this.updateMemoryView();
+    }
+
+    public void clearWatchpoints() {
+        Arrays.fill(this.readWatches, 0L);
+        Arrays.fill(this.writeWatches, 0L);
+        this.watchCount = 0;
+
+        this.updateMemoryView();
+    }
+
+    // Another view, like a TraceWriter's, may already be installed or be installed on
+    // top of the watches, see Cpu.setMemoryView()
+    private void updateMemoryView() {
+        if (this.watchCount > 0 && this.watchedMemory == null) {
+            this.watchedMemory = new WatchedMemory(this.cpu.getMemory(), this, this.readWatches, this.writeWatches);
+            this.cpu.setMemoryView(this.watchedMemory);
+        } else if (this.watchCount == 0 && this.watchedMemory != null && this.cpu.getMemory() == this.watchedMemory) {
+            this.cpu.setMemoryView(this.watchedMemory.getMemory());
+            this.watchedMemory = null;
+        }
+    }
+
+    /**
+     * Executes exactly one instruction
+     */
+    public Stop step() {
+        this.stepsLeft = 1;
+
+        return this.run(Long.MAX_VALUE);
+    }
+
+    /**
+     * Executes one instruction, or a whole subroutine when the instruction is a 2NNN
+     * call, halting once it has returned with 00EE. Breakpoints and watchpoints inside the
+     * subroutine still halt. A subroutine which never returns runs until interrupted.
+     */
+    public Stop stepOver() {
+        int address = this.cpu.getProgramCounter();
+        Memory memory = this.cpu.getDecodeCache().getMemory();
+        if ((memory.read(address) & 0xF0) != 0x20) {
+            return this.step();
+        }
+
+        this.returnAddress = (address + 2) & this.addressMask;
+        this.returnDepth = this.cpu.getStackPointer();
+
+        return this.run(Long.MAX_VALUE);
+    }
+
+    /**
+     * Runs until the given number of frames has been completed, or a breakpoint or
+     * watchpoint halts execution first
+     */
+    public Stop runToFrame(long frame) {
+        return this.run(frame);
+    }
+
+    private Stop run(long frame) {
+        this.stop = null;
+        this.interrupted = false;
+        try {
+            while (this.scheduler.getFrames() < frame) {
+                this.scheduler.frame();
+                if (this.stop != null) {
+                    return this.stop;
+                }
+                if (this.interrupted) {
+                    return this.pause(Stop.INTERRUPTED);
+                }
+            }
+
+            return this.pause(Stop.FRAME);
+        } finally {
+            this.stepsLeft = 0;
+            this.returnAddress = -1;
+        }
+    }
+
+    /**
+     * Makes the running command return at the end of the current frame. May be called
+     * from any thread.
+     */
+    public void interrupt() {
+        this.interrupted = true;
+    }
+
+    /**
+     * Returns why the last run command or execute() returned, or null if execute() ran
+     * its whole budget
+     */
+    public Stop getStop() {
+        return stop;
+    }
+
+    /**
+     * Returns the program counter execution halted at, or the watched address for
+     * watchpoints
+     */
+    public int getStopAddress() {
+        return stopAddress;
+    }
+
+    @Override
+    public boolean isStopped() {
+        return this.stop != null;
+    }
+
+    @Override
+    public long execute(long instructions) {
+        this.stop = null;
+        if (this.breakpointCount == 0 && this.watchCount == 0 && this.stepsLeft == 0 && this.returnAddress < 0) {
+            // Nothing to check, run at full speed
+            return this.engine.execute(instructions);
+        }
+
+        Cpu cpu = this.cpu;
+        long[] breakpoints = this.breakpoints;
+        long executed = 0;
+
+        while (executed < instructions) {
+            int address = cpu.getProgramCounter();
+            if (address != this.resumeAddress) {
+                if ((breakpoints[address >>> 6] & (1L << address)) != 0) {
+                    this.halt(Stop.BREAKPOINT, address);
+                    break;
+                }
+                if (address == this.returnAddress && cpu.getStackPointer() == this.returnDepth) {
+                    this.halt(Stop.STEP, address);
+                    break;
+                }
+            }
+
+            this.resumeAddress = -1;
+            cpu.step();
+            executed++;
+
+            // Set by onWatch() while the instruction executed
+            if (this.stop != null) {
+                break;
+            }
+            if (this.stepsLeft > 0 && --this.stepsLeft == 0) {
+                this.halt(Stop.STEP, cpu.getProgramCounter());
+                break;
+            }
+        }
+
+        return executed;
+    }
+
+    void onWatch(int address, boolean write) {
+        // The first access of an instruction is reported, its other accesses still happen
+        if (this.stop == null) {
+            this.halt(write ? Stop.WRITE_WATCHPOINT : Stop.READ_WATCHPOINT, address);
+        }
+    }
+
+    private Stop halt(Stop stop, int address) {
+        this.stop = stop;
+        this.stopAddress = address;
+        this.resumeAddress = this.cpu.getProgramCounter();
+
+        return stop;
+    }
+
+    // Halts on a frame boundary, which does not pass over a breakpoint at the program counter
+    private Stop pause(Stop stop) {
+        this.stop = stop;
+        this.stopAddress = this.cpu.getProgramCounter();
+
+        return stop;
+    }
+
+    private static boolean set(long[] bitmap, int address) {
+        boolean wasSet = isSet(bitmap, address);
+        bitmap[address >>> 6] |= 1L << address;
+
+        return !wasSet;
+    }
+
+    private static boolean clear(long[] bitmap, int address) {
+        boolean wasSet = isSet(bitmap, address);
+        bitmap[address >>> 6] &= ~(1L << address);
+
+        return wasSet;
+    }
+
+    private static boolean isSet(long[] bitmap, int address) {
+        return (bitmap[address >>> 6] & (1L << address)) != 0;
+    }
+}
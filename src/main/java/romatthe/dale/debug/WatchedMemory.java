@@ -0,0 +1,92 @@
+package romatthe.dale.debug;
+
+import romatthe.dale.cpu.Memory;
+import romatthe.dale.cpu.MemoryWriteListener;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A view of Memory which reports reads and writes of watched addresses to a Debugger.
+ *
+ * The watched addresses are kept in one bitmap for reads and one for writes, so a check
+ * is a single shift and mask. Bulk loads and copies, which restore snapshots and the
+ * like rather than executing instructions, are passed through unchecked.
+ */
+class WatchedMemory implements Memory {
+
+    private final Memory memory;
+    private final Debugger debugger;
+    private final long[] readWatches;
+    private final long[] writeWatches;
+    private final int addressMask;
+
+    WatchedMemory(Memory memory, Debugger debugger, long[] readWatches, long[] writeWatches) {
+        this.memory = memory;
+        this.debugger = debugger;
+        this.readWatches = readWatches;
+        this.writeWatches = writeWatches;
+        this.addressMask = memory.size() - 1;
+    }
+
+    /**
+     * Returns the memory, or view of it, this view wraps
+     */
+    Memory getMemory() {
+        return this.memory;
+    }
+
+    @Override
+    public short read(int address) {
+        int masked = address & this.addressMask;
+        if ((this.readWatches[masked >>> 6] & (1L << masked)) != 0) {
+            this.debugger.onWatch(masked, false);
+        }
+
+        return this.memory.read(address);
+    }
+
+    @Override
+    public void write(int address, int value) {
+        this.memory.write(address, value);
+
+        int masked = address & this.addressMask;
+        if ((this.writeWatches[masked >>> 6] & (1L << masked)) != 0) {
+            this.debugger.onWatch(masked, true);
+        }
+    }
+
+    @Override
+    public void load(byte[] data, int offset, int length, int address) {
+        this.memory.load(data, offset, length, address);
+    }
+
+    @Override
+    public void load(ByteBuffer data, int address) {
+        this.memory.load(data, address);
+    }
+
+    @Override
+    public void copyTo(byte[] target, int offset) {
+        this.memory.copyTo(target, offset);
+    }
+
+    @Override
+    public int size() {
+        return this.memory.size();
+    }
+
+    @Override
+    public Memory fork() {
+        return this.memory.fork();
+    }
+
+    @Override
+    public void addWriteListener(MemoryWriteListener writeListener) {
+        this.memory.addWriteListener(writeListener);
+    }
+
+    @Override
+    public void removeWriteListener(MemoryWriteListener writeListener) {
+        this.memory.removeWriteListener(writeListener);
+    }
+}
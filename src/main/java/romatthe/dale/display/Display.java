@@ -0,0 +1,418 @@
+package romatthe.dale.display;
+
+import romatthe.dale.cpu.Memory;
+import romatthe.dale.cpu.Variant;
+
+import java.util.Arrays;
+
+/**
+ * The screen of a Chip 8 machine, 64x32 monochrome unless the Variant says otherwise.
+ *
+ * Every row of 64 pixels is packed into a single long, with the leftmost pixel in the
+ * most significant bit. Drawing a row of a sprite then boils down to one shift to put
+ * the 8 sprite bits at the left edge, one rotate to move them to their column (which
+ * also wraps them around the right edge), one AND to detect a collision and one XOR.
+ *
+ * The 128x64 screens of SUPER-CHIP and XO-CHIP keep two longs per row and one such
+ * framebuffer per bitplane, stored one after the other as lines. They are drawn on with
+ * drawSprite() and friends, which handle the low resolution mode, 16x16 sprites, clipping
+ * and plane selection, so draw() keeps serving the plain Chip 8 layout without any of
+ * those checks. On that layout, a line is simply a row.
+ *
+ * Rows which changed since the last call to takeDirtyRows() are tracked in a bitmask,
+ * so a renderer only has to push the lines which actually changed. On screens taller than
+ * 32 rows each bit covers a band of adjacent rows.
+ */
+public class Display {
+
+    public static final int WIDTH = 64;
+    public static final int HEIGHT = 32;
+
+    private static final int LORES = 0;
+    private static final int HIRES = 1;
+
+    private final int width;
+    private final int height;
+    private final int planes;
+    private final boolean clipping;
+    private final int words;
+    private final int dirtyShift;
+
+    private final long[] rows;
+
+    // Bit n is set when row n changed, 32 rows fit exactly in an int
+    private int dirtyRows = 0;
+
+    // Resolution and the bitplanes drawn on, only changed by the extended instructions
+    private int resolution = LORES;
+    private int selectedPlanes = 1;
+
+    /**
+     * Creates the 64x32 screen of a plain Chip 8
+     */
+    public Display() {
+        this(Variant.CHIP_8);
+    }
+
+    /**
+     * Creates the screen of the given variant, cleared and in low resolution
+     */
+    public Display(Variant variant) {
+        this.width = variant.getWidth();
+        this.height = variant.getHeight();
+        this.planes = variant.getPlanes();
+        this.clipping = variant.isClipping();
+        this.words = this.width / 64;
+        this.dirtyShift = Integer.numberOfTrailingZeros(this.height / HEIGHT);
+        this.rows = new long[this.planes * this.height * this.words];
+    }
+
+    /**
+     * Turns off every pixel
+     */
+    public void clear() {
+        Arrays.fill(this.rows, 0L);
+        this.dirtyRows = -1;
+    }
+
+    /**
+     * XORs a sprite of the given height onto the screen. Each byte in memory, starting
+     * at the given address, is one row of 8 pixels. Sprites wrap around both edges.
+     *
+     * @return true if any pixel that was on got turned off
+     */
+    public boolean draw(Memory memory, int address, int x, int y, int height) {
+        long collision = 0L;
+
+        for (int i = 0; i < height; i++) {
+            long sprite = Long.rotateRight(((long) memory.read(address + i)) << 56, x);
+            int row = (y + i) & (HEIGHT - 1);
+
+            collision |= this.rows[row] & sprite;
+            this.rows[row] ^= sprite;
+
+            if (sprite != 0L) {
+                this.dirtyRows |= 1 << row;
+            }
+        }
+
+        return collision != 0L;
+    }
+
+    /**
+     * Returns whether the pixel is on in the first bitplane, in the highest resolution of
+     * the screen
+     */
+    public boolean isPixelOn(int x, int y) {
+        int column = x & (this.width - 1);
+
+        return (this.rows[(y & (this.height - 1)) * this.words + (column >>> 6)] << column) < 0;
+    }
+
+    /**
+     * Returns the 64 pixels of the given row, leftmost pixel in the most significant bit
+     */
+    public long getRow(int y) {
+        return this.rows[y & (HEIGHT - 1)];
+    }
+
+    /**
+     * Replaces the 64 pixels of the given row and marks it as changed
+     */
+    public void setRow(int y, long row) {
+        this.rows[y & (HEIGHT - 1)] = row;
+        this.dirtyRows |= 1 << (y & (HEIGHT - 1));
+    }
+
+    /**
+     * Copies all rows into target, which must hold at least HEIGHT values
+     */
+    public void copyRows(long[] target) {
+        System.arraycopy(this.rows, 0, target, 0, HEIGHT);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getPlanes() {
+        return planes;
+    }
+
+    /**
+     * Returns whether this is the single 64x32 plane draw() and the row methods work on
+     */
+    public boolean isBaseLayout() {
+        return this.rows.length == HEIGHT;
+    }
+
+    /**
+     * Returns the number of longs the pixels of every plane take up
+     */
+    public int getLineCount() {
+        return this.rows.length;
+    }
+
+    /**
+     * Returns 64 pixels of one plane: plane by plane, row by row, left to right
+     */
+    public long getLine(int line) {
+        return this.rows[line];
+    }
+
+    /**
+     * Replaces 64 pixels, see getLine(), and marks their row as changed
+     */
+    public void setLine(int line, long pixels) {
+        this.rows[line] = pixels;
+        this.markDirty((line / this.words) & (this.height - 1));
+    }
+
+    public boolean isHires() {
+        return this.resolution == HIRES;
+    }
+
+    /**
+     * Switches between the low and high resolution, clearing the screen
+     */
+    public void setHires(boolean hires) {
+        this.resolution = hires ? HIRES : LORES;
+        this.clear();
+    }
+
+    /**
+     * Returns the bitmask of planes drawSprite(), clearPlanes() and the scrolls work on
+     */
+    public int getSelectedPlanes() {
+        return selectedPlanes;
+    }
+
+    public void setSelectedPlanes(int selectedPlanes) {
+        this.selectedPlanes = selectedPlanes & ((1 << this.planes) - 1);
+    }
+
+    /**
+     * Returns the resolution and the selected planes in one value, for snapshots
+     */
+    public int getMode() {
+        return this.resolution | this.selectedPlanes << 1;
+    }
+
+    /**
+     * Restores a value of getMode(), without clearing the screen
+     */
+    public void setMode(int mode) {
+        this.resolution = mode & HIRES;
+        this.setSelectedPlanes(mode >>> 1);
+    }
+
+    /**
+     * Returns an independent copy of this screen, with every row marked as changed
+     */
+    public Display fork() {
+        Display fork = new Display(this);
+        System.arraycopy(this.rows, 0, fork.rows, 0, this.rows.length);
+        fork.resolution = this.resolution;
+        fork.selectedPlanes = this.selectedPlanes;
+        fork.dirtyRows = -1;
+
+        return fork;
+    }
+
+    private Display(Display layout) {
+        this.width = layout.width;
+        this.height = layout.height;
+        this.planes = layout.planes;
+        this.clipping = layout.clipping;
+        this.words = layout.words;
+        this.dirtyShift = layout.dirtyShift;
+        this.rows = new long[layout.rows.length];
+    }
+
+    /**
+     * Turns off every pixel of the selected planes
+     */
+    public void clearPlanes() {
+        for (int plane = 0; plane < this.planes; plane++) {
+            if ((this.selectedPlanes & (1 << plane)) != 0) {
+                int start = plane * this.height * this.words;
+                Arrays.fill(this.rows, start, start + this.height * this.words, 0L);
+            }
+        }
+        this.dirtyRows = -1;
+    }
+
+    /**
+     * XORs a sprite onto the selected planes of a 128 pixel wide screen. A height of 0
+     * draws a 16x16 sprite of two bytes per row. Every selected plane takes the next
+     * sprite from memory, so with two planes selected twice the bytes are read. In low
+     * resolution every sprite pixel covers 2x2 screen pixels.
+     *
+     * The position wraps around the screen, the sprite itself is either clipped at the
+     * edges or wraps around them, depending on the variant.
+     *
+     * @return true if any pixel that was on got turned off
+     */
+    public boolean drawSprite(Memory memory, int address, int x, int y, int height) {
+        int scale = this.resolution == HIRES ? 1 : 2;
+        int logicalHeight = this.height / scale;
+        int spriteWidth = height == 0 ? 16 : 8;
+        int spriteHeight = height == 0 ? 16 : height;
+
+        x = (x & (this.width / scale - 1)) * scale;
+        y = y & (logicalHeight - 1);
+
+        boolean collision = false;
+        for (int plane = 0; plane < this.planes; plane++) {
+            if ((this.selectedPlanes & (1 << plane)) == 0) {
+                continue;
+            }
+
+            int base = plane * this.height;
+            for (int i = 0; i < spriteHeight; i++) {
+                int bits = spriteWidth == 16
+                        ? memory.read(address) << 8 | memory.read(address + 1)
+                        : memory.read(address);
+                address += spriteWidth / 8;
+
+                int row = y + i;
+                if (row >= logicalHeight) {
+                    if (this.clipping) {
+                        continue;
+                    }
+                    row &= logicalHeight - 1;
+                }
+
+                // Left align the sprite row in a long, doubling every pixel in low resolution
+                long pixels = scale == 1
+                        ? (long) bits << (64 - spriteWidth)
+                        : doubled(bits) << (64 - spriteWidth * 2);
+                long left = x < 64 ? pixels >>> x : 0L;
+                long right = x < 64 ? (x == 0 ? 0L : pixels << (64 - x)) : pixels >>> (x - 64);
+                if (x > 64 && !this.clipping) {
+                    left = pixels << (128 - x);
+                }
+
+                for (int copy = 0; copy < scale; copy++) {
+                    int line = (base + row * scale + copy) * 2;
+                    collision |= ((this.rows[line] & left) | (this.rows[line + 1] & right)) != 0L;
+                    this.rows[line] ^= left;
+                    this.rows[line + 1] ^= right;
+                    this.markDirty(row * scale + copy);
+                }
+            }
+        }
+
+        return collision;
+    }
+
+    /**
+     * Scrolls the selected planes down by the given number of pixels of the current
+     * resolution
+     */
+    public void scrollDown(int pixels) {
+        this.scrollVertically(pixels);
+    }
+
+    /**
+     * Scrolls the selected planes up by the given number of pixels of the current
+     * resolution
+     */
+    public void scrollUp(int pixels) {
+        this.scrollVertically(-pixels);
+    }
+
+    private void scrollVertically(int pixels) {
+        int rowsMoved = pixels * (this.resolution == HIRES ? 1 : 2);
+        int planeLines = this.height * this.words;
+
+        for (int plane = 0; plane < this.planes; plane++) {
+            if ((this.selectedPlanes & (1 << plane)) == 0) {
+                continue;
+            }
+
+            int start = plane * planeLines;
+            int shift = Math.max(-this.height, Math.min(this.height, rowsMoved)) * this.words;
+            if (shift > 0) {
+                System.arraycopy(this.rows, start, this.rows, start + shift, planeLines - shift);
+                Arrays.fill(this.rows, start, start + shift, 0L);
+            } else if (shift < 0) {
+                System.arraycopy(this.rows, start - shift, this.rows, start, planeLines + shift);
+                Arrays.fill(this.rows, start + planeLines + shift, start + planeLines, 0L);
+            }
+        }
+        this.dirtyRows = -1;
+    }
+
+    /**
+     * Scrolls the selected planes of a 128 pixel wide screen 4 pixels of the current
+     * resolution to the right
+     */
+    public void scrollRight() {
+        int pixels = this.resolution == HIRES ? 4 : 8;
+
+        for (int line = 0; line < this.rows.length; line += 2) {
+            if (this.isSelected(line)) {
+                this.rows[line + 1] = this.rows[line + 1] >>> pixels | this.rows[line] << (64 - pixels);
+                this.rows[line] >>>= pixels;
+            }
+        }
+        this.dirtyRows = -1;
+    }
+
+    /**
+     * Scrolls the selected planes of a 128 pixel wide screen 4 pixels of the current
+     * resolution to the left
+     */
+    public void scrollLeft() {
+        int pixels = this.resolution == HIRES ? 4 : 8;
+
+        for (int line = 0; line < this.rows.length; line += 2) {
+            if (this.isSelected(line)) {
+                this.rows[line] = this.rows[line] << pixels | this.rows[line + 1] >>> (64 - pixels);
+                this.rows[line + 1] <<= pixels;
+            }
+        }
+        this.dirtyRows = -1;
+    }
+
+    private boolean isSelected(int line) {
+        return (this.selectedPlanes & (1 << (line / (this.height * this.words)))) != 0;
+    }
+
+    private void markDirty(int row) {
+        this.dirtyRows |= 1 << (row >>> this.dirtyShift);
+    }
+
+    // Spreads the 16 bits of value out to 32, every bit twice
+    private static long doubled(int value) {
+        long spread = value & 0xFFFFL;
+        spread = (spread | spread << 8) & 0x00FF00FFL;
+        spread = (spread | spread << 4) & 0x0F0F0F0FL;
+        spread = (spread | spread << 2) & 0x33333333L;
+        spread = (spread | spread << 1) & 0x55555555L;
+
+        return spread | spread << 1;
+    }
+
+    /**
+     * Returns the bitmask of rows changed since the last call to takeDirtyRows()
+     */
+    public int getDirtyRows() {
+        return this.dirtyRows;
+    }
+
+    /**
+     * Returns the bitmask of changed rows and marks every row as clean again
+     */
+    public int takeDirtyRows() {
+        int dirty = this.dirtyRows;
+        this.dirtyRows = 0;
+
+        return dirty;
+    }
+}
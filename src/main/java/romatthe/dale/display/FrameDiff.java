@@ -0,0 +1,90 @@
+package romatthe.dale.display;
+
+/**
+ * The changes to the screen during one or more frames: a bitmask of the rows which changed,
+ * and the new contents of just those rows. Immutable, so it can be handed to other threads
+ * as is.
+ */
+public final class FrameDiff {
+
+    private final long frame;
+    private final int changedRows;
+
+    // The new contents of the changed rows, topmost first
+    private final long[] rows;
+
+    private FrameDiff(long frame, int changedRows, long[] rows) {
+        this.frame = frame;
+        this.changedRows = changedRows;
+        this.rows = rows;
+    }
+
+    /**
+     * Captures the given rows of the display
+     */
+    public static FrameDiff of(long frame, int changedRows, Display display) {
+        long[] rows = new long[Integer.bitCount(changedRows)];
+        int i = 0;
+        for (int dirty = changedRows; dirty != 0; dirty &= dirty - 1) {
+            rows[i++] = display.getRow(Integer.numberOfTrailingZeros(dirty));
+        }
+
+        return new FrameDiff(frame, changedRows, rows);
+    }
+
+    /**
+     * Returns a diff with the changes of both this and the given later diff, as if the
+     * frames in between had never been published
+     */
+    public FrameDiff merge(FrameDiff later) {
+        int changed = this.changedRows | later.changedRows;
+        long[] merged = new long[Integer.bitCount(changed)];
+        int i = 0;
+        for (int dirty = changed; dirty != 0; dirty &= dirty - 1) {
+            int y = Integer.numberOfTrailingZeros(dirty);
+            merged[i++] = later.isChanged(y) ? later.getRow(y) : this.getRow(y);
+        }
+
+        return new FrameDiff(later.frame, changed, merged);
+    }
+
+    /**
+     * Returns the frame at the end of which the display was captured
+     */
+    public long getFrame() {
+        return frame;
+    }
+
+    /**
+     * Returns the bitmask of changed rows, bit n is set when row n changed
+     */
+    public int getChangedRows() {
+        return changedRows;
+    }
+
+    public boolean isChanged(int y) {
+        return (this.changedRows & (1 << y)) != 0;
+    }
+
+    /**
+     * Returns the new contents of a changed row, leftmost pixel in the most significant bit
+     */
+    public long getRow(int y) {
+        if (!this.isChanged(y)) {
+            throw new IllegalArgumentException("Row " + y + " did not change");
+        }
+
+        // The rows are packed, so the index is the number of changed rows above this one
+        return this.rows[Integer.bitCount(this.changedRows & ((1 << y) - 1))];
+    }
+
+    /**
+     * Writes the changed rows into a screen of HEIGHT rows
+     */
+    public void applyTo(long[] screen) {
+        int i = 0;
+        for (int dirty = this.changedRows; dirty != 0; dirty &= dirty - 1) {
+            screen[Integer.numberOfTrailingZeros(dirty)] = this.rows[i++];
+        }
+    }
+}
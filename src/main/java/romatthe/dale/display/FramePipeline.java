@@ -0,0 +1,73 @@
+package romatthe.dale.display;
+
+import romatthe.dale.cpu.FrameListener;
+
+/**
+ * Publishes the changes to a Display once per 60 Hz frame, instead of on every DRAW or
+ * CLEAR_SCREEN.
+ *
+ * Every draw and clear within a frame only marks rows dirty on the Display. At the end of
+ * the frame the dirty rows are captured into a single FrameDiff and offered to a FrameQueue,
+ * which a renderer or encoder drains on its own thread. When that consumer falls behind and
+ * the queue is full, the rows stay dirty and go out merged with the next frame, so a slow
+ * consumer skips intermediate frames but never misses a change.
+ *
+ * Register it with Scheduler.addFrameListener(), it must run on the emulation thread.
+ */
+public class FramePipeline implements FrameListener {
+
+    private final Display display;
+    private final FrameQueue queue;
+
+    // Rows changed since the last diff that made it into the queue
+    private int pending = 0;
+
+    private long published = 0;
+    private long deferred = 0;
+
+    public FramePipeline(Display display, int capacity) {
+        if (!display.isBaseLayout()) {
+            throw new IllegalArgumentException("Only 64x32 screens of a single plane can be published");
+        }
+
+        this.display = display;
+        this.queue = new FrameQueue(capacity);
+    }
+
+    @Override
+    public void onFrame(long frame) {
+        this.pending |= this.display.takeDirtyRows();
+        if (this.pending == 0) {
+            return;
+        }
+
+        // Only the consumer frees up space, so a full queue stays full until we offer
+        if (this.queue.size() < this.queue.capacity() && this.queue.offer(FrameDiff.of(frame, this.pending, this.display))) {
+            this.pending = 0;
+            this.published++;
+        } else {
+            this.deferred++;
+        }
+    }
+
+    /**
+     * Returns the queue to consume the diffs from, on a single thread
+     */
+    public FrameQueue getQueue() {
+        return queue;
+    }
+
+    /**
+     * Returns the number of diffs published so far
+     */
+    public long getPublished() {
+        return published;
+    }
+
+    /**
+     * Returns the number of frames whose changes were held back because the queue was full
+     */
+    public long getDeferred() {
+        return deferred;
+    }
+}
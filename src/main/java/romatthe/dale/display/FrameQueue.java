@@ -0,0 +1,127 @@
+package romatthe.dale.display;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free bounded queue of FrameDiffs from exactly one producer, the emulation thread,
+ * to exactly one consumer, a renderer or encoder.
+ *
+ * The producer never blocks: when the queue is full, offer() fails and the producer keeps
+ * the changes for a later frame. The consumer may park until a frame arrives, and can
+ * merge everything that is waiting into one diff to catch up.
+ */
+public final class FrameQueue {
+
+    private final AtomicReferenceArray<FrameDiff> slots;
+    private final int mask;
+
+    // Next slot to write, only advanced by the producer
+    private final AtomicLong tail = new AtomicLong();
+
+    // Next slot to read, only advanced by the consumer
+    private final AtomicLong head = new AtomicLong();
+
+    // The consumer thread while it is parked in take()
+    private volatile Thread waiting;
+
+    public FrameQueue(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        }
+
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Adds a diff, producer only. Returns false when the queue is full.
+     */
+    public boolean offer(FrameDiff diff) {
+        long tail = this.tail.get();
+        if (tail - this.head.get() > this.mask) {
+            return false;
+        }
+
+        this.slots.lazySet((int) tail & this.mask, diff);
+
+        // A full volatile write, so the check of waiting below can not move before it
+        this.tail.set(tail + 1);
+
+        Thread consumer = this.waiting;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+
+        return true;
+    }
+
+    /**
+     * Removes the oldest diff, consumer only. Returns null when the queue is empty.
+     */
+    public FrameDiff poll() {
+        long head = this.head.get();
+        if (head == this.tail.get()) {
+            return null;
+        }
+
+        int slot = (int) head & this.mask;
+        FrameDiff diff = this.slots.get(slot);
+        this.slots.lazySet(slot, null);
+        this.head.lazySet(head + 1);
+
+        return diff;
+    }
+
+    /**
+     * Removes every waiting diff and merges them into one, consumer only. Returns null
+     * when the queue is empty.
+     */
+    public FrameDiff pollLatest() {
+        FrameDiff merged = this.poll();
+        if (merged == null) {
+            return null;
+        }
+
+        FrameDiff next;
+        while ((next = this.poll()) != null) {
+            merged = merged.merge(next);
+        }
+
+        return merged;
+    }
+
+    /**
+     * Like pollLatest(), but parks the calling thread until a diff arrives
+     */
+    public FrameDiff takeLatest() throws InterruptedException {
+        FrameDiff diff;
+        while ((diff = this.pollLatest()) == null) {
+            this.waiting = Thread.currentThread();
+
+            // Check again, the producer may have offered before it saw us waiting
+            if (this.head.get() == this.tail.get()) {
+                LockSupport.park(this);
+            }
+
+            this.waiting = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+
+        return diff;
+    }
+
+    /**
+     * Returns the number of waiting diffs, which is only a snapshot from other threads
+     */
+    public int size() {
+        return (int) (this.tail.get() - this.head.get());
+    }
+
+    public int capacity() {
+        return this.mask + 1;
+    }
+}
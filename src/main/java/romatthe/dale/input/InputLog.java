@@ -0,0 +1,201 @@
+package romatthe.dale.input;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A recording of everything that reaches a machine from outside: keypad changes and
+ * timer ticks, each stamped with the number of instructions executed before it.
+ *
+ * Together with the random state the recording started from, this is all it takes to
+ * run the same program to the exact same state again. Events are stored as a varint of
+ * the instructions since the previous event, shifted left by one with the low bit set for
+ * keypad events, which are followed by the two bytes of the new keypad state. A timer
+ * tick every few instructions therefore costs a single byte.
+ */
+public class InputLog {
+
+    private static final int MAGIC = 0x44494E50; // DINP
+    private static final byte VERSION = 1;
+
+    private final long randomState;
+
+    private byte[] events = new byte[256];
+    private int length = 0;
+    private int count = 0;
+    private long lastCycle = 0;
+
+    public InputLog(long randomState) {
+        this.randomState = randomState;
+    }
+
+    /**
+     * Records the keypad taking the given state once cycle instructions were executed
+     */
+    public void keys(long cycle, int state) {
+        this.stamp(cycle, 1);
+        this.ensure(2);
+        this.events[this.length++] = (byte) (state >> 8);
+        this.events[this.length++] = (byte) state;
+    }
+
+    /**
+     * Records the timers ticking once cycle instructions were executed
+     */
+    public void tick(long cycle) {
+        this.stamp(cycle, 0);
+    }
+
+    /**
+     * Returns the random state of the machine when the recording started
+     */
+    public long getRandomState() {
+        return randomState;
+    }
+
+    public int getEventCount() {
+        return count;
+    }
+
+    /**
+     * Returns the cycle of the last event, so the length of the recording in instructions
+     */
+    public long getLastCycle() {
+        return lastCycle;
+    }
+
+    /**
+     * Returns a new cursor at the first event
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    public void write(Path path) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4 + 1 + 8 + 4 + 4);
+        header.putInt(MAGIC).put(VERSION).putLong(this.randomState).putInt(this.count).putInt(this.length);
+
+        byte[] file = Arrays.copyOf(header.array(), header.capacity() + this.length);
+        System.arraycopy(this.events, 0, file, header.capacity(), this.length);
+        Files.write(path, file);
+    }
+
+    public static InputLog read(Path path) throws IOException {
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (file.remaining() < 4 + 1 + 8 + 4 + 4 || file.getInt() != MAGIC) {
+            throw new IOException(path + " is not an input log");
+        }
+        byte version = file.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported input log version " + version);
+        }
+
+        InputLog log = new InputLog(file.getLong());
+        int count = file.getInt();
+        int length = file.getInt();
+        if (length != file.remaining()) {
+            throw new IOException(path + " is truncated");
+        }
+
+        log.events = new byte[Math.max(length, 1)];
+        file.get(log.events, 0, length);
+        log.length = length;
+        log.count = count;
+
+        // Walk the events once to validate them and find the last cycle
+        Cursor cursor = log.cursor();
+        while (cursor.next()) {
+            log.lastCycle = cursor.getCycle();
+        }
+
+        return log;
+    }
+
+    private void stamp(long cycle, int keyEvent) {
+        if (cycle < this.lastCycle) {
+            throw new IllegalArgumentException("Event at cycle " + cycle + " is before cycle " + this.lastCycle);
+        }
+
+        this.ensure(10);
+        long value = ((cycle - this.lastCycle) << 1) | keyEvent;
+        while ((value & ~0x7FL) != 0) {
+            this.events[this.length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        this.events[this.length++] = (byte) value;
+
+        this.lastCycle = cycle;
+        this.count++;
+    }
+
+    private void ensure(int bytes) {
+        if (this.length + bytes > this.events.length) {
+            this.events = Arrays.copyOf(this.events, Math.max(this.events.length * 2, this.length + bytes));
+        }
+    }
+
+    /**
+     * Reads the events of a log in order
+     */
+    public final class Cursor {
+
+        private int position = 0;
+        private long cycle = 0;
+        private boolean keyEvent;
+        private int state;
+
+        /**
+         * Moves to the next event, returns false once there are no more
+         */
+        public boolean next() {
+            if (this.position >= InputLog.this.length) {
+                return false;
+            }
+
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (this.position >= InputLog.this.length || shift > 63) {
+                    throw new IllegalStateException("Corrupt input log at byte " + this.position);
+                }
+                b = InputLog.this.events[this.position++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            this.cycle += value >>> 1;
+            this.keyEvent = (value & 1) != 0;
+            if (this.keyEvent) {
+                if (this.position + 2 > InputLog.this.length) {
+                    throw new IllegalStateException("Corrupt input log at byte " + this.position);
+                }
+                this.state = ((InputLog.this.events[this.position] & 0xFF) << 8) | (InputLog.this.events[this.position + 1] & 0xFF);
+                this.position += 2;
+            }
+
+            return true;
+        }
+
+        public long getCycle() {
+            return cycle;
+        }
+
+        /**
+         * Returns whether the current event is a keypad change, otherwise it is a timer tick
+         */
+        public boolean isKeyEvent() {
+            return keyEvent;
+        }
+
+        /**
+         * Returns the keypad state of the current keypad event
+         */
+        public int getState() {
+            return state;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package romatthe.dale.input;
+
+import romatthe.dale.cpu.Cpu;
+
+/**
+ * Runs a machine headless against a recorded InputLog, reproducing the recorded session
+ * bit for bit.
+ *
+ * Keypad changes and timer ticks are applied at exactly the instruction counts they were
+ * recorded at. Whenever the program waits for a key with FX0A, the replay does not spin
+ * through the wait like a live machine would, but jumps straight to the next recorded
+ * keypad change, ticking the timers on the way. Spinning on FX0A changes nothing else, so
+ * the end result is the same, only much faster than real time.
+ */
+public class InputReplayer {
+
+    private final Cpu cpu;
+    private final InputLog.Cursor cursor;
+
+    private long cycles = 0;
+    private boolean pending;
+
+    /**
+     * Prepares a replay on a machine in the state the recording started from. The random
+     * state is taken from the log.
+     */
+    public InputReplayer(Cpu cpu, InputLog log) {
+        this.cpu = cpu;
+        this.cursor = log.cursor();
+        this.pending = this.cursor.next();
+
+        cpu.setRandomState(log.getRandomState());
+        cpu.getKeypad().setState(0);
+    }
+
+    /**
+     * Replays until every recorded event has been applied. Returns the number of
+     * instructions the replayed session took.
+     */
+    public long run() {
+        while (this.pending) {
+            this.run(this.cursor.getCycle() - this.cycles);
+        }
+
+        return this.cycles;
+    }
+
+    /**
+     * Replays the given number of instructions, or less once the log runs out while the
+     * program is waiting for a key. Returns the number of instructions replayed.
+     */
+    public long run(long instructions) {
+        Keypad keypad = this.cpu.getKeypad();
+        long start = this.cycles;
+        long end = start + instructions;
+
+        while (this.cycles < end || (this.pending && this.cursor.getCycle() == end)) {
+            // Apply everything that happened before the next instruction
+            while (this.pending && this.cursor.getCycle() == this.cycles) {
+                this.apply();
+            }
+            if (this.cycles == end) {
+                break;
+            }
+
+            if (keypad.isWaiting()) {
+                if (!this.pending) {
+                    // Waiting for a key that never comes
+                    break;
+                }
+
+                // Skip the spinning, it only counts instructions until the next event
+                long skipped = Math.min(this.cursor.getCycle(), end) - this.cycles;
+                this.cycles += skipped;
+                continue;
+            }
+
+            this.cpu.step();
+            this.cycles++;
+        }
+
+        return this.cycles - start;
+    }
+
+    /**
+     * Returns the number of instructions replayed so far, including skipped waits
+     */
+    public long getCycles() {
+        return cycles;
+    }
+
+    /**
+     * Returns whether recorded events are left
+     */
+    public boolean hasPendingEvents() {
+        return pending;
+    }
+
+    private void apply() {
+        if (this.cursor.isKeyEvent()) {
+            this.cpu.getKeypad().setState(this.cursor.getState());
+            this.cpu.getKeypad().setWaiting(false);
+        } else {
+            this.cpu.tickTimers();
+        }
+
+        this.pending = this.cursor.next();
+    }
+}
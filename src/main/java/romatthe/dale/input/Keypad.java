@@ -0,0 +1,99 @@
+package romatthe.dale.input;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The 16 key hexadecimal keypad, one bit per key.
+ *
+ * Keys can be pressed and released from any thread, but the machine does not see those
+ * changes until latch() is called. The Scheduler latches at the start of every frame, so
+ * input always reaches the program at a known instruction count and a recorded session
+ * can be replayed exactly.
+ */
+public class Keypad {
+
+    public static final int KEYS = 16;
+
+    // Written by the input thread, read on latch(). Updated with plain compare-and-set
+    // loops, as a lambda capturing the key would be allocated on every press.
+    private final AtomicInteger pending = new AtomicInteger();
+
+    // What the instructions see
+    private int state = 0;
+
+    // Set while FX0A is waiting for a key
+    private boolean waiting = false;
+
+    public void press(int key) {
+        int bit = bit(key);
+        int keys;
+        do {
+            keys = this.pending.get();
+        } while (!this.pending.compareAndSet(keys, keys | bit));
+    }
+
+    public void release(int key) {
+        int bit = bit(key);
+        int keys;
+        do {
+            keys = this.pending.get();
+        } while (!this.pending.compareAndSet(keys, keys & ~bit));
+    }
+
+    /**
+     * Makes the keys pressed and released since the last latch visible to the machine.
+     * Returns whether the state changed.
+     */
+    public boolean latch() {
+        int latched = this.pending.get();
+        if (latched == this.state) {
+            return false;
+        }
+
+        this.state = latched;
+
+        return true;
+    }
+
+    public boolean isPressed(int key) {
+        return (this.state & (1 << (key & 0xF))) != 0;
+    }
+
+    /**
+     * Returns the lowest key that is pressed, or -1 if there is none
+     */
+    public int firstPressed() {
+        return this.state == 0 ? -1 : Integer.numberOfTrailingZeros(this.state);
+    }
+
+    /**
+     * Returns the latched state, bit n is set while key n is pressed
+     */
+    public int getState() {
+        return state;
+    }
+
+    /**
+     * Sets both the latched and the pending state, for replays and restoring snapshots
+     */
+    public void setState(int state) {
+        this.state = state & 0xFFFF;
+        this.pending.set(this.state);
+    }
+
+    public boolean isWaiting() {
+        return waiting;
+    }
+
+    public void setWaiting(boolean waiting) {
+        this.waiting = waiting;
+    }
+
+    private static int bit(int key) {
+        if (key < 0 || key >= KEYS) {
+            throw new IllegalArgumentException("No key " + key);
+        }
+
+        return 1 << key;
+    }
+}
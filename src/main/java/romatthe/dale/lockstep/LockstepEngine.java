@@ -0,0 +1,644 @@
+package romatthe.dale.lockstep;
+
+import romatthe.dale.cpu.Cpu;
+import romatthe.dale.cpu.Variant;
+import romatthe.dale.display.Display;
+import romatthe.dale.input.InputLog;
+
+import java.util.Arrays;
+
+/**
+ * Runs many instances of the same program side by side, one lane per instance.
+ *
+ * All machine state is kept as structure of arrays: V0-VF as byte[16][lanes], the screen as
+ * long[32][lanes], and so on. Every cycle the running lanes are grouped by program counter,
+ * each group's opcode is fetched and decoded once, and the instruction is then applied to
+ * every lane of the group in a tight loop. Lanes which branch differently simply end up in
+ * different groups on the next cycle, and merge again once their program counters meet.
+ *
+ * Memory is shared copy-on-write: all lanes read from one image of the prototype's memory,
+ * and a lane gets a private copy of a 256 byte page the first time it writes to it. A lane
+ * whose own copy of the code differs from the shared image is decoded on its own.
+ *
+ * Every lane advances exactly one instruction per cycle and has a keypad of its own, so
+ * every lane can be fed a different input sequence. A lane either gets its keys from
+ * setKeys() and its timers ticked every instructionsPerFrame cycles, ending up exactly
+ * where an unthrottled Scheduler with the same instructions per frame would have taken a
+ * single Cpu, or it replays an InputLog: the keypad changes and timer ticks of the log are
+ * then applied at the cycles they were recorded at, exactly like an InputReplayer does.
+ */
+public class LockstepEngine {
+
+    public static final int PAGE_SHIFT = 8;
+    public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    private final int lanes;
+    private final int instructionsPerFrame;
+    private final int mask;
+
+    // Memory: the shared image, and the pages each lane has written to
+    private final byte[] shared;
+    private final byte[][][] pages;
+
+    // Registers, one array per register with one element per lane
+    private final byte[][] v = new byte[16][];
+    private final short[] i;
+    private final int[] pc;
+    private final int[] sp;
+    private final short[][] stack = new short[Cpu.STACK_DEPTH][];
+    private final byte[] delay;
+    private final byte[] sound;
+    private final long[] random;
+    private final long[][] display = new long[Display.HEIGHT][];
+
+    // Keypad state, bit n is set while key n is pressed
+    private final short[] keys;
+
+    // Lanes replaying an InputLog, with the cycle of their next event
+    private final InputLog.Cursor[] inputs;
+    private final long[] nextInput;
+    private final long[] inputBase;
+    private long nextInputCycle = Long.MAX_VALUE;
+
+    // Lanes which hit an invalid opcode stop running and keep their error
+    private final String[] errors;
+    private int halted = 0;
+
+    // Grouping scratch space: lanes are chained into per-address buckets every cycle
+    private final int[] head;
+    private final int[] next;
+    private final int[] touched;
+    private final int[] group;
+    private final int[] single = new int[1];
+
+    private long cycles = 0;
+    private long groups = 0;
+    private long laneInstructions = 0;
+
+    /**
+     * Creates the given number of lanes, all starting from the state of the prototype
+     */
+    public LockstepEngine(Cpu prototype, int lanes, int instructionsPerFrame) {
+        if (lanes <= 0 || instructionsPerFrame <= 0) {
+            throw new IllegalArgumentException("Lanes and instructions per frame must be positive");
+        }
+        if (prototype.getVariant() != Variant.CHIP_8) {
+            throw new IllegalArgumentException("Only Chip 8 machines can run in lockstep, not " + prototype.getVariant());
+        }
+
+        int size = prototype.getMemory().size();
+
+        this.lanes = lanes;
+        this.instructionsPerFrame = instructionsPerFrame;
+        this.mask = size - 1;
+
+        this.shared = new byte[size];
+        prototype.getMemory().copyTo(this.shared);
+        this.pages = new byte[lanes][(size + PAGE_SIZE - 1) >> PAGE_SHIFT][];
+
+        for (int r = 0; r < 16; r++) {
+            this.v[r] = new byte[lanes];
+            Arrays.fill(this.v[r], (byte) prototype.getRegisterAt(r));
+        }
+        this.i = filled(new short[lanes], prototype.getIndexRegisterI());
+        this.pc = new int[lanes];
+        Arrays.fill(this.pc, prototype.getProgramCounter());
+        this.sp = new int[lanes];
+        Arrays.fill(this.sp, prototype.getStackPointer());
+        for (int depth = 0; depth < Cpu.STACK_DEPTH; depth++) {
+            this.stack[depth] = filled(new short[lanes], (short) prototype.getStackAt(depth));
+        }
+        this.delay = new byte[lanes];
+        Arrays.fill(this.delay, (byte) prototype.getDelayRegister());
+        this.sound = new byte[lanes];
+        Arrays.fill(this.sound, (byte) prototype.getSoundRegister());
+        this.random = new long[lanes];
+        Arrays.fill(this.random, prototype.getRandomState());
+        for (int y = 0; y < Display.HEIGHT; y++) {
+            this.display[y] = new long[lanes];
+            Arrays.fill(this.display[y], prototype.getDisplay().getRow(y));
+        }
+
+        this.keys = new short[lanes];
+        Arrays.fill(this.keys, (short) prototype.getKeypad().getState());
+        this.inputs = new InputLog.Cursor[lanes];
+        this.nextInput = new long[lanes];
+        Arrays.fill(this.nextInput, Long.MAX_VALUE);
+        this.inputBase = new long[lanes];
+
+        this.errors = new String[lanes];
+        this.head = new int[size];
+        Arrays.fill(this.head, -1);
+        this.next = new int[lanes];
+        this.touched = new int[lanes];
+        this.group = new int[lanes];
+    }
+
+    /**
+     * Seeds the random number generator of a single lane, so lanes can explore different
+     * paths through the same program
+     */
+    public void setRandomState(int lane, long randomState) {
+        this.random[lane] = randomState;
+    }
+
+    /**
+     * Sets the keys pressed on a single lane, bit n is set while key n is pressed. The
+     * program sees them from the next cycle on.
+     */
+    public void setKeys(int lane, int state) {
+        this.keys[lane] = (short) state;
+    }
+
+    public int getKeys(int lane) {
+        return this.keys[lane] & 0xFFFF;
+    }
+
+    /**
+     * Replays an InputLog on a single lane, from the current cycle on. The lane takes its
+     * random state from the log, and from then on its keys and timer ticks come from the
+     * log only. Once the log runs out the keys stay as they were and the timers stop, as
+     * they would on a Cpu with nothing left to replay.
+     */
+    public void setInput(int lane, InputLog log) {
+        InputLog.Cursor cursor = log.cursor();
+
+        this.inputs[lane] = cursor;
+        this.random[lane] = log.getRandomState();
+        this.keys[lane] = 0;
+        this.nextInput[lane] = cursor.next() ? this.cycles + cursor.getCycle() : Long.MAX_VALUE;
+        this.inputBase[lane] = this.cycles;
+        this.nextInputCycle = Math.min(this.nextInputCycle, this.nextInput[lane]);
+    }
+
+    /**
+     * Runs the given number of cycles, every running lane executes one instruction per cycle
+     */
+    public void run(long cycles) {
+        for (long c = 0; c < cycles && this.halted < this.lanes; c++) {
+            this.cycle();
+        }
+    }
+
+    /**
+     * Executes one instruction on every running lane
+     */
+    public void cycle() {
+        if (this.cycles >= this.nextInputCycle) {
+            this.applyInputs();
+        }
+
+        // Chain every running lane into the bucket of its program counter
+        int touchedCount = 0;
+        for (int lane = 0; lane < this.lanes; lane++) {
+            if (this.errors[lane] != null) {
+                continue;
+            }
+
+            int address = this.pc[lane];
+            if (this.head[address] == -1) {
+                this.touched[touchedCount++] = address;
+            }
+            this.next[lane] = this.head[address];
+            this.head[address] = lane;
+        }
+
+        for (int t = 0; t < touchedCount; t++) {
+            int address = this.touched[t];
+            int lane = this.head[address];
+            this.head[address] = -1;
+
+            // Lanes which rewrote the code at this address are decoded on their own
+            int sharedOpcode = ((this.shared[address] & 0xFF) << 8) | (this.shared[(address + 1) & this.mask] & 0xFF);
+            int count = 0;
+            for (; lane != -1; lane = this.next[lane]) {
+                int opcode = (this.read(lane, address) << 8) | this.read(lane, address + 1);
+                if (opcode == sharedOpcode) {
+                    this.group[count++] = lane;
+                } else {
+                    this.pc[lane] = (address + 2) & this.mask;
+                    this.single[0] = lane;
+                    this.execute(opcode, this.single, 1);
+                }
+            }
+
+            if (count > 0) {
+                int opcode = sharedOpcode;
+                int pcNext = (address + 2) & this.mask;
+                for (int g = 0; g < count; g++) {
+                    this.pc[this.group[g]] = pcNext;
+                }
+                this.execute(opcode, this.group, count);
+            }
+        }
+
+        this.cycles++;
+        if (this.cycles % this.instructionsPerFrame == 0) {
+            this.tickTimers();
+        }
+    }
+
+    public int getLanes() {
+        return lanes;
+    }
+
+    public long getCycles() {
+        return cycles;
+    }
+
+    /**
+     * Returns how many lanes shared each decoded instruction on average so far
+     */
+    public double getAverageGroupSize() {
+        return this.groups == 0 ? 0 : (double) this.laneInstructions / this.groups;
+    }
+
+    /**
+     * Returns the error which stopped the given lane, or null while it is running
+     */
+    public String getError(int lane) {
+        return this.errors[lane];
+    }
+
+    public int getProgramCounter(int lane) {
+        return this.pc[lane];
+    }
+
+    public short getRegisterAt(int lane, int register) {
+        return (short) this.reg(register, lane);
+    }
+
+    public short getIndexRegisterI(int lane) {
+        return this.i[lane];
+    }
+
+    /**
+     * Returns the number of memory pages the given lane has a private copy of
+     */
+    public int getPrivatePages(int lane) {
+        int count = 0;
+        for (byte[] page : this.pages[lane]) {
+            if (page != null) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Copies the state of a single lane into a standalone Cpu
+     */
+    public Cpu toCpu(int lane) {
+        Cpu cpu = new Cpu();
+
+        byte[] memory = this.shared.clone();
+        byte[][] lanePages = this.pages[lane];
+        for (int p = 0; p < lanePages.length; p++) {
+            if (lanePages[p] != null) {
+                System.arraycopy(lanePages[p], 0, memory, p << PAGE_SHIFT, lanePages[p].length);
+            }
+        }
+        cpu.getMemory().load(memory, 0);
+
+        for (int r = 0; r < 16; r++) {
+            cpu.setRegisterAt(r, (short) this.reg(r, lane));
+        }
+        cpu.setIndexRegisterI(this.i[lane]);
+        cpu.setProgramCounter(this.pc[lane]);
+        cpu.setStackPointer(this.sp[lane]);
+        for (int depth = 0; depth < Cpu.STACK_DEPTH; depth++) {
+            cpu.setStackAt(depth, this.stack[depth][lane]);
+        }
+        cpu.setDelayRegister((short) (this.delay[lane] & 0xFF));
+        cpu.setSoundRegister((short) (this.sound[lane] & 0xFF));
+        cpu.setRandomState(this.random[lane]);
+        cpu.getKeypad().setState(this.keys[lane]);
+        for (int y = 0; y < Display.HEIGHT; y++) {
+            cpu.getDisplay().setRow(y, this.display[y][lane]);
+        }
+
+        return cpu;
+    }
+
+    /**
+     * Applies one instruction to every lane in group[0..count). The program counters have
+     * already been advanced past it.
+     */
+    private void execute(int opcode, int[] group, int count) {
+        this.groups++;
+        this.laneInstructions += count;
+
+        int x = (opcode & 0x0F00) >> 8;
+        int y = (opcode & 0x00F0) >> 4;
+        int n = opcode & 0x000F;
+        int nn = opcode & 0x00FF;
+        int nnn = opcode & 0x0FFF;
+        byte[] vx = this.v[x];
+        byte[] vy = this.v[y];
+        byte[] vf = this.v[0xF];
+
+        switch (opcode & 0xF000) {
+            case 0x0000:
+                if (opcode == 0x00E0) {
+                    for (int g = 0; g < count; g++) {
+                        int lane = group[g];
+                        for (int row = 0; row < Display.HEIGHT; row++) {
+                            this.display[row][lane] = 0L;
+                        }
+                    }
+                } else if (opcode == 0x00EE) {
+                    for (int g = 0; g < count; g++) {
+                        int lane = group[g];
+                        if (this.sp[lane] == 0) {
+                            this.halt(lane, "Call stack underflow, return without a call");
+                            continue;
+                        }
+                        this.pc[lane] = this.stack[--this.sp[lane]][lane];
+                    }
+                }
+                break;
+            case 0x1000:
+                for (int g = 0; g < count; g++) {
+                    this.pc[group[g]] = nnn;
+                }
+                break;
+            case 0x2000:
+                for (int g = 0; g < count; g++) {
+                    int lane = group[g];
+                    if (this.sp[lane] == Cpu.STACK_DEPTH) {
+                        this.halt(lane, "Call stack overflow, more than " + Cpu.STACK_DEPTH + " nested calls");
+                        continue;
+                    }
+                    this.stack[this.sp[lane]++][lane] = (short) this.pc[lane];
+                    this.pc[lane] = nnn;
+                }
+                break;
+            case 0x3000:
+                for (int g = 0; g < count; g++) {
+                    int lane = group[g];
+                    if ((vx[lane] & 0xFF) == nn) {
+                        this.skip(lane);
+                    }
+                }
+                break;
+            case 0x4000:
+                for (int g = 0; g < count; g++) {
+                    int lane = group[g];
+                    if ((vx[lane] & 0xFF) != nn) {
+                        this.skip(lane);
+                    }
+                }
+                break;
+            case 0x5000:
+            case 0x9000:
+                if (n != 0) {
+                    this.halt(opcode, group, count);
+                    break;
+                }
+                boolean skipOnEqual = (opcode & 0xF000) == 0x5000;
+                for (int g = 0; g < count; g++) {
+                    int lane = group[g];
+                    if ((vx[lane] == vy[lane]) == skipOnEqual) {
+                        this.skip(lane);
+                    }
+                }
+                break;
+            case 0x6000:
+                for (int g = 0; g < count; g++) {
+                    vx[group[g]] = (byte) nn;
+                }
+                break;
+            case 0x7000:
+                for (int g = 0; g < count; g++) {
+                    vx[group[g]] += (byte) nn;
+                }
+                break;
+            case 0x8000:
+                this.alu(n, vx, vy, vf, opcode, group, count);
+                break;
+            case 0xA000:
+                for (int g = 0; g < count; g++) {
+                    this.i[group[g]] = (short) nnn;
+                }
+                break;
+            case 0xB000:
+                for (int g = 0; g < count; g++) {
+                    int lane = group[g];
+                    this.pc[lane] = ((this.v[0][lane] & 0xFF) + nnn) & this.mask;
+                }
+                break;
+            case 0xC000:
+                for (int g = 0; g < count; g++) {
+                    int lane = group[g];
+                    vx[lane] = (byte) (nn & this.nextRandomByte(lane));
+                }
+                break;
+            case 0xD000:
+                for (int g = 0; g < count; g++) {
+                    this.draw(group[g], vx, vy, n);
+                }
+                break;
+            case 0xE000:
+                if (nn != 0x9E && nn != 0xA1) {
+                    this.halt(opcode, group, count);
+                    break;
+                }
+                boolean skipOnPressed = nn == 0x9E;
+                for (int g = 0; g < count; g++) {
+                    int lane = group[g];
+                    if (((this.keys[lane] & (1 << (vx[lane] & 0xF))) != 0) == skipOnPressed) {
+                        this.skip(lane);
+                    }
+                }
+                break;
+            case 0xF000:
+                this.misc(nn, x, vx, opcode, group, count);
+                break;
+        }
+    }
+
+    private void alu(int n, byte[] vx, byte[] vy, byte[] vf, int opcode, int[] group, int count) {
+        for (int g = 0; g < count; g++) {
+            int lane = group[g];
+            int a = vx[lane] & 0xFF;
+            int b = vy[lane] & 0xFF;
+
+            switch (n) {
+                case 0x0: vx[lane] = (byte) b; break;
+                case 0x1: vx[lane] = (byte) (a | b); break;
+                case 0x2: vx[lane] = (byte) (a & b); break;
+                case 0x3: vx[lane] = (byte) (a ^ b); break;
+                case 0x4:
+                    vf[lane] = (byte) ((a + b) >> 8);
+                    vx[lane] = (byte) (a + b);
+                    break;
+                case 0x5:
+                    vf[lane] = (byte) (a >= b ? 1 : 0);
+                    vx[lane] = (byte) (a - b);
+                    break;
+                case 0x6:
+                    vf[lane] = (byte) (a & 0x1);
+                    vx[lane] = (byte) ((vx[lane] & 0xFF) >> 1);
+                    break;
+                case 0x7:
+                    vf[lane] = (byte) (b >= a ? 1 : 0);
+                    vx[lane] = (byte) (b - a);
+                    break;
+                case 0xE:
+                    vf[lane] = (byte) ((a & 0x80) >> 7);
+                    vx[lane] = (byte) ((vx[lane] & 0xFF) << 1);
+                    break;
+                default:
+                    this.halt(opcode, group, count);
+                    return;
+            }
+        }
+    }
+
+    private void misc(int nn, int x, byte[] vx, int opcode, int[] group, int count) {
+        for (int g = 0; g < count; g++) {
+            int lane = group[g];
+
+            switch (nn) {
+                case 0x07: vx[lane] = this.delay[lane]; break;
+                case 0x0A:
+                    if (this.keys[lane] == 0) {
+                        this.pc[lane] = (this.pc[lane] - 2) & this.mask;
+                    } else {
+                        vx[lane] = (byte) Integer.numberOfTrailingZeros(this.keys[lane]);
+                    }
+                    break;
+                case 0x15: this.delay[lane] = vx[lane]; break;
+                case 0x18: this.sound[lane] = vx[lane]; break;
+                case 0x1E: this.i[lane] = (short) (this.i[lane] + (vx[lane] & 0xFF)); break;
+                case 0x29: this.i[lane] = (short) ((vx[lane] & 0xFF) * 5); break;
+                case 0x33:
+                    int bcd = vx[lane] & 0xFF;
+                    this.write(lane, this.i[lane], bcd / 100);
+                    this.write(lane, this.i[lane] + 1, (bcd % 100) / 10);
+                    this.write(lane, this.i[lane] + 2, (bcd % 100) % 10);
+                    break;
+                case 0x55:
+                    for (int r = 0; r <= x; r++) {
+                        this.write(lane, this.i[lane] + r, this.v[r][lane]);
+                    }
+                    break;
+                case 0x65:
+                    for (int r = 0; r <= x; r++) {
+                        this.v[r][lane] = (byte) this.read(lane, this.i[lane] + r);
+                    }
+                    break;
+                default:
+                    this.halt(opcode, group, count);
+                    return;
+            }
+        }
+    }
+
+    private void draw(int lane, byte[] vx, byte[] vy, int height) {
+        int x = vx[lane] & 0xFF;
+        int y = vy[lane] & 0xFF;
+        long collision = 0L;
+
+        for (int row = 0; row < height; row++) {
+            long sprite = Long.rotateRight(((long) this.read(lane, this.i[lane] + row)) << 56, x);
+            long[] rows = this.display[(y + row) & (Display.HEIGHT - 1)];
+
+            collision |= rows[lane] & sprite;
+            rows[lane] ^= sprite;
+        }
+
+        this.v[0xF][lane] = (byte) (collision != 0L ? 1 : 0);
+    }
+
+    // Applies the events of every log which are due before the next cycle
+    private void applyInputs() {
+        long next = Long.MAX_VALUE;
+
+        for (int lane = 0; lane < this.lanes; lane++) {
+            InputLog.Cursor cursor = this.inputs[lane];
+            while (this.nextInput[lane] == this.cycles) {
+                if (cursor.isKeyEvent()) {
+                    this.keys[lane] = (short) cursor.getState();
+                } else {
+                    this.tickTimers(lane);
+                }
+                this.nextInput[lane] = cursor.next() ? this.inputBase[lane] + cursor.getCycle() : Long.MAX_VALUE;
+            }
+            next = Math.min(next, this.nextInput[lane]);
+        }
+
+        this.nextInputCycle = next;
+    }
+
+    // Ticks the timers of every lane which does not replay a log
+    private void tickTimers() {
+        for (int lane = 0; lane < this.lanes; lane++) {
+            if (this.inputs[lane] == null) {
+                this.tickTimers(lane);
+            }
+        }
+    }
+
+    private void tickTimers(int lane) {
+        if (this.delay[lane] != 0) {
+            this.delay[lane]--;
+        }
+        if (this.sound[lane] != 0) {
+            this.sound[lane]--;
+        }
+    }
+
+    private int nextRandomByte(int lane) {
+        long z = (this.random[lane] += 0x9E3779B97F4A7C15L);
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+
+        return (int) (z ^ (z >>> 31)) & 0xFF;
+    }
+
+    private void skip(int lane) {
+        this.pc[lane] = (this.pc[lane] + 2) & this.mask;
+    }
+
+    private void halt(int opcode, int[] group, int count) {
+        for (int g = 0; g < count; g++) {
+            this.halt(group[g], String.format("Unknown opcode 0x%04X", opcode));
+        }
+    }
+
+    private void halt(int lane, String error) {
+        if (this.errors[lane] == null) {
+            this.errors[lane] = error;
+            this.halted++;
+        }
+    }
+
+    private int reg(int register, int lane) {
+        return this.v[register][lane] & 0xFF;
+    }
+
+    private int read(int lane, int address) {
+        address &= this.mask;
+        byte[] page = this.pages[lane][address >> PAGE_SHIFT];
+
+        return (page != null ? page[address & (PAGE_SIZE - 1)] : this.shared[address]) & 0xFF;
+    }
+
+    private void write(int lane, int address, int value) {
+        address &= this.mask;
+        byte[][] lanePages = this.pages[lane];
+        int p = address >> PAGE_SHIFT;
+
+        if (lanePages[p] == null) {
+            lanePages[p] = Arrays.copyOfRange(this.shared, p << PAGE_SHIFT, Math.min(this.shared.length, (p + 1) << PAGE_SHIFT));
+        }
+        lanePages[p][address & (PAGE_SIZE - 1)] = (byte) value;
+    }
+
+    private static short[] filled(short[] array, short value) {
+        Arrays.fill(array, value);
+        return array;
+    }
+}
@@ -0,0 +1,92 @@
+package romatthe.dale.rom;
+
+import romatthe.dale.cpu.Cpu;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A single Rom in a RomLibrary. The contents of a Rom in an archive are a read-only view on
+ * the mapped archive, those of a Rom in a directory are only read from its file when they
+ * are asked for. The hash is computed the first time it is needed, unless the archive
+ * index already holds it.
+ */
+public class RomEntry {
+
+    private final String name;
+    private final int size;
+
+    // Either the slice of a mapped archive, or the file to read the contents from
+    private final ByteBuffer contents;
+    private final Path file;
+
+    private volatile String hash;
+
+    RomEntry(String name, String hash, ByteBuffer contents) {
+        this.name = name;
+        this.size = contents.remaining();
+        this.contents = contents;
+        this.file = null;
+        this.hash = hash;
+    }
+
+    RomEntry(String name, Path file, int size) {
+        this.name = name;
+        this.size = size;
+        this.contents = null;
+        this.file = file;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the hex encoded SHA-1 of the Rom's contents
+     */
+    public String getHash() {
+        String hash = this.hash;
+        if (hash == null) {
+            hash = RomLibrary.hash(this.getContents());
+            this.hash = hash;
+        }
+
+        return hash;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns a read-only view on the Rom's contents, positioned at its first byte
+     *
+     * @throws UncheckedIOException if the file of a Rom in a directory can not be read
+     */
+    public ByteBuffer getContents() {
+        if (this.contents != null) {
+            return this.contents.duplicate();
+        }
+
+        try {
+            return ByteBuffer.wrap(Files.readAllBytes(this.file)).asReadOnlyBuffer();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can not read Rom " + this.file, e);
+        }
+    }
+
+    /**
+     * Loads the Rom into the given machine, straight from the mapped archive if it is in one
+     */
+    public void loadInto(Cpu cpu) {
+        cpu.load(this.getContents());
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + getHash() + ", " + getSize() + " bytes)";
+    }
+}
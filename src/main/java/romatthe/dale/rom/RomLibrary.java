@@ -0,0 +1,241 @@
+package romatthe.dale.rom;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A collection of Roms, from either a directory of Rom files or a single packed archive,
+ * and indexed by the SHA-1 of their contents.
+ *
+ * Opening a directory only lists it: a Rom file is read when its contents are asked for
+ * and hashed when its hash is. An archive is mapped as a whole and carries the hashes in
+ * its index, so opening one reads the entry headers only and loading a Rom into a machine
+ * is one bulk copy from the mapped pages. Large collections, like tens of thousands of
+ * Roms, are best packed into an archive, which costs one file and one mapping rather than
+ * one of each per Rom. Roms with identical contents are only indexed once by hash.
+ *
+ * The archive format is a header followed by the entries back to back:
+ *
+ * <pre>
+ * int    magic "DROM"
+ * byte   version
+ * int    number of entries
+ * entry: short name length, UTF-8 name, 20 byte SHA-1, int contents length, contents
+ * </pre>
+ */
+public class RomLibrary {
+
+    private static final int ARCHIVE_MAGIC = 0x44524F4D; // DROM
+    private static final byte ARCHIVE_VERSION = 2;
+    private static final int HASH_SIZE = 20;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final List<RomEntry> entries;
+    private final Map<String, RomEntry> byName;
+
+    // Built on the first lookup by hash, as it hashes every Rom of a directory
+    private Map<String, RomEntry> byHash;
+
+    private RomLibrary(List<RomEntry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+        this.byName = new LinkedHashMap<>();
+
+        for (RomEntry entry : entries) {
+            this.byName.put(entry.getName(), entry);
+        }
+    }
+
+    /**
+     * Opens either a directory of Roms or a packed archive, depending on what path is
+     */
+    public static RomLibrary open(Path path) throws IOException {
+        return Files.isDirectory(path) ? openDirectory(path) : openArchive(path);
+    }
+
+    /**
+     * Lists every regular file in the directory as a Rom, ordered by file name. Nothing is
+     * read from the files yet.
+     */
+    public static RomLibrary openDirectory(Path directory) throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+
+        List<RomEntry> entries = new ArrayList<>(files.size());
+        for (Path file : files) {
+            long size = Files.size(file);
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to be a Rom");
+            }
+            entries.add(new RomEntry(file.getFileName().toString(), file, (int) size));
+        }
+
+        return new RomLibrary(entries);
+    }
+
+    /**
+     * Maps a packed archive as a whole, every entry is a slice of the one mapping. Only the
+     * entry headers are read, the hashes come from the archive.
+     */
+    public static RomLibrary openArchive(Path archive) throws IOException {
+        ByteBuffer mapped = map(archive).asReadOnlyBuffer();
+
+        if (mapped.remaining() < 9 || mapped.getInt() != ARCHIVE_MAGIC) {
+            throw new IOException(archive + " is not a Rom archive");
+        }
+        byte version = mapped.get();
+        if (version != ARCHIVE_VERSION) {
+            throw new IOException(archive + " is a Rom archive of version " + version + ", pack it again");
+        }
+
+        int count = mapped.getInt();
+        List<RomEntry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (mapped.remaining() < 2) {
+                throw new IOException(archive + " is truncated at entry " + i);
+            }
+            byte[] name = new byte[mapped.getShort() & 0xFFFF];
+            if (mapped.remaining() < name.length + HASH_SIZE + 4) {
+                throw new IOException(archive + " is truncated at entry " + i);
+            }
+            mapped.get(name);
+            byte[] hash = new byte[HASH_SIZE];
+            mapped.get(hash);
+            int length = mapped.getInt();
+            if (length < 0 || length > mapped.remaining()) {
+                throw new IOException(archive + " is truncated at entry " + i);
+            }
+
+            ByteBuffer contents = mapped.slice();
+            contents.limit(length);
+            mapped.position(mapped.position() + length);
+
+            entries.add(new RomEntry(new String(name, StandardCharsets.UTF_8), hex(hash), contents));
+        }
+
+        return new RomLibrary(entries);
+    }
+
+    /**
+     * Packs every regular file in the directory into a single archive
+     */
+    public static void pack(Path directory, Path archive) throws IOException {
+        RomLibrary library = openDirectory(directory);
+
+        try (FileChannel channel = FileChannel.open(archive,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(9);
+            header.putInt(ARCHIVE_MAGIC).put(ARCHIVE_VERSION).putInt(library.entries.size());
+            header.flip();
+            write(channel, header);
+
+            // One Rom at a time, so packing a large directory never holds all of it
+            for (RomEntry entry : library.entries) {
+                byte[] name = entry.getName().getBytes(StandardCharsets.UTF_8);
+                ByteBuffer contents = entry.getContents();
+
+                ByteBuffer buffer = ByteBuffer.allocate(2 + name.length + HASH_SIZE + 4 + contents.remaining());
+                buffer.putShort((short) name.length);
+                buffer.put(name);
+                buffer.put(digest(contents));
+                buffer.putInt(contents.remaining());
+                buffer.put(contents);
+                buffer.flip();
+                write(channel, buffer);
+            }
+        }
+    }
+
+    /**
+     * Returns every Rom in the library, including duplicates, in their original order
+     */
+    public List<RomEntry> getEntries() {
+        return entries;
+    }
+
+    public RomEntry findByHash(String hash) {
+        return this.byHash().get(hash);
+    }
+
+    public RomEntry findByName(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * Returns the number of distinct Rom contents in the library
+     */
+    public int getUniqueCount() {
+        return this.byHash().size();
+    }
+
+    private synchronized Map<String, RomEntry> byHash() {
+        if (this.byHash == null) {
+            Map<String, RomEntry> byHash = new LinkedHashMap<>();
+            for (RomEntry entry : this.entries) {
+                byHash.putIfAbsent(entry.getHash(), entry);
+            }
+            this.byHash = byHash;
+        }
+
+        return this.byHash;
+    }
+
+    private static MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Returns the hex encoded SHA-1 of the given contents
+     */
+    static String hash(ByteBuffer contents) {
+        return hex(digest(contents));
+    }
+
+    private static byte[] digest(ByteBuffer contents) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+
+        digest.update(contents.duplicate());
+
+        return digest.digest();
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+
+        return new String(hex);
+    }
+}
@@ -0,0 +1,198 @@
+package romatthe.dale.session;
+
+import romatthe.dale.cpu.Cpu;
+import romatthe.dale.cpu.Scheduler;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One emulated machine hosted by a SessionHost, running at 60 frames per second until it
+ * is paused or destroyed.
+ *
+ * A session either owns a (virtual) thread, which parks between frames and while paused,
+ * or is a periodic task on the host's carrier pool, which gives up its carrier after every
+ * frame. Neither ever blocks while holding a monitor, so parked sessions never pin a
+ * carrier thread. A program waiting on FX0A is skipped through as idle (see
+ * Cpu.skipIdle()), so its frames cost next to nothing either way.
+ */
+public class Session {
+
+    public enum State {
+        RUNNING,
+        PAUSED,
+        DESTROYED
+    }
+
+    // When a frame falls further behind than this, drop the backlog
+    private static final long MAX_LAG_NANOS = Scheduler.FRAME_NANOS * 5;
+
+    private final long id;
+    private final Cpu cpu;
+    private final Scheduler scheduler;
+    private final SessionHost host;
+
+    private volatile State state = State.PAUSED;
+    private volatile RuntimeException error;
+
+    // Set when running on a thread of its own
+    private Thread thread;
+
+    // Set while scheduled on the carrier pool
+    private ScheduledFuture<?> frames;
+
+    Session(long id, Cpu cpu, int instructionsPerFrame, SessionHost host) {
+        this.id = id;
+        this.cpu = cpu;
+        this.scheduler = new Scheduler(cpu, instructionsPerFrame, false);
+        this.host = host;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Returns the machine of this session. Only the keypad may be used while the session
+     * is running.
+     */
+    public Cpu getCpu() {
+        return cpu;
+    }
+
+    /**
+     * Returns the scheduler driving the frames of this session, for adding frame listeners
+     * and recording input
+     */
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the exception which stopped this session, or null
+     */
+    public RuntimeException getError() {
+        return error;
+    }
+
+    /**
+     * Stops running frames after the current one. The machine keeps its state.
+     */
+    public synchronized void pause() {
+        if (this.state != State.RUNNING) {
+            return;
+        }
+
+        this.state = State.PAUSED;
+        if (this.frames != null) {
+            this.frames.cancel(false);
+            this.frames = null;
+        }
+    }
+
+    /**
+     * Continues running frames from where the session was paused
+     */
+    public synchronized void resume() {
+        if (this.state != State.PAUSED) {
+            return;
+        }
+
+        this.state = State.RUNNING;
+        if (this.thread != null) {
+            LockSupport.unpark(this.thread);
+        } else {
+            this.schedule();
+        }
+    }
+
+    /**
+     * Stops the session for good and removes it from its host
+     */
+    public synchronized void destroy() {
+        if (this.state == State.DESTROYED) {
+            return;
+        }
+
+        this.state = State.DESTROYED;
+        if (this.thread != null) {
+            LockSupport.unpark(this.thread);
+        }
+        if (this.frames != null) {
+            this.frames.cancel(false);
+            this.frames = null;
+        }
+
+        this.host.remove(this);
+    }
+
+    /**
+     * Starts the session on a thread of its own
+     */
+    synchronized void start(ThreadFactory threads) {
+        this.thread = threads.newThread(this::loop);
+        this.state = State.RUNNING;
+        this.thread.start();
+    }
+
+    /**
+     * Starts the session as a periodic task on the carrier pool
+     */
+    synchronized void start() {
+        this.state = State.RUNNING;
+        this.schedule();
+    }
+
+    private void schedule() {
+        ScheduledExecutorService carriers = this.host.getCarriers();
+        this.frames = carriers.scheduleAtFixedRate(this::frame, 0, Scheduler.FRAME_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    private void loop() {
+        long deadline = System.nanoTime();
+
+        while (this.state != State.DESTROYED) {
+            if (this.state == State.PAUSED) {
+                LockSupport.park(this);
+                deadline = System.nanoTime();
+                continue;
+            }
+
+            this.frame();
+
+            // Parking may return early, so keep going until the deadline has passed
+            deadline += Scheduler.FRAME_NANOS;
+            long wait;
+            while ((wait = deadline - System.nanoTime()) > 0 && this.state == State.RUNNING) {
+                LockSupport.parkNanos(this, wait);
+            }
+
+            if (wait < -MAX_LAG_NANOS) {
+                deadline = System.nanoTime();
+            }
+        }
+    }
+
+    private void frame() {
+        try {
+            this.scheduler.frame();
+        } catch (RuntimeException e) {
+            // Rethrown so the carrier pool stops scheduling the task
+            this.error = e;
+            this.destroy();
+            throw e;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Session " + this.id + " " + this.state + (this.error != null ? " (" + this.error.getMessage() + ")" : "");
+    }
+}
@@ -0,0 +1,143 @@
+package romatthe.dale.session;
+
+import romatthe.dale.cpu.Cpu;
+import romatthe.dale.cpu.Scheduler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hosts many emulated machines in one JVM, each one a Session.
+ *
+ * On a JVM with virtual threads every session runs on a virtual thread of its own. Without
+ * them, or when asked for a fixed number of carriers, sessions are periodic tasks on a
+ * bounded pool which run one frame at a time and yield their carrier in between. Mostly
+ * idle sessions cost next to nothing in either mode.
+ */
+public class SessionHost {
+
+    private final ThreadFactory threads;
+    private final ScheduledExecutorService carriers;
+    private final int instructionsPerFrame;
+
+    private final ConcurrentMap<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+
+    /**
+     * Uses virtual threads when the JVM has them, otherwise one carrier per processor
+     */
+    public SessionHost(int instructionsPerFrame) {
+        this(SessionThreads.virtualThreadFactory(), Runtime.getRuntime().availableProcessors(), instructionsPerFrame);
+    }
+
+    /**
+     * Runs every session on a pool of the given number of carrier threads
+     */
+    public SessionHost(int carriers, int instructionsPerFrame) {
+        this(null, carriers, instructionsPerFrame);
+    }
+
+    private SessionHost(ThreadFactory threads, int carriers, int instructionsPerFrame) {
+        if (carriers <= 0 || instructionsPerFrame <= 0) {
+            throw new IllegalArgumentException("Carriers and instructions per frame must be positive");
+        }
+
+        this.threads = threads;
+        this.carriers = threads != null ? null : newCarrierPool(carriers);
+        this.instructionsPerFrame = instructionsPerFrame;
+    }
+
+    public SessionHost() {
+        this(Scheduler.DEFAULT_INSTRUCTIONS_PER_FRAME);
+    }
+
+    /**
+     * Creates a session for the given program on a fresh machine and starts running it
+     */
+    public Session create(byte[] program) {
+        Cpu cpu = new Cpu();
+        cpu.load(program);
+
+        return this.create(cpu);
+    }
+
+    /**
+     * Creates a session for the given machine and starts running it. The machine must not
+     * be used by anything else from here on.
+     */
+    public Session create(Cpu cpu) {
+        if (this.carriers != null && this.carriers.isShutdown()) {
+            throw new IllegalStateException("Host has been shut down");
+        }
+
+        Session session = new Session(this.ids.incrementAndGet(), cpu, this.instructionsPerFrame, this);
+        this.sessions.put(session.getId(), session);
+
+        if (this.threads != null) {
+            session.start(this.threads);
+        } else {
+            session.start();
+        }
+
+        return session;
+    }
+
+    /**
+     * Returns the session with the given id, or null if there is none (anymore)
+     */
+    public Session get(long id) {
+        return this.sessions.get(id);
+    }
+
+    public Collection<Session> getSessions() {
+        return Collections.unmodifiableCollection(this.sessions.values());
+    }
+
+    /**
+     * Returns whether sessions run on virtual threads rather than the carrier pool
+     */
+    public boolean isVirtual() {
+        return this.threads != null;
+    }
+
+    /**
+     * Destroys every session and stops the carrier pool
+     */
+    public void shutdown() {
+        for (Session session : new ArrayList<>(this.sessions.values())) {
+            session.destroy();
+        }
+
+        if (this.carriers != null) {
+            this.carriers.shutdown();
+        }
+    }
+
+    ScheduledExecutorService getCarriers() {
+        return carriers;
+    }
+
+    void remove(Session session) {
+        this.sessions.remove(session.getId(), session);
+    }
+
+    private static ScheduledExecutorService newCarrierPool(int carriers) {
+        AtomicInteger count = new AtomicInteger();
+        ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(carriers, task -> {
+            Thread thread = new Thread(task, "dale-carrier-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.setRemoveOnCancelPolicy(true);
+
+        return pool;
+    }
+}
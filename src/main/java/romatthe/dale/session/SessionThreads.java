@@ -0,0 +1,23 @@
+package romatthe.dale.session;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Where sessions get their threads from.
+ *
+ * This is the Java 8 version, which has no virtual threads, so sessions share a pool of
+ * carrier threads instead. The jar carries a replacement under META-INF/versions/21,
+ * built from src/java21, which hands out virtual threads.
+ */
+final class SessionThreads {
+
+    private SessionThreads() {
+    }
+
+    /**
+     * Returns a factory for virtual threads, or null when the JVM has none
+     */
+    static ThreadFactory virtualThreadFactory() {
+        return null;
+    }
+}
@@ -0,0 +1,127 @@
+package romatthe.dale.stream;
+
+import romatthe.dale.display.Display;
+import romatthe.dale.display.FrameDiff;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the screen of one stream into messages for remote viewers.
+ *
+ * Every message starts with its length (int, excluding itself), a type byte, the frame
+ * number (long) and the bitmask of rows it carries (int). Each of those rows follows as
+ * the XOR of the new row with the row the viewer already has, in which only the non-zero
+ * bytes are sent: one byte flagging which of the 8 bytes follow, then those bytes. A
+ * sprite moving across a row therefore costs 2 or 3 bytes rather than 8.
+ *
+ * A DELTA is relative to the previous message. A KEYFRAME is relative to an empty screen
+ * and carries every row, it starts off new viewers and resynchronises lagging ones.
+ *
+ * Messages are read-only slices of large direct buffers, so they are written to sockets
+ * without copying and can be shared by every viewer as duplicates.
+ */
+public final class FrameEncoder {
+
+    public static final byte DELTA = 0;
+    public static final byte KEYFRAME = 1;
+
+    public static final int HEADER_SIZE = 4 + 1 + 8 + 4;
+    public static final int MAX_MESSAGE_SIZE = HEADER_SIZE + Display.HEIGHT * (1 + 8);
+
+    private static final int SLAB_SIZE = 64 * 1024;
+
+    // The screen as the viewers have it after the last delta
+    private final long[] screen = new long[Display.HEIGHT];
+
+    private ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+
+    /**
+     * Encodes the changes of a diff against the screen as sent so far, and updates it
+     */
+    public ByteBuffer delta(FrameDiff diff) {
+        ByteBuffer message = this.start(DELTA, diff.getFrame(), diff.getChangedRows());
+        for (int dirty = diff.getChangedRows(); dirty != 0; dirty &= dirty - 1) {
+            int y = Integer.numberOfTrailingZeros(dirty);
+            long row = diff.getRow(y);
+            putRow(message, row ^ this.screen[y]);
+            this.screen[y] = row;
+        }
+
+        return this.finish(message);
+    }
+
+    /**
+     * Encodes the whole screen as sent so far
+     */
+    public ByteBuffer keyframe(long frame) {
+        ByteBuffer message = this.start(KEYFRAME, frame, -1);
+        for (long row : this.screen) {
+            putRow(message, row);
+        }
+
+        return this.finish(message);
+    }
+
+    private ByteBuffer start(byte type, long frame, int rows) {
+        if (this.slab.remaining() < MAX_MESSAGE_SIZE) {
+            // Messages still queued for viewers keep the old slab alive
+            this.slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+        }
+
+        ByteBuffer message = this.slab.slice();
+        message.putInt(0).put(type).putLong(frame).putInt(rows);
+
+        return message;
+    }
+
+    private ByteBuffer finish(ByteBuffer message) {
+        int length = message.position();
+        message.putInt(0, length - 4);
+        message.flip();
+        this.slab.position(this.slab.position() + length);
+
+        return message.asReadOnlyBuffer();
+    }
+
+    private static void putRow(ByteBuffer message, long xor) {
+        int flags = 0;
+        for (int i = 0; i < 8; i++) {
+            if ((xor & (0xFFL << (56 - i * 8))) != 0) {
+                flags |= 0x80 >>> i;
+            }
+        }
+
+        message.put((byte) flags);
+        for (int i = 0; i < 8; i++) {
+            if ((flags & (0x80 >>> i)) != 0) {
+                message.put((byte) (xor >>> (56 - i * 8)));
+            }
+        }
+    }
+
+    /**
+     * Applies a message to a viewer's screen, the inverse of the encoding. Returns the
+     * frame number of the message.
+     */
+    public static long decode(ByteBuffer message, long[] screen) {
+        message.getInt();
+        byte type = message.get();
+        long frame = message.getLong();
+        int rows = message.getInt();
+
+        for (int dirty = rows; dirty != 0; dirty &= dirty - 1) {
+            int y = Integer.numberOfTrailingZeros(dirty);
+            int flags = message.get() & 0xFF;
+            long xor = 0;
+            for (int i = 0; i < 8; i++) {
+                if ((flags & (0x80 >>> i)) != 0) {
+                    xor |= (message.get() & 0xFFL) << (56 - i * 8);
+                }
+            }
+
+            screen[y] = type == KEYFRAME ? xor : screen[y] ^ xor;
+        }
+
+        return frame;
+    }
+}
@@ -0,0 +1,366 @@
+package romatthe.dale.stream;
+
+import romatthe.dale.display.FrameDiff;
+import romatthe.dale.display.FramePipeline;
+import romatthe.dale.session.Session;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Streams the screens of headless machines to viewers on localhost.
+ *
+ * A viewer connects and sends the id of a stream as a long. It then receives a keyframe of
+ * the current screen, followed by a delta for every frame that changed something, in the
+ * format of FrameEncoder.
+ *
+ * Everything runs on one thread with non-blocking sockets. The emulation threads only hand
+ * their diffs to a FramePipeline, which never blocks. Each diff is encoded once and the
+ * same bytes are queued for every viewer. A viewer that can not keep up has its backlog
+ * thrown away and gets a fresh keyframe once it catches up, so slow viewers cost neither
+ * the emulation nor the other viewers anything.
+ */
+public class FrameServer implements Closeable {
+
+    /**
+     * Capacity of the queue between a machine and the server, in frames
+     */
+    public static final int PIPELINE_CAPACITY = 16;
+
+    /**
+     * Messages a viewer may have queued before it is resynchronised with a keyframe
+     */
+    public static final int MAX_BACKLOG = 32;
+
+    // How long the server waits on its sockets before it looks for new frames again
+    private static final long POLL_MILLIS = 4;
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final ConcurrentMap<Long, Stream> streams = new ConcurrentHashMap<>();
+    private final Thread thread;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Listens on the given port of the loopback interface, 0 picks a free port
+     */
+    public FrameServer(int port) throws IOException {
+        this(port, true);
+    }
+
+    /**
+     * Without a thread of its own, whoever creates the server drives it by calling select()
+     * and pump() in turn
+     */
+    FrameServer(int port, boolean threaded) throws IOException {
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        this.server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        this.server.configureBlocking(false);
+        this.server.register(this.selector, SelectionKey.OP_ACCEPT);
+
+        if (threaded) {
+            this.thread = new Thread(this::loop, "dale-frame-server");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        } else {
+            this.thread = null;
+        }
+    }
+
+    public int getPort() {
+        return this.server.socket().getLocalPort();
+    }
+
+    /**
+     * Streams the screen of a session under its id. Only one stream per display can exist,
+     * as its pipeline takes the dirty rows.
+     */
+    public FramePipeline publish(Session session) {
+        FramePipeline pipeline = new FramePipeline(session.getCpu().getDisplay(), PIPELINE_CAPACITY);
+        session.getScheduler().addFrameListener(pipeline);
+        this.publish(session.getId(), pipeline);
+
+        return pipeline;
+    }
+
+    /**
+     * Streams the diffs of the given pipeline under the given id. The server becomes the
+     * consumer of its queue.
+     */
+    public void publish(long id, FramePipeline pipeline) {
+        if (this.streams.putIfAbsent(id, new Stream(id, pipeline)) != null) {
+            throw new IllegalArgumentException("Stream " + id + " is already published");
+        }
+    }
+
+    /**
+     * Stops a stream and disconnects its viewers. The server thread drops the stream once
+     * its viewers are gone, only then can the id be published again.
+     */
+    public void unpublish(long id) {
+        Stream stream = this.streams.get(id);
+        if (stream != null) {
+            stream.closed = true;
+            this.selector.wakeup();
+        }
+    }
+
+    /**
+     * Returns the number of viewers of a stream
+     */
+    public int getViewers(long id) {
+        Stream stream = this.streams.get(id);
+        return stream == null ? 0 : stream.viewerCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.closed = true;
+        if (this.thread == null) {
+            this.shutdown();
+            return;
+        }
+
+        this.selector.wakeup();
+        try {
+            this.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void loop() {
+        try {
+            while (!this.closed) {
+                this.select(POLL_MILLIS);
+                this.pump();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Frame server failed", e);
+        } finally {
+            this.shutdown();
+        }
+    }
+
+    /**
+     * Handles the sockets which are ready, after waiting at most the given time for one
+     */
+    void select(long millis) throws IOException {
+        this.selector.select(millis);
+
+        Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.isAcceptable()) {
+                this.accept();
+            } else if (key.isReadable()) {
+                this.read(key);
+            } else if (key.isWritable()) {
+                this.flush((Viewer) key.attachment());
+            }
+        }
+    }
+
+    /**
+     * Moves new frames of every stream to its viewers
+     */
+    void pump() {
+        for (Stream stream : this.streams.values()) {
+            this.pump(stream);
+        }
+    }
+
+    private void shutdown() {
+        for (SelectionKey key : this.selector.keys()) {
+            closeQuietly(key);
+        }
+        closeQuietly(this.server);
+        closeQuietly(this.selector);
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = this.server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.register(this.selector, SelectionKey.OP_READ, new Viewer(channel));
+        }
+    }
+
+    private void read(SelectionKey key) {
+        Viewer viewer = (Viewer) key.attachment();
+        try {
+            if (viewer.stream != null) {
+                // Anything after the handshake is ignored
+                viewer.handshake.clear();
+            }
+
+            if (viewer.channel.read(viewer.handshake) < 0) {
+                this.disconnect(viewer);
+                return;
+            }
+            if (viewer.stream != null || viewer.handshake.hasRemaining()) {
+                return;
+            }
+
+            Stream stream = this.streams.get(viewer.handshake.getLong(0));
+            if (stream == null || stream.closed) {
+                this.disconnect(viewer);
+                return;
+            }
+
+            viewer.stream = stream;
+            viewer.resync = true;
+            stream.viewers.add(viewer);
+            stream.viewerCount = stream.viewers.size();
+        } catch (IOException e) {
+            this.disconnect(viewer);
+        }
+    }
+
+    /**
+     * Moves new frames of a stream to its viewers
+     */
+    private void pump(Stream stream) {
+        if (stream.closed) {
+            for (Viewer viewer : new ArrayList<>(stream.viewers)) {
+                this.disconnect(viewer);
+            }
+            this.streams.remove(stream.id, stream);
+            return;
+        }
+
+        FrameDiff diff = stream.pipeline.getQueue().pollLatest();
+        ByteBuffer delta = null;
+        if (diff != null) {
+            delta = stream.encoder.delta(diff);
+            stream.frame = diff.getFrame();
+            stream.keyframe = null;
+        }
+
+        // Backwards, as a viewer whose socket failed drops out of the list while flushing
+        for (int i = stream.viewers.size() - 1; i >= 0; i--) {
+            Viewer viewer = stream.viewers.get(i);
+
+            if (viewer.resync) {
+                // Wait for the socket to drain, the keyframe will contain this delta too
+                if (!viewer.queue.isEmpty()) {
+                    continue;
+                }
+                viewer.resync = false;
+                if (stream.keyframe == null) {
+                    // Encoded once per frame, however many viewers resynchronise on it
+                    stream.keyframe = stream.encoder.keyframe(stream.frame);
+                }
+                viewer.queue.add(stream.keyframe.duplicate());
+            } else if (delta != null) {
+                if (viewer.queue.size() >= MAX_BACKLOG) {
+                    // Only the message being written is kept, it can not be taken back halfway
+                    ByteBuffer current = viewer.queue.peek();
+                    viewer.queue.clear();
+                    if (current.position() > 0) {
+                        viewer.queue.add(current);
+                    }
+                    viewer.resync = true;
+                    continue;
+                }
+                viewer.queue.add(delta.duplicate());
+            }
+
+            this.flush(viewer);
+        }
+    }
+
+    private void flush(Viewer viewer) {
+        try {
+            ByteBuffer message;
+            while ((message = viewer.queue.peek()) != null) {
+                viewer.channel.write(message);
+                if (message.hasRemaining()) {
+                    break;
+                }
+                viewer.queue.poll();
+            }
+
+            SelectionKey key = viewer.channel.keyFor(this.selector);
+            key.interestOps(viewer.queue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            this.disconnect(viewer);
+        }
+    }
+
+    private void disconnect(Viewer viewer) {
+        if (viewer.stream != null) {
+            viewer.stream.viewers.remove(viewer);
+            viewer.stream.viewerCount = viewer.stream.viewers.size();
+        }
+        closeQuietly(viewer.channel);
+    }
+
+    private static void closeQuietly(Object closeable) {
+        try {
+            if (closeable instanceof SelectionKey) {
+                ((SelectionKey) closeable).channel().close();
+            } else {
+                ((Closeable) closeable).close();
+            }
+        } catch (IOException e) {
+            // Nothing left to do about it
+        }
+    }
+
+    private static final class Stream {
+
+        final long id;
+        final FramePipeline pipeline;
+        final FrameEncoder encoder = new FrameEncoder();
+
+        // Only touched by the server thread
+        final List<Viewer> viewers = new ArrayList<>();
+        long frame = 0;
+
+        // Keyframe of the current frame, once a viewer needed one
+        ByteBuffer keyframe;
+
+        volatile int viewerCount = 0;
+        volatile boolean closed = false;
+
+        Stream(long id, FramePipeline pipeline) {
+            this.id = id;
+            this.pipeline = pipeline;
+        }
+    }
+
+    private static final class Viewer {
+
+        final SocketChannel channel;
+        final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+
+        ByteBuffer handshake = ByteBuffer.allocate(8);
+        Stream stream;
+        boolean resync;
+
+        Viewer(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+}
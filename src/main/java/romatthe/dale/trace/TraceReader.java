@@ -0,0 +1,379 @@
+package romatthe.dale.trace;
+
+import romatthe.dale.cpu.Variant;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static romatthe.dale.trace.TraceWriter.BLOCK_HEADER_SIZE;
+import static romatthe.dale.trace.TraceWriter.BLOCK_SIZE;
+import static romatthe.dale.trace.TraceWriter.INDEX_REGISTER;
+
+/**
+ * Reads a trace written by a TraceWriter, one instruction at a time.
+ *
+ * The file is memory mapped and only the block headers are read up front, into an index
+ * of the cycle every block starts at. seek() then finds the block holding a cycle with a
+ * binary search and decodes from the start of that block, so jumping anywhere into a long
+ * trace costs at most one block of decoding. A trace cut short because the process died
+ * is read up to its last complete block.
+ */
+public class TraceReader implements Closeable {
+
+    // Every block lies within one mapping, as mappings overlap by the largest block
+    private static final long SEGMENT_SIZE = 1L << 30;
+    private static final int MAX_BLOCK_SIZE = BLOCK_HEADER_SIZE + BLOCK_SIZE;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final Variant variant;
+    private final int addressMask;
+
+    private long[] offsets = new long[64];
+    private long[] firstCycles = new long[64];
+    private int[] counts = new int[64];
+    private int blocks = 0;
+    private long cycles = 0;
+
+    private final Inflater inflater = new Inflater();
+    private final byte[] packed = new byte[BLOCK_SIZE];
+    private final byte[] inflated = new byte[BLOCK_SIZE];
+
+    // The block being decoded
+    private int block = -1;
+    private ByteBuffer records;
+    private int remaining = 0;
+
+    // The current record and the state after it
+    private long cycle = -1;
+    private int programCounter;
+    private int opcode;
+    private int changedRegisters;
+    private final int[] registers = new int[17];
+    private int writeCount;
+    private final int[] writeAddresses = new int[256];
+    private final int[] writeValues = new int[256];
+    private int expectedPc;
+    private final int[] knownOpcodes;
+    private final int[] knownPlans;
+
+    private TraceReader(FileChannel channel) throws IOException {
+        long size = channel.size();
+
+        this.channel = channel;
+        this.segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+        for (int i = 0; i < this.segments.length; i++) {
+            long start = i * SEGMENT_SIZE;
+            this.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, SEGMENT_SIZE + MAX_BLOCK_SIZE));
+        }
+
+        if (size < TraceWriter.FILE_HEADER_SIZE || this.segments[0].getInt(0) != TraceWriter.MAGIC) {
+            throw new IOException("Not a trace");
+        }
+        byte version = this.segments[0].get(4);
+        if (version != TraceWriter.VERSION) {
+            throw new IOException("Unsupported trace version " + version);
+        }
+        int variant = this.segments[0].get(5);
+        if (variant < 0 || variant >= Variant.values().length) {
+            throw new IOException("Trace of unknown variant " + variant);
+        }
+        int memorySize = this.segments[0].getInt(6);
+        if (Integer.bitCount(memorySize) != 1) {
+            throw new IOException("Trace of " + memorySize + " bytes of memory");
+        }
+
+        this.variant = Variant.values()[variant];
+        this.addressMask = memorySize - 1;
+        this.knownOpcodes = new int[memorySize];
+        this.knownPlans = new int[memorySize];
+
+        this.index(size);
+    }
+
+    public static TraceReader open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new TraceReader(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void index(long size) {
+        long offset = TraceWriter.FILE_HEADER_SIZE;
+        while (offset + BLOCK_HEADER_SIZE <= size) {
+            ByteBuffer segment = this.segment(offset);
+            int position = this.position(offset);
+            long firstCycle = segment.getLong(position);
+            int count = segment.getInt(position + 8);
+            int stored = segment.getInt(position + 16);
+
+            // A block still being written when the trace was cut short
+            if (stored < 0 || stored > BLOCK_SIZE || offset + BLOCK_HEADER_SIZE + stored > size) {
+                break;
+            }
+
+            if (this.blocks == this.offsets.length) {
+                this.offsets = Arrays.copyOf(this.offsets, this.blocks * 2);
+                this.firstCycles = Arrays.copyOf(this.firstCycles, this.blocks * 2);
+                this.counts = Arrays.copyOf(this.counts, this.blocks * 2);
+            }
+            this.offsets[this.blocks] = offset;
+            this.firstCycles[this.blocks] = firstCycle;
+            this.counts[this.blocks] = count;
+            this.blocks++;
+            this.cycles = firstCycle + count;
+
+            offset += BLOCK_HEADER_SIZE + stored;
+        }
+    }
+
+    public Variant getVariant() {
+        return variant;
+    }
+
+    /**
+     * Returns the number of instructions in the trace
+     */
+    public long getCycles() {
+        return cycles;
+    }
+
+    /**
+     * Moves to the instruction executed at the given cycle, returns false if the trace
+     * does not hold it
+     */
+    public boolean seek(long cycle) {
+        if (cycle < 0 || cycle >= this.cycles) {
+            return false;
+        }
+
+        int low = 0;
+        int high = this.blocks - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (this.firstCycles[middle] <= cycle) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        this.load(low);
+        while (this.cycle < cycle) {
+            this.next();
+        }
+
+        return true;
+    }
+
+    /**
+     * Moves to the next instruction, returns false once there are no more
+     */
+    public boolean next() {
+        if (this.remaining == 0) {
+            if (this.block + 1 >= this.blocks) {
+                return false;
+            }
+            this.load(this.block + 1);
+        }
+
+        ByteBuffer records = this.records;
+        int tag = records.get() & 0xFF;
+
+        this.programCounter = this.expectedPc;
+        if ((tag & TraceWriter.PC_JUMP) != 0) {
+            this.programCounter = records.getShort() & this.addressMask;
+        }
+        if ((tag & TraceWriter.OPCODE) != 0) {
+            this.knownOpcodes[this.programCounter] = records.getShort() & 0xFFFF;
+            this.knownPlans[this.programCounter] = TraceWriter.plan(this.knownOpcodes[this.programCounter]);
+        }
+        this.opcode = this.knownOpcodes[this.programCounter];
+        int plan = this.knownPlans[this.programCounter];
+
+        this.changedRegisters = 0;
+        if ((tag & TraceWriter.FIRST_REGISTER) != 0) {
+            this.setRegister(plan & 0xF, records.get() & 0xFF);
+        }
+        if ((tag & TraceWriter.SECOND_REGISTER) != 0) {
+            this.setRegister((plan >> 4) & 0xF, records.get() & 0xFF);
+        }
+        if ((tag & TraceWriter.INDEX) != 0) {
+            this.setRegister(INDEX_REGISTER, records.getShort() & 0xFFFF);
+        }
+        if ((tag & TraceWriter.REGISTERS) != 0) {
+            int candidates = TraceWriter.candidates(this.opcode);
+            for (int bits = candidates & 0xFFFF; bits != 0; bits &= bits - 1) {
+                this.setRegister(Integer.numberOfTrailingZeros(bits), records.get() & 0xFF);
+            }
+        }
+
+        // Writes are relative to I after the instruction
+        this.writeCount = 0;
+        if ((tag & TraceWriter.WRITES) != 0) {
+            int base = this.registers[INDEX_REGISTER];
+            this.writeCount = records.get() & 0xFF;
+            for (int i = 0; i < this.writeCount; i++) {
+                this.writeAddresses[i] = (base + unzigzag(getVarint(records))) & this.addressMask;
+                this.writeValues[i] = records.get() & 0xFF;
+                base = this.writeAddresses[i] + 1;
+            }
+        }
+
+        this.expectedPc = (this.programCounter + 2) & this.addressMask;
+        this.remaining--;
+        this.cycle++;
+
+        return true;
+    }
+
+    // Records carry every register an instruction can change, only those whose value
+    // differs count as changed
+    private void setRegister(int register, int value) {
+        if (this.registers[register] != value) {
+            this.registers[register] = value;
+            this.changedRegisters |= 1 << register;
+        }
+    }
+
+    private void load(int block) {
+        long offset = this.offsets[block];
+        ByteBuffer segment = this.segment(offset);
+        int position = this.position(offset);
+        int length = segment.getInt(position + 12);
+        int stored = segment.getInt(position + 16);
+        boolean compressed = segment.get(position + 20) != 0;
+
+        ByteBuffer data = segment.duplicate();
+        data.limit(position + BLOCK_HEADER_SIZE + stored).position(position + BLOCK_HEADER_SIZE);
+
+        if (compressed) {
+            data.get(this.packed, 0, stored);
+            this.inflater.reset();
+            this.inflater.setInput(this.packed, 0, stored);
+            try {
+                if (this.inflater.inflate(this.inflated, 0, length) != length) {
+                    throw new IllegalStateException("Trace block " + block + " is truncated");
+                }
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Trace block " + block + " is corrupt", e);
+            }
+            this.records = ByteBuffer.wrap(this.inflated, 0, length);
+        } else {
+            this.records = data.slice();
+        }
+
+        for (int r = 0; r < 16; r++) {
+            this.registers[r] = this.records.get() & 0xFF;
+        }
+        this.registers[INDEX_REGISTER] = this.records.getShort() & 0xFFFF;
+        this.expectedPc = this.records.getShort() & this.addressMask;
+        Arrays.fill(this.knownOpcodes, -1);
+
+        this.block = block;
+        this.remaining = this.counts[block];
+        this.cycle = this.firstCycles[block] - 1;
+        this.changedRegisters = 0;
+        this.writeCount = 0;
+    }
+
+    /**
+     * Returns the cycle of the current instruction, counted from the start of the trace
+     */
+    public long getCycle() {
+        return cycle;
+    }
+
+    /**
+     * Returns the address the current instruction was executed at
+     */
+    public int getProgramCounter() {
+        return programCounter;
+    }
+
+    public int getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * Returns the value of a register after the current instruction
+     */
+    public short getRegisterAt(int index) {
+        return (short) this.registers[index];
+    }
+
+    /**
+     * Returns the value of I after the current instruction
+     */
+    public int getIndexRegisterI() {
+        return this.registers[INDEX_REGISTER];
+    }
+
+    /**
+     * Returns a bitmask of the registers the current instruction changed, V0-VF in bits
+     * 0 to 15 and I in bit 16
+     */
+    public int getChangedRegisters() {
+        return changedRegisters;
+    }
+
+    /**
+     * Returns the number of bytes the current instruction wrote to memory
+     */
+    public int getWriteCount() {
+        return writeCount;
+    }
+
+    public int getWriteAddress(int write) {
+        return this.writeAddresses[write];
+    }
+
+    public int getWriteValue(int write) {
+        return this.writeValues[write];
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.inflater.end();
+        this.channel.close();
+    }
+
+    private ByteBuffer segment(long offset) {
+        return this.segments[(int) (offset / SEGMENT_SIZE)];
+    }
+
+    private int position(long offset) {
+        return (int) (offset % SEGMENT_SIZE);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift > 28) {
+                throw new IllegalStateException("Corrupt trace at byte " + buffer.position());
+            }
+            b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return value;
+    }
+}
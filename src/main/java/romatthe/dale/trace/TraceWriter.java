@@ -0,0 +1,785 @@
+package romatthe.dale.trace;
+
+import romatthe.dale.cpu.Cpu;
+import romatthe.dale.cpu.DecodeCache;
+import romatthe.dale.cpu.ExecutionEngine;
+import romatthe.dale.cpu.Memory;
+import romatthe.dale.cpu.MemoryWriteListener;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Executes a Cpu while recording every instruction into a trace file: the address, the
+ * opcode, the registers it changed and the bytes it wrote.
+ *
+ * The emulation thread does as little per instruction as it can. It packs the address,
+ * the opcode, the V register the opcode names, VF and I into a single long of a chunk,
+ * and only the few instructions which write memory or load several registers put more
+ * beside it. Full chunks go to a background thread, which encodes them into the compact
+ * format below, optionally deflates it and appends it to the file through a direct
+ * ByteBuffer and a FileChannel. Chunks and buffers are reused over and over, so tracing
+ * allocates nothing per instruction. When the background thread falls behind, the
+ * emulation waits for a free chunk rather than dropping records.
+ *
+ * The file holds blocks of at most 64 KiB of records. Each record is a tag byte and only
+ * what the tag says follows it:
+ *
+ * - the program counter, only when execution did not simply continue at the
+ *   instruction after the previous one
+ * - the opcode, only when this address did not execute the same opcode before in the
+ *   same block
+ * - the new values of the one or two V registers the opcode can change, see plan(), and
+ *   of I, each only when it changed
+ * - for the few opcodes which can change more registers, like FX65, the values of all
+ *   of them
+ * - the bytes written, each a zigzag varint address relative to the previous one, the
+ *   first relative to I after the instruction, and the value
+ *
+ * Straight line code that changes one register costs 2 bytes per instruction. Every
+ * block starts with V0-VF, I and the program counter, so a TraceReader can start
+ * decoding at any block without reading what came before.
+ *
+ * Tracing BRIX, TETRIS, UFO, BLINKY, INVADERS and PONG costs the emulation thread
+ * between 1.3 and 1.6 times the time of stepping them without a trace. The background
+ * thread spends another 8 to 11 ns encoding an instruction, 14 to 24 ns when deflating.
+ *
+ * Like a Debugger, it wraps the Cpu instead of adding a check to Cpu.step(), so machines
+ * which are not traced pay nothing. Writes are picked up as a write listener of the
+ * memory rather than through a memory view, which would put an extra call on every read
+ * and get in the way of the view of a Debugger.
+ */
+public class TraceWriter implements ExecutionEngine, MemoryWriteListener, Closeable {
+
+    static final int MAGIC = 0x44545243; // DTRC
+    static final byte VERSION = 2;
+
+    /**
+     * Magic, version, variant and memory size
+     */
+    static final int FILE_HEADER_SIZE = 4 + 1 + 1 + 4;
+
+    /**
+     * First cycle, number of records, length of the records, length as stored and
+     * whether they are deflated
+     */
+    static final int BLOCK_HEADER_SIZE = 8 + 4 + 4 + 4 + 1;
+
+    /**
+     * Maximum length of the records of a block, before compression
+     */
+    static final int BLOCK_SIZE = 1 << 16;
+
+    static final int PC_JUMP = 1;
+    static final int OPCODE = 2;
+    static final int FIRST_REGISTER = 4;
+    static final int SECOND_REGISTER = 8;
+    static final int INDEX = 16;
+    static final int REGISTERS = 32;
+    static final int WRITES = 64;
+
+    /**
+     * Index of I among the registers
+     */
+    static final int INDEX_REGISTER = 16;
+
+    private static final int ALL_REGISTERS = (1 << 17) - 1;
+
+    // No instruction writes more than all 16 registers to memory
+    static final int MAX_WRITES = 16;
+
+    private static final int MAX_RECORD_SIZE = 1 + 2 + 2 + 1 + 1 + 2 + 16 + 1 + MAX_WRITES * (5 + 1);
+
+    private static final int CHUNKS = 4;
+    private static final int CHUNK_SIZE = 1 << 14;
+
+    // A chunk is handed over early once this many writes or loads went into it
+    private static final int CHUNK_WRITES = 1 << 12;
+    private static final int CHUNK_LOADS = 1 << 10;
+
+    // Opcodes which can change other V registers than the one they name and VF, after
+    // which all of V0-VF go into the chunk
+    private static final boolean[] LOADS = new boolean[1 << 16];
+
+    static {
+        for (int opcode = 0; opcode < LOADS.length; opcode++) {
+            int named = 1 << ((opcode >> 8) & 0xF) | 1 << 0xF;
+            LOADS[opcode] = (candidates(opcode) & 0xFFFF & ~named) != 0;
+        }
+    }
+
+    // Tells the background thread to stop
+    private static final Chunk END = new Chunk(0, 0, 0);
+
+    private final Cpu cpu;
+    private final FileChannel channel;
+    private final boolean compress;
+    private final int addressMask;
+    private final Memory memory;
+
+    private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(CHUNKS);
+    private final BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(CHUNKS + 1);
+    private final Thread thread;
+    private volatile IOException failure;
+
+    // The chunk being filled, null until the next instruction starts one
+    private Chunk chunk;
+    private int count;
+    private int limit;
+    private long cycles = 0;
+
+    // Writes are only recorded while instructions execute
+    private boolean stepping = false;
+
+    // Only touched by the background thread: the block being encoded and what a reader
+    // knows at this point of it, which are the registers, where execution continues and
+    // the opcode last seen at every address
+    private final byte[] records = new byte[BLOCK_SIZE];
+    private int length;
+    private long blockStart;
+    private int blockCount;
+    private final int[] registers = new int[17];
+    private int expectedPc;
+    private final int[] knownOpcodes;
+    private final int[] knownPlans;
+
+    /**
+     * Starts tracing into a new file at path. Until close() is called, the instructions of
+     * the Cpu have to be executed through this writer.
+     *
+     * @param compress whether to deflate every block
+     */
+    public TraceWriter(Cpu cpu, Path path, boolean compress) throws IOException {
+        int memorySize = cpu.getMemory().size();
+
+        this.cpu = cpu;
+        this.compress = compress;
+        this.addressMask = memorySize - 1;
+        this.knownOpcodes = new int[memorySize];
+        this.knownPlans = new int[memorySize];
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putInt(MAGIC).put(VERSION).put((byte) cpu.getVariant().ordinal()).putInt(memorySize).flip();
+        while (header.hasRemaining()) {
+            this.channel.write(header);
+        }
+
+        for (int i = 0; i < CHUNKS; i++) {
+            this.free.add(new Chunk(CHUNK_SIZE, CHUNK_WRITES + MAX_WRITES, CHUNK_LOADS));
+        }
+
+        this.memory = cpu.getDecodeCache().getMemory();
+        this.memory.addWriteListener(this);
+
+        this.thread = new Thread(this::writeChunks, "dale-trace-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Returns the number of instructions traced so far
+     */
+    public long getCycles() {
+        return this.cycles + this.count;
+    }
+
+    @Override
+    public long execute(long instructions) {
+        Cpu cpu = this.cpu;
+        DecodeCache decodeCache = cpu.getDecodeCache();
+
+        this.stepping = true;
+        try {
+            long left = instructions;
+            while (left > 0) {
+                if (this.chunk == null) {
+                    this.startChunk();
+                }
+
+                long[] packed = this.chunk.instructions;
+                int start = this.count;
+                int end = (int) Math.min(CHUNK_SIZE, start + left);
+
+                // Lots of writes or loads lower the limit, before their arrays overflow
+                int count = start;
+                while (count < end && count < this.limit) {
+                    int pc = cpu.getProgramCounter();
+                    cpu.step();
+
+                    // Stepping decoded the instruction, and the cache keeps the opcode
+                    // even when the instruction overwrote itself
+                    int opcode = decodeCache.opcodeAt(pc);
+                    int values = (cpu.getRegisterAt((opcode >> 8) & 0xF) & 0xFF)
+                            | (cpu.getRegisterAt(0xF) & 0xFF) << 8
+                            | (cpu.getIndexRegisterI() & 0xFFFF) << 16;
+                    packed[count] = (pc | opcode << 16) & 0xFFFFFFFFL | (long) values << 32;
+
+                    if (LOADS[opcode]) {
+                        this.load();
+                    }
+                    this.count = ++count;
+                }
+
+                left -= count - start;
+                if (count == this.limit) {
+                    this.handOver();
+                }
+            }
+        } catch (RuntimeException e) {
+            // Drop what the failing instruction wrote and get everything up to it on its
+            // way to disk
+            this.stepping = false;
+            this.dropWrites();
+            this.flush();
+            throw e;
+        } finally {
+            this.stepping = false;
+        }
+
+        return instructions;
+    }
+
+    @Override
+    public void onWrite(int address) {
+        if (!this.stepping) {
+            return;
+        }
+
+        Chunk chunk = this.chunk;
+        int write = chunk.writes;
+        if (write == chunk.writeAddresses.length) {
+            throw new IllegalStateException("More than " + MAX_WRITES + " bytes written by one instruction");
+        }
+
+        chunk.writeInstructions[write] = this.count;
+        chunk.writeAddresses[write] = address;
+        chunk.writeValues[write] = this.memory.read(address);
+        chunk.writes = write + 1;
+        if (chunk.writes == CHUNK_WRITES) {
+            this.limit = this.count + 1;
+        }
+    }
+
+    /**
+     * Bulk loads restore snapshots and the like, no instruction makes them
+     */
+    @Override
+    public void onWrite(int address, int length) {
+    }
+
+    /**
+     * Puts V0-VF into the chunk beside the instruction which just loaded several of them
+     */
+    private void load() {
+        Chunk chunk = this.chunk;
+        int load = chunk.loads;
+        chunk.loadInstructions[load] = this.count;
+        for (int r = 0; r < 16; r++) {
+            chunk.loadedRegisters[load * 16 + r] = (byte) this.cpu.getRegisterAt(r);
+        }
+        chunk.loads = load + 1;
+        if (chunk.loads == CHUNK_LOADS) {
+            this.limit = this.count + 1;
+        }
+    }
+
+    private void dropWrites() {
+        Chunk chunk = this.chunk;
+        while (chunk.writes > 0 && chunk.writeInstructions[chunk.writes - 1] == this.count) {
+            chunk.writes--;
+        }
+    }
+
+    private void startChunk() {
+        if (this.failure != null) {
+            throw new IllegalStateException("Writing the trace failed", this.failure);
+        }
+
+        Chunk chunk;
+        try {
+            chunk = this.free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the trace writer", e);
+        }
+
+        for (int r = 0; r < 16; r++) {
+            chunk.registers[r] = this.cpu.getRegisterAt(r) & 0xFF;
+        }
+        chunk.index = this.cpu.getIndexRegisterI() & 0xFFFF;
+        chunk.programCounter = this.cpu.getProgramCounter();
+        chunk.firstCycle = this.cycles;
+        chunk.writes = 0;
+        chunk.loads = 0;
+
+        this.chunk = chunk;
+        this.count = 0;
+        this.limit = CHUNK_SIZE;
+    }
+
+    private void handOver() {
+        Chunk chunk = this.chunk;
+        chunk.count = this.count;
+        this.cycles += this.count;
+        this.count = 0;
+        this.chunk = null;
+
+        try {
+            this.full.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while handing over a trace chunk", e);
+        }
+    }
+
+    /**
+     * Hands the records so far to the background thread, without waiting for them to be
+     * written
+     */
+    public void flush() {
+        if (this.chunk != null) {
+            this.handOver();
+        }
+    }
+
+    /**
+     * Writes out every record, stops the background thread and stops listening to the
+     * memory of the Cpu
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (this.failure == null) {
+                this.flush();
+            }
+            this.full.put(END);
+            this.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.memory.removeWriteListener(this);
+            this.channel.close();
+        }
+
+        if (this.failure != null) {
+            throw this.failure;
+        }
+    }
+
+    private void writeChunks() {
+        Deflater deflater = this.compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        byte[] packed = new byte[BLOCK_SIZE];
+        ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_HEADER_SIZE + BLOCK_SIZE);
+
+        try {
+            Chunk chunk;
+            while ((chunk = this.full.take()) != END) {
+                try {
+                    if (this.failure == null && chunk.count > 0) {
+                        this.encode(chunk, deflater, packed, block);
+                    }
+                } catch (IOException e) {
+                    this.failure = e;
+                }
+                this.free.add(chunk);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Encodes the instructions of a chunk into one or more blocks and writes them out.
+     * Every chunk starts a new block, from the state the emulation thread saw before its
+     * first instruction.
+     */
+    private void encode(Chunk chunk, Deflater deflater, byte[] packed, ByteBuffer block) throws IOException {
+        byte[] records = this.records;
+        int[] registers = this.registers;
+        int[] knownOpcodes = this.knownOpcodes;
+        int[] knownPlans = this.knownPlans;
+        long[] instructions = chunk.instructions;
+
+        System.arraycopy(chunk.registers, 0, registers, 0, 16);
+        registers[INDEX_REGISTER] = chunk.index;
+        this.expectedPc = chunk.programCounter;
+        this.startBlock(chunk.firstCycle);
+
+        int position = this.length;
+        int expectedPc = this.expectedPc;
+        int blockStart = 0;
+        int write = 0;
+        int load = 0;
+        int nextWrite = chunk.writes > 0 ? chunk.writeInstructions[0] : -1;
+        int nextLoad = chunk.loads > 0 ? chunk.loadInstructions[0] : -1;
+
+        for (int n = 0; n < chunk.count; n++) {
+            long instruction = instructions[n];
+            int pc = (int) instruction & 0xFFFF;
+            int opcode = (int) (instruction >>> 16) & 0xFFFF;
+            int tagPosition = position++;
+            int tag = 0;
+
+            if (pc != expectedPc) {
+                tag = PC_JUMP;
+                records[position++] = (byte) (pc >> 8);
+                records[position++] = (byte) pc;
+            }
+            if (knownOpcodes[pc] != opcode) {
+                tag |= OPCODE;
+                records[position++] = (byte) (opcode >> 8);
+                records[position++] = (byte) opcode;
+                knownOpcodes[pc] = opcode;
+                knownPlans[pc] = plan(opcode);
+            }
+            int plan = knownPlans[pc];
+
+            if (n == nextLoad) {
+                this.length = position;
+                tag |= this.putLoaded(chunk, load, instruction, opcode, plan);
+                position = this.length;
+                load++;
+                nextLoad = load < chunk.loads ? chunk.loadInstructions[load] : -1;
+            } else {
+                // Every other opcode only changes the V register it names and VF
+                if ((plan & FIRST_REGISTER << 8) != 0) {
+                    int r = plan & 0xF;
+                    int value = (int) (instruction >>> (r == 0xF ? 40 : 32)) & 0xFF;
+                    if (value != registers[r]) {
+                        tag |= FIRST_REGISTER;
+                        registers[r] = value;
+                        records[position++] = (byte) value;
+                    }
+                }
+                if ((plan & SECOND_REGISTER << 8) != 0) {
+                    int r = (plan >> 4) & 0xF;
+                    int value = (int) (instruction >>> (r == 0xF ? 40 : 32)) & 0xFF;
+                    if (value != registers[r]) {
+                        tag |= SECOND_REGISTER;
+                        registers[r] = value;
+                        records[position++] = (byte) value;
+                    }
+                }
+                if ((plan & INDEX << 8) != 0) {
+                    int index = (int) (instruction >>> 48);
+                    if (index != registers[INDEX_REGISTER]) {
+                        tag |= INDEX;
+                        registers[INDEX_REGISTER] = index;
+                        records[position++] = (byte) (index >> 8);
+                        records[position++] = (byte) index;
+                    }
+                }
+            }
+
+            if (n == nextWrite) {
+                tag |= WRITES;
+                this.length = position;
+                write = this.putWrites(chunk, write, n);
+                position = this.length;
+                nextWrite = write < chunk.writes ? chunk.writeInstructions[write] : -1;
+            }
+
+            records[tagPosition] = (byte) tag;
+            expectedPc = (pc + 2) & this.addressMask;
+
+            if (position > BLOCK_SIZE - MAX_RECORD_SIZE) {
+                this.length = position;
+                this.blockCount = n + 1 - blockStart;
+                this.expectedPc = expectedPc;
+                this.writeBlock(deflater, packed, block);
+
+                blockStart = n + 1;
+                this.startBlock(chunk.firstCycle + blockStart);
+                position = this.length;
+            }
+        }
+
+        this.length = position;
+        this.blockCount = chunk.count - blockStart;
+        this.writeBlock(deflater, packed, block);
+    }
+
+    /**
+     * Writes the registers of an instruction which loaded several of them, from the copy
+     * of V0-VF the emulation thread made, at the end of the records. Returns the tag bits.
+     */
+    private int putLoaded(Chunk chunk, int load, long instruction, int opcode, int plan) {
+        byte[] records = this.records;
+        int[] registers = this.registers;
+        int loaded = load * 16;
+        int position = this.length;
+        int tag = 0;
+
+        if ((plan & FIRST_REGISTER << 8) != 0) {
+            int r = plan & 0xF;
+            int value = chunk.loadedRegisters[loaded + r] & 0xFF;
+            if (value != registers[r]) {
+                tag |= FIRST_REGISTER;
+                registers[r] = value;
+                records[position++] = (byte) value;
+            }
+        }
+        if ((plan & SECOND_REGISTER << 8) != 0) {
+            int r = (plan >> 4) & 0xF;
+            int value = chunk.loadedRegisters[loaded + r] & 0xFF;
+            if (value != registers[r]) {
+                tag |= SECOND_REGISTER;
+                registers[r] = value;
+                records[position++] = (byte) value;
+            }
+        }
+        int index = (int) (instruction >>> 48);
+        if ((plan & INDEX << 8) != 0 && index != registers[INDEX_REGISTER]) {
+            tag |= INDEX;
+            registers[INDEX_REGISTER] = index;
+            records[position++] = (byte) (index >> 8);
+            records[position++] = (byte) index;
+        }
+        if ((plan & REGISTERS << 8) != 0) {
+            tag |= REGISTERS;
+            for (int bits = candidates(opcode) & 0xFFFF; bits != 0; bits &= bits - 1) {
+                int r = Integer.numberOfTrailingZeros(bits);
+                registers[r] = chunk.loadedRegisters[loaded + r] & 0xFF;
+                records[position++] = (byte) registers[r];
+            }
+        }
+
+        this.length = position;
+
+        return tag;
+    }
+
+    /**
+     * Writes the bytes instruction n wrote, starting at the given write, at the end of the
+     * records. Returns the first write of the instructions after it.
+     */
+    private int putWrites(Chunk chunk, int write, int n) {
+        byte[] records = this.records;
+        int end = write;
+        while (end < chunk.writes && chunk.writeInstructions[end] == n) {
+            end++;
+        }
+
+        int position = this.length;
+        records[position++] = (byte) (end - write);
+        int base = this.registers[INDEX_REGISTER];
+        for (int i = write; i < end; i++) {
+            position = putVarint(records, position, zigzag(chunk.writeAddresses[i] - base));
+            records[position++] = (byte) chunk.writeValues[i];
+            base = chunk.writeAddresses[i] + 1;
+        }
+        this.length = position;
+
+        return end;
+    }
+
+    /**
+     * Returns which registers the record of an opcode can carry: the first V register in
+     * bits 0-3, the second in bits 4-7 and from bit 8 on the tag bits of the fields. The V
+     * registers it can change go into FIRST_REGISTER and SECOND_REGISTER when there are
+     * at most two of them, into REGISTERS otherwise.
+     */
+    static int plan(int opcode) {
+        int candidates = candidates(opcode);
+        int registers = candidates & 0xFFFF;
+        int fields = (candidates >> INDEX_REGISTER) * INDEX;
+        if (Integer.bitCount(registers) > 2) {
+            return (fields | REGISTERS) << 8;
+        }
+
+        int first = 0;
+        int second = 0;
+        if (registers != 0) {
+            first = Integer.numberOfTrailingZeros(registers);
+            fields |= FIRST_REGISTER;
+        }
+        int rest = registers & (registers - 1);
+        if (rest != 0) {
+            second = Integer.numberOfTrailingZeros(rest);
+            fields |= SECOND_REGISTER;
+        }
+
+        return first | second << 4 | fields << 8;
+    }
+
+    /**
+     * Returns the mask of registers an instruction can change, V0-VF in bits 0 to 15 and
+     * I in bit 16. Opcodes no variant knows are assumed to change everything.
+     */
+    static int candidates(int opcode) {
+        int x = (opcode >> 8) & 0xF;
+        int y = (opcode >> 4) & 0xF;
+
+        switch (opcode >>> 12) {
+            case 0x0:
+            case 0x1:
+            case 0x2:
+            case 0x3:
+            case 0x4:
+            case 0x9:
+            case 0xB:
+            case 0xE:
+                return 0;
+            case 0x5:
+                // 5XY3 loads VX to VY, in either direction
+                return (opcode & 0xF) == 3 ? range(Math.min(x, y), Math.max(x, y)) : 0;
+            case 0x6:
+            case 0x7:
+            case 0xC:
+                return 1 << x;
+            case 0x8:
+                return 1 << x | 1 << 0xF;
+            case 0xA:
+                return 1 << INDEX_REGISTER;
+            case 0xD:
+                return 1 << 0xF;
+            default:
+                switch (opcode & 0xFF) {
+                    case 0x07:
+                    case 0x0A:
+                        return 1 << x;
+                    case 0x01:
+                    case 0x02:
+                    case 0x15:
+                    case 0x18:
+                    case 0x33:
+                    case 0x3A:
+                    case 0x75:
+                        return 0;
+                    // F000 NNNN and the instructions which point I somewhere, or move it
+                    // past the registers they store
+                    case 0x00:
+                    case 0x1E:
+                    case 0x29:
+                    case 0x30:
+                    case 0x55:
+                        return 1 << INDEX_REGISTER;
+                    case 0x65:
+                        return range(0, x) | 1 << INDEX_REGISTER;
+                    case 0x85:
+                        return range(0, x);
+                    default:
+                        return ALL_REGISTERS;
+                }
+        }
+    }
+
+    /**
+     * Returns the mask of the registers first up to and including last
+     */
+    private static int range(int first, int last) {
+        return (2 << last) - (1 << first);
+    }
+
+    private void startBlock(long firstCycle) {
+        byte[] records = this.records;
+        int position = 0;
+        for (int r = 0; r < 16; r++) {
+            records[position++] = (byte) this.registers[r];
+        }
+        records[position++] = (byte) (this.registers[INDEX_REGISTER] >> 8);
+        records[position++] = (byte) this.registers[INDEX_REGISTER];
+        records[position++] = (byte) (this.expectedPc >> 8);
+        records[position++] = (byte) this.expectedPc;
+        Arrays.fill(this.knownOpcodes, -1);
+
+        this.length = position;
+        this.blockStart = firstCycle;
+        this.blockCount = 0;
+    }
+
+    private void writeBlock(Deflater deflater, byte[] packed, ByteBuffer block) throws IOException {
+        if (this.blockCount == 0) {
+            return;
+        }
+
+        block.clear();
+        block.putLong(this.blockStart).putInt(this.blockCount).putInt(this.length);
+
+        if (deflater != null) {
+            deflater.reset();
+            deflater.setInput(this.records, 0, this.length);
+            deflater.finish();
+            int packedLength = deflater.deflate(packed);
+
+            // Blocks which do not shrink are stored as they are
+            if (deflater.finished() && packedLength < this.length) {
+                block.putInt(packedLength).put((byte) 1).put(packed, 0, packedLength).flip();
+                this.writeFully(block);
+                return;
+            }
+        }
+
+        block.putInt(this.length).put((byte) 0).put(this.records, 0, this.length).flip();
+        this.writeFully(block);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+        }
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int putVarint(byte[] records, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            records[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        records[position++] = (byte) value;
+
+        return position;
+    }
+
+    /**
+     * What the emulation thread hands to the background thread: the state before the
+     * first instruction, then every instruction packed into a long, with the bytes written
+     * and the registers loaded by the few instructions which did either beside them
+     */
+    private static final class Chunk {
+
+        // The address in bits 0-15, the opcode in bits 16-31, the V register it names in
+        // bits 32-39, VF in bits 40-47 and I in bits 48-63, all after the instruction
+        final long[] instructions;
+        int count;
+        long firstCycle;
+
+        final int[] registers = new int[16];
+        int index;
+        int programCounter;
+
+        final int[] writeInstructions;
+        final int[] writeAddresses;
+        final int[] writeValues;
+        int writes;
+
+        final int[] loadInstructions;
+        final byte[] loadedRegisters;
+        int loads;
+
+        Chunk(int size, int writes, int loads) {
+            this.instructions = new long[size];
+            this.writeInstructions = new int[writes];
+            this.writeAddresses = new int[writes];
+            this.writeValues = new int[writes];
+            this.loadInstructions = new int[loads];
+            this.loadedRegisters = new byte[loads * 16];
+        }
+    }
+}
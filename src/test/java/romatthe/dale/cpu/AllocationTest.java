@@ -0,0 +1,115 @@
+package romatthe.dale.cpu;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that the fetch/decode/execute path allocates nothing once it is warmed up, so
+ * garbage per instruction cannot creep back in unnoticed
+ */
+public class AllocationTest {
+
+    // Covers CXNN, sprites, BCD, register dumps and loads, calls and keys
+    private static final String[] ROMS = {"BRIX", "UFO", "TETRIS", "BLINKY", "INVADERS", "VBRIX"};
+
+    private static final int WARMUP_CYCLES = 2_000_000;
+    private static final int CYCLES = 1_000_000;
+
+    private com.sun.management.ThreadMXBean threads;
+
+    @Before
+    public void setUp() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+
+        this.threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(this.threads.isThreadAllocatedMemorySupported());
+        this.threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void stepAllocatesNothing() throws IOException {
+        for (String rom : ROMS) {
+            Cpu cpu = load(rom);
+            this.step(cpu, WARMUP_CYCLES);
+
+            long allocated = this.allocatedBytes();
+            this.step(cpu, CYCLES);
+            allocated = this.allocatedBytes() - allocated - this.measuringOverhead();
+
+            assertThat(allocated).as("bytes allocated by %s", rom).isZero();
+        }
+    }
+
+    @Test
+    public void runAllocatesNothing() throws IOException {
+        for (String rom : ROMS) {
+            Cpu cpu = load(rom);
+            this.run(cpu, WARMUP_CYCLES);
+
+            long allocated = this.allocatedBytes();
+            this.run(cpu, CYCLES);
+            allocated = this.allocatedBytes() - allocated - this.measuringOverhead();
+
+            assertThat(allocated).as("bytes allocated by %s", rom).isZero();
+        }
+    }
+
+    // Presses keys and ticks the timers now and then, so the programs get past their
+    // title screens and idle loops
+    private void step(Cpu cpu, int cycles) {
+        for (int i = 0; i < cycles; i++) {
+            cpu.step();
+            if ((i & 0x3FF) == 0) {
+                this.frame(cpu, i);
+            }
+        }
+    }
+
+    private void run(Cpu cpu, int cycles) {
+        for (int i = 0; i < cycles; i += 0x400) {
+            cpu.run(0x400);
+            this.frame(cpu, i);
+        }
+    }
+
+    private void frame(Cpu cpu, int cycle) {
+        cpu.tickTimers();
+
+        int key = (cycle >> 10) & 0xF;
+        if ((cycle & 0x1000) == 0) {
+            cpu.getKeypad().press(key);
+        } else {
+            cpu.getKeypad().release(key);
+        }
+    }
+
+    private long allocatedBytes() {
+        return this.threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // What asking for the allocated bytes allocates itself
+    private long measuringOverhead() {
+        long first = this.allocatedBytes();
+
+        return this.allocatedBytes() - first;
+    }
+
+    private static Cpu load(String rom) throws IOException {
+        Cpu cpu = new Cpu();
+        try (InputStream in = AllocationTest.class.getClassLoader().getResourceAsStream(rom)) {
+            cpu.load(IOUtils.toByteArray(in));
+        }
+        cpu.setRandomState(42);
+
+        return cpu;
+    }
+}
@@ -0,0 +1,132 @@
+package romatthe.dale.cpu;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Rewinds bundled Roms through a buffer which already evicted older captures, and checks
+ * every rewound state against a snapshot taken directly at the time of the capture
+ */
+public class RewindBufferTest {
+
+    private static final String[] ROMS = {"BRIX", "INVADERS", "TETRIS", "UFO"};
+
+    private static final int CAPACITY = 4;
+
+    // Enough for the oldest captures to be folded into the base memory a few times over
+    private static final int CAPTURES = 11;
+
+    private static final int INSTRUCTIONS_PER_CAPTURE = 2_000;
+
+    @Test
+    public void rewindsMatchDirectSnapshots() throws IOException {
+        for (String rom : ROMS) {
+            byte[] program = read(rom);
+            for (int captures = 0; captures < CAPACITY; captures++) {
+                Cpu cpu = load(program);
+                RewindBuffer buffer = new RewindBuffer(cpu, CAPACITY, 1);
+                List<byte[]> snapshots = this.capture(cpu, buffer, 0, CAPTURES);
+                assertThat(buffer.size()).as("snapshots held for %s", rom).isEqualTo(CAPACITY);
+
+                buffer.rewind(captures);
+                byte[] expected = snapshots.get(CAPTURES - 1 - captures);
+                assertThat(cpu.snapshot()).as("%s rewound by %d", rom, captures).isEqualTo(expected);
+                assertThat(buffer.size()).as("snapshots left after rewinding %s by %d", rom, captures).isEqualTo(CAPACITY - captures);
+            }
+        }
+    }
+
+    @Test
+    public void capturesAfterARewindRewindToo() throws IOException {
+        for (String rom : ROMS) {
+            Cpu cpu = load(read(rom));
+            RewindBuffer buffer = new RewindBuffer(cpu, CAPACITY, 1);
+            List<byte[]> snapshots = this.capture(cpu, buffer, 0, CAPTURES);
+
+            // Back to the oldest capture left, then on past the capacity once more
+            buffer.rewind(CAPACITY - 1);
+            assertThat(cpu.snapshot()).as("%s rewound to the oldest capture", rom).isEqualTo(snapshots.get(CAPTURES - CAPACITY));
+            List<byte[]> later = this.capture(cpu, buffer, CAPTURES, CAPACITY + 2);
+            assertThat(buffer.size()).as("snapshots held for %s", rom).isEqualTo(CAPACITY);
+
+            buffer.rewind(2);
+            assertThat(cpu.snapshot()).as("%s rewound after a rewind", rom).isEqualTo(later.get(later.size() - 3));
+            buffer.rewind(0);
+            assertThat(cpu.snapshot()).as("%s rewound to the newest capture", rom).isEqualTo(later.get(later.size() - 3));
+            buffer.rewind(1);
+            assertThat(cpu.snapshot()).as("%s rewound to the capture before", rom).isEqualTo(later.get(later.size() - 4));
+        }
+    }
+
+    @Test
+    public void onlyHeldSnapshotsCanBeRewoundTo() throws IOException {
+        Cpu cpu = load(read("BRIX"));
+        RewindBuffer buffer = new RewindBuffer(cpu, CAPACITY, 1);
+        this.capture(cpu, buffer, 0, 2);
+
+        assertThat(rejects(buffer, buffer.size())).as("rewinding past the oldest snapshot").isTrue();
+        assertThat(rejects(buffer, -1)).as("rewinding into the future").isTrue();
+        assertThat(buffer.size()).as("snapshots held after refused rewinds").isEqualTo(2);
+    }
+
+    /**
+     * Runs the machine between captures and scribbles over a few pages of memory, returns
+     * the snapshots taken directly at every capture
+     */
+    private List<byte[]> capture(Cpu cpu, RewindBuffer buffer, int from, int captures) {
+        List<byte[]> snapshots = new ArrayList<>();
+        for (int capture = from; capture < from + captures; capture++) {
+            for (int frame = 0; frame < INSTRUCTIONS_PER_CAPTURE / 10; frame++) {
+                cpu.run(10);
+                cpu.tickTimers();
+            }
+            if (capture % 3 == 0) {
+                cpu.getKeypad().press(capture % 16);
+            } else {
+                cpu.getKeypad().release((capture - 1) % 16);
+            }
+
+            // Outside the program and the font, so the Roms run on as before
+            int page = 0xE00 + (capture % 2) * RewindBuffer.PAGE_SIZE;
+            cpu.getMemory().write(page + capture, capture);
+            if (capture % 4 == 0) {
+                cpu.getMemory().write(0xC00 + capture * 7, 0xFF - capture);
+            }
+
+            buffer.capture();
+            snapshots.add(cpu.snapshot());
+        }
+
+        return snapshots;
+    }
+
+    private static boolean rejects(RewindBuffer buffer, int captures) {
+        try {
+            buffer.rewind(captures);
+            return false;
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+    }
+
+    private static Cpu load(byte[] program) {
+        Cpu cpu = new Cpu();
+        cpu.load(program);
+        cpu.setRandomState(42);
+
+        return cpu;
+    }
+
+    private static byte[] read(String rom) throws IOException {
+        try (InputStream in = RewindBufferTest.class.getClassLoader().getResourceAsStream(rom)) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package romatthe.dale.cpu;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks that restoring a snapshot brings back exactly the machine it was taken of, so it
+ * runs on just as the original would have
+ */
+public class SnapshotTest {
+
+    private static final String[] ROMS = {"BRIX", "INVADERS", "MERLIN", "TETRIS", "UFO", "VBRIX"};
+
+    private static final int CYCLES = 50_000;
+
+    @Test
+    public void restoredMachineRunsOnLikeTheOriginal() throws IOException {
+        for (String rom : ROMS) {
+            Cpu original = load(rom);
+            run(original, CYCLES, 0);
+            byte[] snapshot = original.snapshot();
+
+            // Into a fresh machine, and back into the original after it ran on
+            Cpu restored = new Cpu();
+            restored.restore(snapshot);
+            assertThat(restored.snapshot()).as("snapshot of the restored %s", rom).isEqualTo(snapshot);
+
+            run(original, CYCLES, CYCLES);
+            byte[] later = original.snapshot();
+            original.restore(snapshot);
+            assertThat(original.snapshot()).as("snapshot of %s restored over a later state", rom).isEqualTo(snapshot);
+
+            run(restored, CYCLES, CYCLES);
+            assertThat(restored.snapshot()).as("snapshot of the restored %s after running on", rom).isEqualTo(later);
+        }
+    }
+
+    @Test
+    public void extendedStateSurvives() {
+        for (Variant variant : Variant.values()) {
+            Cpu cpu = new Cpu(variant);
+            for (int r = 0; r < 16; r++) {
+                cpu.setRegisterAt(r, (short) (r * 17));
+            }
+            cpu.setIndexRegisterI((short) (cpu.getMemory().size() - 2));
+            cpu.setProgramCounter(0x2A4);
+            cpu.push(0x246);
+            cpu.push(0x2F0);
+            cpu.setDelayRegister((short) 40);
+            cpu.setSoundRegister((short) 7);
+            cpu.setRandomState(0x1234_5678_9ABCL);
+            cpu.getKeypad().press(0xA);
+            for (int i = 0; i < 8; i++) {
+                cpu.setFlagAt(i, (short) (0xF0 | i));
+            }
+            for (int i = 0; i < 16; i++) {
+                cpu.setAudioPatternAt(i, (short) (0xFF - i));
+            }
+            cpu.setPitch((short) 112);
+            if (variant != Variant.CHIP_8) {
+                cpu.getDisplay().setHires(true);
+            }
+            for (int line = 0; line < cpu.getDisplay().getLineCount(); line += 3) {
+                cpu.getDisplay().setLine(line, 0x0123_4567_89AB_CDEFL * line);
+            }
+            cpu.getMemory().write(cpu.getMemory().size() - 1, 0x5A);
+
+            byte[] snapshot = cpu.snapshot();
+            assertThat(snapshot.length).as("snapshot size of %s", variant).isEqualTo(cpu.snapshotSize());
+
+            Cpu restored = new Cpu(variant);
+            restored.restore(snapshot);
+            assertThat(restored.snapshot()).as("snapshot of the restored %s", variant).isEqualTo(snapshot);
+            assertThat(restored.pop()).as("return address of %s", variant).isEqualTo(0x2F0);
+            assertThat(restored.getDisplay().isHires()).as("resolution of %s", variant).isEqualTo(variant != Variant.CHIP_8);
+        }
+    }
+
+    @Test
+    public void buffersAtAnOffsetAndDirectBuffersRoundTrip() throws IOException {
+        Cpu cpu = load("BRIX");
+        run(cpu, CYCLES, 0);
+        byte[] snapshot = cpu.snapshot();
+
+        ByteBuffer heap = ByteBuffer.allocate(cpu.snapshotSize() + 13);
+        heap.position(13);
+        cpu.snapshot(heap);
+        assertThat(heap.remaining()).as("bytes left after the snapshot").isZero();
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(cpu.snapshotSize());
+        cpu.snapshot(direct);
+
+        Cpu fromHeap = new Cpu();
+        heap.position(13);
+        fromHeap.restore(heap);
+        assertThat(fromHeap.snapshot()).as("snapshot restored from an offset").isEqualTo(snapshot);
+
+        Cpu fromDirect = new Cpu();
+        direct.flip();
+        fromDirect.restore(direct);
+        assertThat(fromDirect.snapshot()).as("snapshot restored from a direct buffer").isEqualTo(snapshot);
+    }
+
+    @Test
+    public void foreignSnapshotsAreRejected() {
+        byte[] snapshot = new Cpu().snapshot();
+
+        assertThat(rejects(new Cpu(Variant.XO_CHIP), snapshot)).as("Chip 8 snapshot restored on XO-CHIP").isTrue();
+
+        byte[] corrupt = snapshot.clone();
+        corrupt[0] ^= 1;
+        assertThat(rejects(new Cpu(), corrupt)).as("snapshot without the magic").isTrue();
+
+        byte[] future = snapshot.clone();
+        future[4]++;
+        assertThat(rejects(new Cpu(), future)).as("snapshot of another version").isTrue();
+    }
+
+    private static boolean rejects(Cpu cpu, byte[] snapshot) {
+        try {
+            cpu.restore(snapshot);
+            return false;
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+    }
+
+    // Ticks the timers every 10 instructions and changes a key now and then
+    private static void run(Cpu cpu, int cycles, int from) {
+        for (int cycle = from; cycle < from + cycles; cycle += 10) {
+            cpu.run(10);
+            cpu.tickTimers();
+
+            int frame = cycle / 10;
+            if (frame % 37 == 0) {
+                cpu.getKeypad().press(frame % 16);
+            } else if (frame % 37 == 5) {
+                cpu.getKeypad().release((frame - 5) % 16);
+            }
+        }
+    }
+
+    private static Cpu load(String rom) throws IOException {
+        Cpu cpu = new Cpu();
+        try (InputStream in = SnapshotTest.class.getClassLoader().getResourceAsStream(rom)) {
+            cpu.load(IOUtils.toByteArray(in));
+        }
+        cpu.setRandomState(42);
+
+        return cpu;
+    }
+}
@@ -0,0 +1,143 @@
+package romatthe.dale.lockstep;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import romatthe.dale.cpu.Cpu;
+import romatthe.dale.input.InputLog;
+import romatthe.dale.input.InputReplayer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks the lanes of a LockstepEngine against Cpus running the same program, instruction
+ * for instruction, as the engine implements every instruction a second time
+ */
+public class LockstepEngineTest {
+
+    private static final String[] ROMS = {
+            "15PUZZLE", "BLINKY", "BLITZ", "BRIX", "CONNECT4", "GUESS", "HIDDEN", "INVADERS",
+            "KALEID", "MAZE", "MERLIN", "MISSILE", "PONG", "PONG2", "PUZZLE", "SYZYGY", "TANK",
+            "TETRIS", "TICTAC", "UFO", "VBRIX", "VERS", "WIPEOFF"
+    };
+
+    private static final int INSTRUCTIONS_PER_FRAME = 10;
+    private static final int CYCLES = 40_000;
+
+    // Lane 0 runs without input, the others each replay a different random log
+    private static final int LANES = 4;
+
+    @Test
+    public void lanesMatchCpu() throws IOException {
+        for (String rom : ROMS) {
+            byte[] program = read(rom);
+
+            Cpu prototype = new Cpu();
+            prototype.load(program);
+            prototype.setRandomState(rom.hashCode());
+            LockstepEngine engine = new LockstepEngine(prototype, LANES, INSTRUCTIONS_PER_FRAME);
+
+            Cpu[] cpus = new Cpu[LANES];
+            InputReplayer[] replayers = new InputReplayer[LANES];
+            String[] errors = new String[LANES];
+            for (int lane = 0; lane < LANES; lane++) {
+                cpus[lane] = new Cpu();
+                cpus[lane].load(program);
+                cpus[lane].setRandomState(rom.hashCode());
+                if (lane > 0) {
+                    InputLog log = randomInput(rom.hashCode() + lane);
+                    engine.setInput(lane, log);
+                    replayers[lane] = new InputReplayer(cpus[lane], log);
+                }
+            }
+
+            for (int cycle = 1; cycle <= CYCLES; cycle++) {
+                engine.cycle();
+
+                for (int lane = 0; lane < LANES; lane++) {
+                    if (errors[lane] != null) {
+                        continue;
+                    }
+
+                    try {
+                        step(cpus[lane], replayers[lane], cycle);
+                    } catch (RuntimeException e) {
+                        errors[lane] = e.getMessage();
+                        assertThat(engine.getError(lane)).as("error of lane %d of %s at cycle %d", lane, rom, cycle).isNotNull();
+                        continue;
+                    }
+
+                    assertSameState(engine, lane, cpus[lane], rom, cycle);
+                }
+            }
+
+            for (int lane = 0; lane < LANES; lane++) {
+                if (errors[lane] == null) {
+                    assertThat(engine.toCpu(lane).snapshot()).as("snapshot of lane %d of %s", lane, rom).isEqualTo(cpus[lane].snapshot());
+                }
+            }
+        }
+    }
+
+    private static void step(Cpu cpu, InputReplayer replayer, int cycle) {
+        if (replayer != null) {
+            replayer.run(1);
+            return;
+        }
+
+        cpu.step();
+        if (cycle % INSTRUCTIONS_PER_FRAME == 0) {
+            cpu.tickTimers();
+        }
+    }
+
+    // Only describes the states once they differ, comparing is all most cycles need
+    private static void assertSameState(LockstepEngine engine, int lane, Cpu cpu, String rom, int cycle) {
+        boolean same = engine.getError(lane) == null
+                && engine.getProgramCounter(lane) == cpu.getProgramCounter()
+                && engine.getIndexRegisterI(lane) == cpu.getIndexRegisterI();
+        for (int r = 0; r < 16 && same; r++) {
+            same = engine.getRegisterAt(lane, r) == cpu.getRegisterAt(r);
+        }
+
+        if (!same) {
+            String state = String.format("PC=%03X I=%03X", engine.getProgramCounter(lane), engine.getIndexRegisterI(lane));
+            String expected = String.format("PC=%03X I=%03X", cpu.getProgramCounter(), cpu.getIndexRegisterI());
+            for (int r = 0; r < 16; r++) {
+                state += String.format(" V%X=%02X", r, engine.getRegisterAt(lane, r));
+                expected += String.format(" V%X=%02X", r, cpu.getRegisterAt(r));
+            }
+
+            assertThat(engine.getError(lane)).as("error of lane %d of %s at cycle %d", lane, rom, cycle).isNull();
+            assertThat(state).as("lane %d of %s at cycle %d", lane, rom, cycle).isEqualTo(expected);
+        }
+    }
+
+    // Ticks the timers every frame and changes a key now and then, at frame starts like a
+    // Scheduler recording would. The log ends before the last cycle, as a replay applies
+    // the events at its end right away and the engine only before the next cycle.
+    private static InputLog randomInput(long seed) {
+        Random random = new Random(seed);
+        InputLog log = new InputLog(seed);
+
+        int keys = 0;
+        for (long cycle = INSTRUCTIONS_PER_FRAME; cycle < CYCLES; cycle += INSTRUCTIONS_PER_FRAME) {
+            log.tick(cycle);
+            if (random.nextInt(8) == 0) {
+                keys ^= 1 << random.nextInt(16);
+                log.keys(cycle, keys);
+            }
+        }
+
+        return log;
+    }
+
+    private static byte[] read(String rom) throws IOException {
+        try (InputStream in = LockstepEngineTest.class.getClassLoader().getResourceAsStream(rom)) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package romatthe.dale.stream;
+
+import org.junit.Test;
+import romatthe.dale.display.Display;
+import romatthe.dale.display.FramePipeline;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Drives a FrameServer without a thread of its own, so a test decides exactly when it
+ * handles its sockets and when it moves frames to the viewers
+ */
+public class FrameServerTest {
+
+    private static final long ID = 42;
+    private static final long SELECT_MILLIS = 10;
+    private static final int TIMEOUT_MILLIS = 2_000;
+
+    @Test
+    public void viewersAfterADisconnectedOneGetTheFrame() throws IOException, InterruptedException {
+        Display display = new Display();
+        FramePipeline pipeline = new FramePipeline(display, FrameServer.PIPELINE_CAPACITY);
+
+        try (FrameServer server = new FrameServer(0, false)) {
+            server.publish(ID, pipeline);
+
+            // The first viewer joins first, so it comes before the second in the list
+            Socket first = connect(server, 1);
+            Socket second = connect(server, 2);
+            long[] screen = new long[Display.HEIGHT];
+
+            server.pump();
+            receive(second, screen);
+
+            // A reset rather than a close, so the next write to it fails instead of the
+            // server reading the end of the stream first
+            first.setSoLinger(true, 0);
+            first.close();
+            Thread.sleep(100);
+
+            display.setRow(3, 0xF0F0F0F0F0F0F0F0L);
+            pipeline.onFrame(1);
+            server.pump();
+
+            assertThat(server.getViewers(ID)).as("viewers").isEqualTo(1);
+            assertThat(receive(second, screen)).as("frame").isEqualTo(1L);
+            assertThat(screen[3]).as("row 3").isEqualTo(0xF0F0F0F0F0F0F0F0L);
+
+            second.close();
+        }
+    }
+
+    // Connects a viewer and handles its handshake, until the stream has the given viewers
+    private static Socket connect(FrameServer server, int viewers) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        socket.setSoTimeout(TIMEOUT_MILLIS);
+        new DataOutputStream(socket.getOutputStream()).writeLong(ID);
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (server.getViewers(ID) < viewers) {
+            assertThat(System.currentTimeMillis()).as("time to connect viewer %d", viewers).isLessThan(deadline);
+            server.select(SELECT_MILLIS);
+        }
+
+        return socket;
+    }
+
+    // Reads one message and applies it to the screen, returns its frame
+    private static long receive(Socket socket, long[] screen) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        int length = in.readInt();
+        byte[] message = new byte[4 + length];
+        in.readFully(message, 4, length);
+
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        buffer.putInt(0, length);
+
+        return FrameEncoder.decode(buffer, screen);
+    }
+}
@@ -0,0 +1,175 @@
+package romatthe.dale.trace;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import romatthe.dale.cpu.Cpu;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Traces bundled Roms and reads the traces back against a Cpu stepping the same program,
+ * instruction for instruction, with and without deflated blocks
+ */
+public class TraceWriterTest {
+
+    // Cover sprites, BCD, register dumps and loads, calls and keys
+    private static final String[] ROMS = {"BRIX", "INVADERS", "MERLIN", "TETRIS", "UFO", "VBRIX"};
+
+    private static final int INSTRUCTIONS_PER_FRAME = 10;
+
+    // Enough for a dozen blocks or more
+    private static final int CYCLES = 200_000;
+
+    @Test
+    public void tracesMatchCpu() throws IOException {
+        for (String rom : ROMS) {
+            this.roundTrip(rom, false);
+        }
+    }
+
+    @Test
+    public void deflatedTracesMatchCpu() throws IOException {
+        for (String rom : ROMS) {
+            this.roundTrip(rom, true);
+        }
+    }
+
+    private void roundTrip(String rom, boolean compress) throws IOException {
+        byte[] program = read(rom);
+        String name = rom + (compress ? " deflated" : "");
+        Path path = Files.createTempFile("dale-" + rom, ".trace");
+        try {
+            Cpu traced = load(program);
+            try (TraceWriter writer = new TraceWriter(traced, path, compress)) {
+                for (int cycle = 0; cycle < CYCLES; cycle += INSTRUCTIONS_PER_FRAME) {
+                    writer.execute(INSTRUCTIONS_PER_FRAME);
+                    frame(traced, cycle);
+                }
+                assertThat(writer.getCycles()).as("cycles traced of %s", name).isEqualTo(CYCLES);
+            }
+
+            try (TraceReader reader = TraceReader.open(path)) {
+                assertThat(reader.getCycles()).as("cycles in the trace of %s", name).isEqualTo(CYCLES);
+
+                int[] programCounters = this.compare(reader, load(program), name);
+                this.seek(reader, programCounters, name);
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * Checks every record against the Cpu, returns the program counter of every cycle
+     */
+    private int[] compare(TraceReader reader, Cpu cpu, String name) {
+        int[] programCounters = new int[CYCLES];
+        short[] before = new short[16];
+
+        for (int cycle = 0; cycle < CYCLES; cycle++) {
+            assertThat(reader.next()).as("record %d of %s", cycle, name).isTrue();
+
+            int pc = cpu.getProgramCounter();
+            int opcode = ((cpu.getMemory().read(pc) & 0xFF) << 8) | (cpu.getMemory().read(pc + 1) & 0xFF);
+            int index = cpu.getIndexRegisterI() & 0xFFFF;
+            for (int r = 0; r < 16; r++) {
+                before[r] = cpu.getRegisterAt(r);
+            }
+            programCounters[cycle] = pc;
+
+            cpu.step();
+            if ((cycle + 1) % INSTRUCTIONS_PER_FRAME == 0) {
+                frame(cpu, cycle + 1 - INSTRUCTIONS_PER_FRAME);
+            }
+
+            int changed = (cpu.getIndexRegisterI() & 0xFFFF) != index ? 1 << TraceWriter.INDEX_REGISTER : 0;
+            boolean same = reader.getCycle() == cycle
+                    && reader.getProgramCounter() == pc
+                    && reader.getOpcode() == opcode
+                    && reader.getIndexRegisterI() == (cpu.getIndexRegisterI() & 0xFFFF);
+            for (int r = 0; r < 16; r++) {
+                same &= reader.getRegisterAt(r) == cpu.getRegisterAt(r);
+                changed |= cpu.getRegisterAt(r) != before[r] ? 1 << r : 0;
+            }
+            same &= reader.getChangedRegisters() == changed;
+            for (int w = 0; w < reader.getWriteCount(); w++) {
+                same &= (cpu.getMemory().read(reader.getWriteAddress(w)) & 0xFF) == reader.getWriteValue(w);
+            }
+
+            if (!same) {
+                assertThat(describe(reader)).as("record %d of %s", cycle, name).isEqualTo(describe(cycle, pc, opcode, changed, cpu));
+            }
+        }
+        assertThat(reader.next()).as("record after the last of %s", name).isFalse();
+
+        return programCounters;
+    }
+
+    // Into the middle of the trace, around block boundaries, backwards and past the end
+    private void seek(TraceReader reader, int[] programCounters, String name) {
+        long[] cycles = {CYCLES / 2, CYCLES / 2 + 1, 1 << 14, (1 << 14) - 1, 1 << 15, 12_345, CYCLES - 1, 0, CYCLES / 3};
+        for (long cycle : cycles) {
+            assertThat(reader.seek(cycle)).as("seek to %d of %s", cycle, name).isTrue();
+            assertThat(reader.getCycle()).as("cycle after seeking to %d of %s", cycle, name).isEqualTo(cycle);
+            assertThat(reader.getProgramCounter()).as("program counter at %d of %s", cycle, name).isEqualTo(programCounters[(int) cycle]);
+        }
+
+        assertThat(reader.seek(CYCLES)).as("seek past the end of %s", name).isFalse();
+        assertThat(reader.seek(-1)).as("seek before the start of %s", name).isFalse();
+    }
+
+    private static String describe(TraceReader reader) {
+        String state = String.format("%d PC=%03X %04X I=%03X changed=%05X", reader.getCycle(), reader.getProgramCounter(),
+                reader.getOpcode(), reader.getIndexRegisterI(), reader.getChangedRegisters());
+        for (int r = 0; r < 16; r++) {
+            state += String.format(" V%X=%02X", r, reader.getRegisterAt(r));
+        }
+        for (int w = 0; w < reader.getWriteCount(); w++) {
+            state += String.format(" [%03X]=%02X", reader.getWriteAddress(w), reader.getWriteValue(w));
+        }
+
+        return state;
+    }
+
+    private static String describe(int cycle, int pc, int opcode, int changed, Cpu cpu) {
+        String state = String.format("%d PC=%03X %04X I=%03X changed=%05X", cycle, pc, opcode,
+                cpu.getIndexRegisterI() & 0xFFFF, changed);
+        for (int r = 0; r < 16; r++) {
+            state += String.format(" V%X=%02X", r, cpu.getRegisterAt(r));
+        }
+
+        return state;
+    }
+
+    // Ticks the timers and changes a key now and then, so the programs get past their
+    // title screens
+    private static void frame(Cpu cpu, int cycle) {
+        cpu.tickTimers();
+
+        int frame = cycle / INSTRUCTIONS_PER_FRAME;
+        if (frame % 37 == 0) {
+            cpu.getKeypad().press(frame % 16);
+        } else if (frame % 37 == 5) {
+            cpu.getKeypad().release((frame - 5) % 16);
+        }
+    }
+
+    private static Cpu load(byte[] program) {
+        Cpu cpu = new Cpu();
+        cpu.load(program);
+        cpu.setRandomState(42);
+
+        return cpu;
+    }
+
+    private static byte[] read(String rom) throws IOException {
+        try (InputStream in = TraceWriterTest.class.getClassLoader().getResourceAsStream(rom)) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+}